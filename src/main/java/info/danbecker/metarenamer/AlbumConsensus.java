@@ -0,0 +1,127 @@
+package info.danbecker.metarenamer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.mp3.ID3Tags;
+import org.apache.tika.parser.mp3.ID3v22Handler;
+import org.apache.tika.parser.mp3.ID3v23Handler;
+import org.apache.tika.parser.mp3.ID3v24Handler;
+import org.apache.tika.parser.mp3.ID3v2Frame;
+import org.apache.tika.parser.mp3.MP3Frame;
+import org.xml.sax.SAXException;
+
+/**
+ * Settles the directory keys of an album from a sample of its tracks.
+ * <p>
+ * Every track of an album gives the same album artist, year, and album, so once the first
+ * {@link #sampleSize} tracks of a directory are fully parsed and agree, later tracks only need
+ * a cheap read of the ID3v2 tag at the head of the file for their own keys.
+ * A sample which disagrees, or a later tag whose album disagrees, sends the directory back to full parses.
+ * Only the most recent {@link #DIRECTORIES_KEPT} directories are remembered.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class AlbumConsensus {
+	public static final int DIRECTORIES_KEPT = 64;
+
+	public final int sampleSize;
+	protected final Collection<String> dirKeyNames;
+	protected final Map<Path,Album> albums = new LinkedHashMap<Path,Album>( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Path,Album> eldest ) {
+			return size() > DIRECTORIES_KEPT;
+		}
+	};
+	public final AtomicInteger tagReads = new AtomicInteger();
+	public final AtomicInteger fallbacks = new AtomicInteger();
+
+	/** Sampled directory key values of one directory. */
+	public static class Album {
+		protected int sampled = 0;
+		protected Map<String,String> values; // null until the first sample
+		protected boolean disagreed = false;
+
+		/** Returns the agreed values once the sample is complete, otherwise null. */
+		public synchronized Map<String,String> settled( int sampleSize ) {
+			return ( !disagreed && ( sampled >= sampleSize )) ? values : null;
+		}
+
+		/** Adds the values of one fully parsed track. */
+		public synchronized void sample( Map<String,String> trackValues ) {
+			if ( null == values )
+				values = trackValues;
+			else if ( !values.equals( trackValues ))
+				disagreed = true;
+			sampled++;
+		}
+
+		public synchronized void disagree() {
+			disagreed = true;
+		}
+	}
+
+	public AlbumConsensus( int sampleSize, Collection<String> dirKeyNames ) {
+		this.sampleSize = Math.max( 1, sampleSize );
+		this.dirKeyNames = dirKeyNames;
+	}
+
+	/** Returns the album of a directory. */
+	public Album album( Path dir ) {
+		synchronized ( albums ) {
+			Album album = albums.get( dir );
+			if ( null == album ) {
+				album = new Album();
+				albums.put( dir, album );
+			}
+			return album;
+		}
+	}
+
+	/** Returns the directory key values of parsed metadata. */
+	public Map<String,String> values( Metadata metadata ) {
+		Map<String,String> values = new HashMap<String,String>();
+		for ( String key : dirKeyNames )
+			values.put( key, metadata.get( key ));
+		return values;
+	}
+
+	/** Tests if a cheap tag agrees with the settled values, on the keys the tag has. */
+	public static boolean agrees( Map<String,String> settled, String key, String tagValue ) {
+		if (( null == tagValue ) || !settled.containsKey( key ) || ( null == settled.get( key )))
+			return true;
+		return settled.get( key ).equals( tagValue.trim() );
+	}
+
+	/** Reads only the ID3v2 tag at the head of an MP3 file. @return the tags, or null if there are none */
+	public static ID3Tags readTags( Path path ) throws IOException {
+		try ( InputStream in = new BufferedInputStream( Files.newInputStream( path ))) {
+			MP3Frame frame = ID3v2Frame.createFrameIfPresent( in );
+			if ( !( frame instanceof ID3v2Frame ))
+				return null;
+			ID3v2Frame id3 = (ID3v2Frame) frame;
+			ID3Tags tags;
+			switch ( id3.getMajorVersion() ) {
+			case 2: tags = new ID3v22Handler( id3 ); break;
+			case 3: tags = new ID3v23Handler( id3 ); break;
+			case 4: tags = new ID3v24Handler( id3 ); break;
+			default: return null;
+			}
+			return tags.getTagsPresent() ? tags : null;
+		} catch ( SAXException | TikaException e ) {
+			return null;
+		}
+	}
+}
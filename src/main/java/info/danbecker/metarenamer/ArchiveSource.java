@@ -0,0 +1,214 @@
+package info.danbecker.metarenamer;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * Reads the files in a zip or tar archive as if the archive were a directory.
+ * <p>
+ * The archive is streamed once, start to end. Each regular entry up to {@link #MEMORY_ENTRY_BYTES} is read into memory,
+ * where it is detected, parsed, and written to its destination without an extraction directory.
+ * A larger entry is streamed to a temporary file instead, which is deleted once the entry is visited.
+ * An entry is named as a path under the archive, for example <code>incoming/album.zip/01 Track.mp3</code>.
+ * Entries over {@link #MAX_ENTRY_BYTES} are skipped, as are directories, hidden files,
+ * Mac resource forks, and names which would climb out of the archive.
+ * Zip uses java.util.zip. Tar, tar.gz, and tgz use commons-compress, which Tika already brings.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class ArchiveSource {
+	public static final long MAX_ENTRY_BYTES = 512L * 1024 * 1024;
+	public static final int MEMORY_ENTRY_BYTES = 16 * 1024 * 1024;
+	public static final int BUFFER_BYTES = 256 * 1024;
+
+	/** One file of an archive, with its contents in memory or in a temporary file. Its attributes are those of the entry. */
+	public static class Entry implements BasicFileAttributes {
+		public final Path path;
+		public final byte [] content; // null if spooled
+		public final Path spool; // temporary file of the contents, null if in memory
+		protected final long size;
+		protected final FileTime modified;
+
+		public Entry( Path path, byte [] content, long modifiedMillis ) {
+			this.path = path;
+			this.content = content;
+			this.spool = null;
+			this.size = content.length;
+			this.modified = FileTime.fromMillis( modifiedMillis );
+		}
+
+		public Entry( Path path, Path spool, long size, long modifiedMillis ) {
+			this.path = path;
+			this.content = null;
+			this.spool = spool;
+			this.size = size;
+			this.modified = FileTime.fromMillis( modifiedMillis );
+		}
+
+		/** Writes the contents to a new file, which must not exist. */
+		public void write( Path target ) throws IOException {
+			if ( null == spool )
+				Files.write( target, content, CREATE_NEW, WRITE );
+			else
+				Files.copy( spool, target );
+		}
+
+		@Override public FileTime lastModifiedTime() { return modified; }
+		@Override public FileTime lastAccessTime() { return modified; }
+		@Override public FileTime creationTime() { return modified; }
+		@Override public boolean isRegularFile() { return true; }
+		@Override public boolean isDirectory() { return false; }
+		@Override public boolean isSymbolicLink() { return false; }
+		@Override public boolean isOther() { return false; }
+		@Override public long size() { return size; }
+		@Override public Object fileKey() { return null; }
+	}
+
+	/** Called for each entry. Returns false to stop reading the archive. */
+	public interface EntryVisitor {
+		boolean visit( Entry entry ) throws IOException;
+	}
+
+	/** Tests if a file is an archive by its name. */
+	public static boolean isArchive( Path path ) {
+		String name = path.getFileName().toString().toLowerCase( Locale.ROOT );
+		return name.endsWith( ".zip" ) || name.endsWith( ".tar" ) || name.endsWith( ".tar.gz" ) || name.endsWith( ".tgz" );
+	}
+
+	/** Streams the entries of an archive to the visitor. @return the number of entries visited */
+	public static int read( Path archive, EntryVisitor visitor ) throws IOException {
+		String name = archive.getFileName().toString().toLowerCase( Locale.ROOT );
+		int count = 0;
+		try ( InputStream in = new BufferedInputStream( Files.newInputStream( archive ), BUFFER_BYTES )) {
+			if ( name.endsWith( ".zip" )) {
+				ZipInputStream zip = new ZipInputStream( in );
+				for ( ZipEntry entry = zip.getNextEntry(); null != entry; entry = zip.getNextEntry() ) {
+					if ( entry.isDirectory() || skipped( entry.getName(), entry.getSize() ))
+						continue;
+					Entry read = readEntry( zip, archive.resolve( entry.getName() ), entry.getSize(), entry.getTime() );
+					if ( null == read )
+						continue;
+					count++;
+					if ( !visit( visitor, read ))
+						break;
+				}
+			} else {
+				TarArchiveInputStream tar = new TarArchiveInputStream( name.endsWith( ".tar" ) ? in : new GZIPInputStream( in, BUFFER_BYTES ));
+				for ( TarArchiveEntry entry = tar.getNextTarEntry(); null != entry; entry = tar.getNextTarEntry() ) {
+					if ( !entry.isFile() || skipped( entry.getName(), entry.getSize() ))
+						continue;
+					Entry read = readEntry( tar, archive.resolve( entry.getName() ), entry.getSize(), entry.getModTime().getTime() );
+					if ( null == read )
+						continue;
+					count++;
+					if ( !visit( visitor, read ))
+						break;
+				}
+			}
+		}
+		return count;
+	}
+
+	/** Tests if an entry is skipped by its name or size. Size is -1 when a zip does not say. */
+	protected static boolean skipped( String name, long size ) {
+		if ( size > MAX_ENTRY_BYTES ) {
+			System.err.println( "   archive entry \"" + name + "\" over " + ( MAX_ENTRY_BYTES >> 20 ) + " MB skipped." );
+			return true;
+		}
+		for ( String element : name.split( "/" )) {
+			if ( element.startsWith( "." ) || "__MACOSX".equals( element ))
+				return true; // hidden, resource fork, or .. out of the archive
+		}
+		return name.startsWith( "/" );
+	}
+
+	/** Visits an entry, then deletes its temporary file if it has one. */
+	protected static boolean visit( EntryVisitor visitor, Entry entry ) throws IOException {
+		try {
+			return visitor.visit( entry );
+		} finally {
+			if ( null != entry.spool )
+				Files.deleteIfExists( entry.spool );
+		}
+	}
+
+	/**
+	 * Reads the current entry of an archive stream, into memory up to {@link #MEMORY_ENTRY_BYTES}, then into a temporary file.
+	 * @param size size of the entry, or -1 when a zip does not say
+	 * @return the entry, or null if it grew over {@link #MAX_ENTRY_BYTES} and was skipped
+	 */
+	protected static Entry readEntry( InputStream in, Path path, long size, long modifiedMillis ) throws IOException {
+		return readEntry( in, path, size, modifiedMillis, MAX_ENTRY_BYTES );
+	}
+
+	/**
+	 * Reads the current entry of an archive stream, skipping it if it grows over the given bytes.
+	 * A skipped entry is read to its end, so the archive goes on with the next entry.
+	 */
+	protected static Entry readEntry( InputStream in, Path path, long size, long modifiedMillis, long maxBytes ) throws IOException {
+		if (( size >= 0 ) && ( size <= MEMORY_ENTRY_BYTES )) {
+			byte [] content = new byte [ (int) size ]; // read in place, without a copy
+			if (( fill( in, content ) < content.length ) || ( -1 != in.read() ))
+				throw new IOException( "archive entry \"" + path + "\" is not its stated " + size + " bytes" );
+			return new Entry( path, content, modifiedMillis );
+		}
+		byte [] buffer = new byte [ BUFFER_BYTES ];
+		ByteArrayOutputStream memory = new ByteArrayOutputStream( BUFFER_BYTES );
+		int count;
+		while (( memory.size() <= MEMORY_ENTRY_BYTES ) && (( count = in.read( buffer )) > 0 ))
+			memory.write( buffer, 0, count );
+		if ( memory.size() <= MEMORY_ENTRY_BYTES )
+			return new Entry( path, memory.toByteArray(), modifiedMillis );
+
+		Path spool = Files.createTempFile( "metarenamer-entry", ".tmp" );
+		boolean done = false;
+		try {
+			long total = memory.size();
+			try ( OutputStream out = Files.newOutputStream( spool )) {
+				memory.writeTo( out );
+				memory = null;
+				while (( total <= maxBytes ) && (( count = in.read( buffer )) > 0 )) {
+					out.write( buffer, 0, count );
+					total += count;
+				}
+			}
+			if ( total > maxBytes ) {
+				while ( in.read( buffer ) > 0 ) {
+					// drain the rest of the entry
+				}
+				System.err.println( "   archive entry \"" + path + "\" over " + ( maxBytes >> 20 ) + " MB skipped." );
+				return null; // the finally deletes the spool
+			}
+			done = true;
+			return new Entry( path, spool, total, modifiedMillis );
+		} finally {
+			if ( !done )
+				Files.deleteIfExists( spool );
+		}
+	}
+
+	/** Reads until the buffer is full or the stream ends. @return the bytes in the buffer */
+	protected static int fill( InputStream in, byte [] buffer ) throws IOException {
+		int offset = 0;
+		int count;
+		while (( offset < buffer.length ) && (( count = in.read( buffer, offset, buffer.length - offset )) > 0 ))
+			offset += count;
+		return offset;
+	}
+}
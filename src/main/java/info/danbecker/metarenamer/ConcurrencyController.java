@@ -0,0 +1,140 @@
+package info.danbecker.metarenamer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the concurrency of a processing stage at runtime, additive increase and multiplicative decrease.
+ * <p>
+ * Completed operations are measured in windows of {@link #WINDOW_MILLIS}.
+ * While throughput holds or grows and latency stays near the best seen, the limit grows by one.
+ * When latency climbs over {@link #LATENCY_TOLERANCE} times the best seen without more throughput,
+ * the stage is saturated, for example a thrashing disk, and the limit is cut by {@link #DECREASE}.
+ * Every decision is kept, and printed when verbose.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class ConcurrencyController {
+	public static final long WINDOW_MILLIS = 1000;
+	public static final int WINDOW_MIN_OPERATIONS = 4;
+	public static final double LATENCY_TOLERANCE = 1.5;
+	public static final double DECREASE = 0.75;
+	public static final int DECISIONS_KEPT = 100;
+
+	public final String name;
+	public final int min;
+	public final int max;
+	protected final boolean verbose;
+	protected int limit;
+
+	// current window
+	protected long windowStart = System.nanoTime();
+	protected int windowOperations = 0;
+	protected long windowLatencyNanos = 0;
+
+	// history
+	protected double previousThroughput = 0; // operations per second
+	protected double bestLatency = Double.MAX_VALUE; // millis
+	protected int decisionCount = 0;
+	protected final Deque<Decision> decisions = new ArrayDeque<Decision>();
+
+	/** One limit decision, with the window measurements it was based on. */
+	public static class Decision {
+		public final int before;
+		public final int after;
+		public final double throughput;
+		public final double latency;
+		public final String reason;
+
+		public Decision( int before, int after, double throughput, double latency, String reason ) {
+			this.before = before;
+			this.after = after;
+			this.throughput = throughput;
+			this.latency = latency;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "limit %d to %d, %.1f/s, %.1f ms, %s", before, after, throughput, latency, reason );
+		}
+	}
+
+	/** Starts at the minimum limit. */
+	public ConcurrencyController( String name, int min, int max, boolean verbose ) {
+		this.name = name;
+		this.min = Math.max( 1, min );
+		this.max = Math.max( this.min, max );
+		this.verbose = verbose;
+		this.limit = this.min;
+	}
+
+	/** Parses limits in the command line form "min,max", for example "1,16". A single value is the max. */
+	public static ConcurrencyController parse( String name, String limits, boolean verbose ) {
+		String [] values = limits.split( "," );
+		if ( 1 == values.length )
+			return new ConcurrencyController( name, 1, Integer.parseInt( values[ 0 ].trim() ), verbose );
+		return new ConcurrencyController( name, Integer.parseInt( values[ 0 ].trim() ), Integer.parseInt( values[ 1 ].trim() ), verbose );
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/** Records one completed operation. Decides on a new limit at the end of a window. */
+	public void completed( long latencyNanos ) {
+		completed( latencyNanos, System.nanoTime() );
+	}
+
+	protected synchronized void completed( long latencyNanos, long nowNanos ) {
+		windowOperations++;
+		windowLatencyNanos += latencyNanos;
+		long elapsedNanos = nowNanos - windowStart;
+		if (( elapsedNanos < TimeUnit.MILLISECONDS.toNanos( WINDOW_MILLIS )) || ( windowOperations < WINDOW_MIN_OPERATIONS ))
+			return;
+		double throughput = windowOperations * 1e9 / elapsedNanos;
+		double latency = windowLatencyNanos / 1e6 / windowOperations;
+		windowStart = nowNanos;
+		windowOperations = 0;
+		windowLatencyNanos = 0;
+		decide( throughput, latency );
+	}
+
+	/** Adjusts the limit from one window of throughput, in operations per second, and mean latency, in millis. */
+	protected synchronized void decide( double throughput, double latency ) {
+		int before = limit;
+		String reason;
+		bestLatency = Math.min( bestLatency, latency );
+		if (( latency > bestLatency * LATENCY_TOLERANCE ) && ( throughput <= previousThroughput * 1.05 )) {
+			limit = Math.max( min, (int) ( limit * DECREASE ));
+			reason = String.format( "latency %.1fx best without more throughput", latency / bestLatency );
+		} else if ( throughput >= previousThroughput * 0.95 ) {
+			limit = Math.min( max, limit + 1 );
+			reason = ( limit == max ) && ( before == max ) ? "at max" : "throughput held";
+		} else {
+			reason = "throughput fell, holding";
+		}
+		previousThroughput = throughput;
+
+		Decision decision = new Decision( before, limit, throughput, latency, reason );
+		decisionCount++;
+		decisions.addLast( decision );
+		if ( decisions.size() > DECISIONS_KEPT )
+			decisions.removeFirst();
+		if ( verbose )
+			System.out.println( "   concurrency " + name + " " + decision );
+	}
+
+	/** Returns the number of decisions made. */
+	public synchronized int getDecisionCount() {
+		return decisionCount;
+	}
+
+	/** Returns the latest decisions, oldest first. */
+	public synchronized List<Decision> getDecisions() {
+		return new ArrayList<Decision>( decisions );
+	}
+}
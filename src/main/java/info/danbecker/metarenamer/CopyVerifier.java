@@ -0,0 +1,162 @@
+package info.danbecker.metarenamer;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Verifies copies in the background of the walk.
+ * <p>
+ * The source checksum is taken from the bytes as they are copied, so each source is read once.
+ * The copy is then synced to storage, read back, and checked on one of {@link #threads} verify threads while the walk goes on.
+ * The sync makes the device take the data and report write errors, but the read back may still come from
+ * the page cache, since Java can not bypass it, so a fault on the media itself is not always caught.
+ * At most {@link #MAX_PENDING} copies wait for verification, after which copies wait for the verifier.
+ * A mismatch is printed and kept, and the copy is left for inspection. Checksums are CRC32.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class CopyVerifier implements Closeable {
+	public static final int DEFAULT_THREADS = 2;
+	public static final int MAX_PENDING = 64;
+	public static final int BUFFER_BYTES = 256 * 1024;
+
+	public final int threads;
+	protected final ExecutorService executor;
+	protected final Semaphore pending = new Semaphore( MAX_PENDING );
+	public final AtomicInteger verified = new AtomicInteger();
+	protected final List<Mismatch> mismatches = new ArrayList<Mismatch>();
+
+	/** A copy whose checksum is not that of its source when copied. */
+	public static class Mismatch {
+		public final Path source;
+		public final Path target;
+		public final long expected;
+		public final long actual; // -1 if the copy could not be read
+
+		public Mismatch( Path source, Path target, long expected, long actual ) {
+			this.source = source;
+			this.target = target;
+			this.expected = expected;
+			this.actual = actual;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "\"%s\" copied to \"%s\", checksum %08x, copy %08x", source, target, expected, actual );
+		}
+	}
+
+	public CopyVerifier( int threads ) {
+		this.threads = Math.max( 1, threads );
+		executor = Executors.newFixedThreadPool( this.threads, MetaUtils.daemonThreads( "MetaRenamer verifier" ));
+	}
+
+	/** Copies a file without replacing an existing target, keeping its attributes, and checksumming the source bytes. */
+	public static void copy( Path source, Path target, Checksum checksum ) throws IOException {
+		boolean done = false;
+		OutputStream created = Files.newOutputStream( target, CREATE_NEW, WRITE ); // fails before anything is cleaned up
+		try ( OutputStream out = created; InputStream in = Files.newInputStream( source )) {
+			byte [] buffer = new byte[ BUFFER_BYTES ];
+			int count;
+			while (( count = in.read( buffer )) > 0 ) {
+				checksum.update( buffer, 0, count );
+				out.write( buffer, 0, count );
+			}
+			done = true;
+		} finally {
+			if ( !done )
+				Files.deleteIfExists( target );
+		}
+		MetaUtils.copyAttributes( source, target ); // as COPY_ATTRIBUTES does
+	}
+
+	/** Returns the CRC32 of a file. */
+	public static long checksum( Path path ) throws IOException {
+		CRC32 crc = new CRC32();
+		try ( InputStream in = Files.newInputStream( path )) {
+			byte [] buffer = new byte[ BUFFER_BYTES ];
+			int count;
+			while (( count = in.read( buffer )) > 0 )
+				crc.update( buffer, 0, count );
+		}
+		return crc.getValue();
+	}
+
+	/** Checks a copy against its source checksum in the background. Waits if too many copies are waiting already. */
+	public void verify( final Path source, final Path target, final long expected ) throws InterruptedIOException {
+		try {
+			pending.acquire();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "waiting to verify \"" + target + "\"" );
+		}
+		executor.execute( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long actual;
+					try {
+						Durability.syncFile( target );
+						actual = checksum( target );
+					} catch ( IOException e ) {
+						actual = -1;
+					}
+					if ( actual == expected ) {
+						verified.incrementAndGet();
+					} else {
+						Mismatch mismatch = new Mismatch( source, target, expected, actual );
+						synchronized ( mismatches ) {
+							mismatches.add( mismatch );
+						}
+						System.err.println( "   verify mismatch " + mismatch );
+					}
+				} finally {
+					pending.release();
+				}
+			}
+		});
+	}
+
+	/** Waits for every copy so far to be verified. */
+	public void finish() throws InterruptedIOException {
+		try {
+			pending.acquire( MAX_PENDING );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "waiting for verification" );
+		}
+		pending.release( MAX_PENDING );
+	}
+
+	/** Returns the mismatches so far. */
+	public List<Mismatch> getMismatches() {
+		synchronized ( mismatches ) {
+			return new ArrayList<Mismatch>( mismatches );
+		}
+	}
+
+	/** Finishes verification and stops the verify threads. */
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package info.danbecker.metarenamer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Tells a true duplicate from a different file which happens to get the same proposed name.
+ * <p>
+ * Files are only read when their sizes are equal. A partial hash of the first and last
+ * {@link #PARTIAL_BYTES} is compared first, and only files which still match get a full hash.
+ * The two files of a comparison are hashed in parallel, and hashes are cached by path ID,
+ * size, and modified time, so a file which collides many times is read once.
+ * The cache is kept in off-heap columns of a {@link PathDictionary}, not a map of paths.
+ * <p>
+ * Hashes are 64 bits, a CRC32 in the high half and an Adler32 in the low half.
+ * Both are fast JDK checksums, not cryptographic hashes, so before a policy deletes or replaces a file
+ * the bytes are compared directly with {@link #sameBytes(Path, Path)}.
+ * One file under two names, for example by a case only rename or aliased roots, is never a duplicate of itself.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class DuplicateDetector implements Closeable {
+	/** What to do with a source which duplicates an existing destination. */
+	public enum Policy {
+		SKIP,   // report the duplicate and leave both files alone
+		LINK,   // replace the source with a hard link to the destination
+		NEWEST, // keep the newest file at the destination
+	};
+
+	public static final int PARTIAL_BYTES = 64 * 1024;
+	public static final int BUFFER_BYTES = 256 * 1024;
+
+	protected final Policy policy;
+	protected final ExecutorService executor;
+	protected final PathDictionary paths;
+	// Hashes by path ID, with the size and modified time they were made from. Guarded by this detector.
+	protected final PathDictionary.LongColumn sizes = new PathDictionary.LongColumn( -1 );
+	protected final PathDictionary.LongColumn modifieds = new PathDictionary.LongColumn( 0 );
+	protected final PathDictionary.LongColumn partials = new PathDictionary.LongColumn( 0 );
+	protected final PathDictionary.LongColumn fulls = new PathDictionary.LongColumn( 0 );
+	protected final BitSet hasFull = new BitSet();
+	// Existing file and the sources which duplicate it.
+	protected final Map<Path,List<Path>> groups = new LinkedHashMap<Path,List<Path>>();
+
+	/** Hashes of one file in one state, as read from the cache. The full hash is null until computed. */
+	protected static class Digest {
+		final int id;
+		final long size;
+		final long modified;
+		final long partial;
+		final Long full;
+
+		Digest( int id, long size, long modified, long partial, Long full ) {
+			this.id = id;
+			this.size = size;
+			this.modified = modified;
+			this.partial = partial;
+			this.full = full;
+		}
+	}
+
+	public DuplicateDetector( Policy policy ) {
+		this( policy, Math.max( 2, Runtime.getRuntime().availableProcessors() ), new PathDictionary() );
+	}
+
+	/** @param paths dictionary of path IDs, which may be shared with the job */
+	public DuplicateDetector( Policy policy, int threads, PathDictionary paths ) {
+		this.policy = policy;
+		this.paths = paths;
+		this.executor = Executors.newFixedThreadPool( threads, MetaUtils.daemonThreads( "MetaRenamer hash" ));
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/** Tests if two different files have the same contents. Reads only as much as needed to tell. One file is not its own duplicate. */
+	public boolean isDuplicate( final Path source, final Path existing ) throws IOException {
+		if ( Files.isSameFile( source, existing ))
+			return false;
+		BasicFileAttributes sourceAttrs = Files.readAttributes( source, BasicFileAttributes.class );
+		BasicFileAttributes existingAttrs = Files.readAttributes( existing, BasicFileAttributes.class );
+		if ( sourceAttrs.size() != existingAttrs.size() )
+			return false;
+
+		List<Digest> partials = both( new Callable<Digest>() {
+			@Override
+			public Digest call() throws IOException { return digest( source ); }
+		}, new Callable<Digest>() {
+			@Override
+			public Digest call() throws IOException { return digest( existing ); }
+		});
+		if ( partials.get( 0 ).partial != partials.get( 1 ).partial )
+			return false;
+		if ( sourceAttrs.size() <= 2 * PARTIAL_BYTES )
+			return true; // partial hash covered the whole file
+
+		List<Long> fulls = both( new Callable<Long>() {
+			@Override
+			public Long call() throws IOException { return fullHash( source ); }
+		}, new Callable<Long>() {
+			@Override
+			public Long call() throws IOException { return fullHash( existing ); }
+		});
+		return fulls.get( 0 ).longValue() == fulls.get( 1 ).longValue();
+	}
+
+	/** Records a source as a duplicate of an existing file. */
+	public synchronized void addDuplicate( Path existing, Path source ) {
+		List<Path> group = groups.get( existing );
+		if ( null == group ) {
+			group = new ArrayList<Path>();
+			groups.put( existing, group );
+		}
+		group.add( source );
+	}
+
+	/** Returns the existing files with their duplicate sources, in the order found. */
+	public synchronized Map<Path,List<Path>> getGroups() {
+		return new LinkedHashMap<Path,List<Path>>( groups );
+	}
+
+	/** Returns the cached digest of a file, computing the partial hash if the file is new or changed. */
+	protected Digest digest( Path path ) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes( path, BasicFileAttributes.class );
+		long modified = attrs.lastModifiedTime().toMillis();
+		int id = paths.id( path );
+		synchronized ( this ) {
+			if (( sizes.get( id ) == attrs.size() ) && ( modifieds.get( id ) == modified ))
+				return new Digest( id, attrs.size(), modified, partials.get( id ), hasFull.get( id ) ? fulls.get( id ) : null );
+		}
+		long partial = partialHash( path, attrs.size() ); // outside the lock, so the two files hash in parallel
+		synchronized ( this ) {
+			sizes.put( id, attrs.size() );
+			modifieds.put( id, modified );
+			partials.put( id, partial );
+			hasFull.clear( id );
+		}
+		return new Digest( id, attrs.size(), modified, partial, null );
+	}
+
+	/** Returns the cached full hash of a file. */
+	protected long fullHash( Path path ) throws IOException {
+		Digest digest = digest( path );
+		if ( null != digest.full )
+			return digest.full;
+		long full;
+		try ( InputStream in = Files.newInputStream( path )) {
+			full = hash( in );
+		}
+		synchronized ( this ) {
+			if (( sizes.get( digest.id ) == digest.size ) && ( modifieds.get( digest.id ) == digest.modified )) {
+				fulls.put( digest.id, full );
+				hasFull.set( digest.id );
+			}
+		}
+		return full;
+	}
+
+	/** Compares two files byte by byte. */
+	public static boolean sameBytes( Path first, Path second ) throws IOException {
+		if ( Files.size( first ) != Files.size( second ))
+			return false;
+		byte [] firstBuffer = new byte[ BUFFER_BYTES ];
+		byte [] secondBuffer = new byte[ BUFFER_BYTES ];
+		try ( InputStream firstIn = Files.newInputStream( first ); InputStream secondIn = Files.newInputStream( second )) {
+			while ( true ) {
+				int count = fill( firstIn, firstBuffer );
+				if ( count != fill( secondIn, secondBuffer ))
+					return false;
+				if ( 0 == count )
+					return true;
+				if ( !ByteBuffer.wrap( firstBuffer, 0, count ).equals( ByteBuffer.wrap( secondBuffer, 0, count )))
+					return false;
+			}
+		}
+	}
+
+	/** Reads until the buffer is full or the stream ends. @return the bytes read */
+	private static int fill( InputStream in, byte [] buffer ) throws IOException {
+		int total = 0, count;
+		while (( total < buffer.length ) && (( count = in.read( buffer, total, buffer.length - total )) > 0 ))
+			total += count;
+		return total;
+	}
+
+	/** Hashes the size and the first and last PARTIAL_BYTES of a file. */
+	public static long partialHash( Path path, long size ) throws IOException {
+		CRC32 crc = new CRC32();
+		Adler32 adler = new Adler32();
+		ByteBuffer buffer = ByteBuffer.allocate( PARTIAL_BYTES );
+		try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ )) {
+			update( channel, 0, buffer, crc, adler );
+			if ( size > PARTIAL_BYTES )
+				update( channel, Math.max( PARTIAL_BYTES, size - PARTIAL_BYTES ), buffer, crc, adler );
+		}
+		return ( crc.getValue() << 32 ) ^ adler.getValue() ^ size;
+	}
+
+	/** Hashes a whole stream. */
+	public static long hash( InputStream in ) throws IOException {
+		CRC32 crc = new CRC32();
+		Adler32 adler = new Adler32();
+		byte [] buffer = new byte[ BUFFER_BYTES ];
+		int count;
+		while (( count = in.read( buffer )) > 0 ) {
+			crc.update( buffer, 0, count );
+			adler.update( buffer, 0, count );
+		}
+		return ( crc.getValue() << 32 ) | adler.getValue();
+	}
+
+	private static void update( FileChannel channel, long position, ByteBuffer buffer, Checksum... checksums ) throws IOException {
+		buffer.clear();
+		while ( buffer.hasRemaining() ) {
+			int count = channel.read( buffer, position + buffer.position() );
+			if ( count < 0 )
+				break;
+		}
+		buffer.flip();
+		for ( Checksum checksum : checksums )
+			checksum.update( buffer.array(), 0, buffer.limit() );
+	}
+
+	/** Runs two tasks in parallel and returns both results. */
+	protected <T> List<T> both( Callable<T> first, Callable<T> second ) throws IOException {
+		Future<T> future = executor.submit( second );
+		List<T> results = new ArrayList<T>( 2 );
+		try {
+			results.add( first.call() );
+			results.add( future.get() );
+		} catch ( ExecutionException e ) {
+			if ( e.getCause() instanceof IOException )
+				throw (IOException) e.getCause();
+			throw new IOException( e.getCause() );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		} catch ( IOException e ) {
+			throw e;
+		} catch ( Exception e ) {
+			throw new IOException( e );
+		}
+		return results;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,142 @@
+package info.danbecker.metarenamer;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forces copied and moved files, and the directories which name them, to storage.
+ * <p>
+ * A copy is durable once its data is synced, and a rename once the directories on both sides are synced,
+ * so each landed file queues its own data, the directories it was created in up to {@link #levels} above it,
+ * and for a move the directory it left. The policy sets when the queue is synced:
+ * <ul>
+ * <li>NONE never, for the most throughput. The operating system writes back in its own time.
+ * <li>FILE as each file lands, so a crash loses at most the file in hand.
+ * <li>DIRECTORY as the walk leaves each source directory, so a crash loses at most one album.
+ * The walk first waits for the files of the directory which are batched or still with workers.
+ * <li>RUN once as the run ends, which syncs each directory once however many files it got.
+ * </ul>
+ * A duplicate policy which links, replaces, or deletes a file queues the file or directory it changed.
+ * Directories which can not be opened for sync, as on Windows, are skipped.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class Durability {
+	public enum Policy { NONE, FILE, DIRECTORY, RUN };
+
+	public final Policy policy;
+	public final int levels; // directories above a landed file which it may have created
+	protected final Set<Path> files = new LinkedHashSet<Path>();
+	protected final Set<Path> dirs = new LinkedHashSet<Path>();
+	public final AtomicInteger filesSynced = new AtomicInteger();
+	public final AtomicInteger dirsSynced = new AtomicInteger();
+
+	public Durability( Policy policy, int levels ) {
+		this.policy = policy;
+		this.levels = Math.max( 1, levels );
+	}
+
+	/** Queues a copied or moved file, and syncs at once for the FILE policy. @param left directory a moved file left, null for a copy */
+	public void landed( Path file, Path left ) throws IOException {
+		if ( Policy.NONE == policy )
+			return;
+		synchronized ( this ) {
+			files.add( file );
+			Path dir = file.getParent();
+			for ( int level = 0; ( null != dir ) && ( level < levels ); level++, dir = dir.getParent() )
+				dirs.add( dir );
+			if ( null != left )
+				dirs.add( left );
+		}
+		if ( Policy.FILE == policy )
+			flush();
+	}
+
+	/** Queues a file replaced in place, which created no directories. @param left directory a file was moved from to replace it, or null */
+	public void replaced( Path file, Path left ) throws IOException {
+		if ( Policy.NONE == policy )
+			return;
+		synchronized ( this ) {
+			files.add( file );
+			dirs.add( file.getParent() );
+			if ( null != left )
+				dirs.add( left );
+		}
+		if ( Policy.FILE == policy )
+			flush();
+	}
+
+	/** Queues the directory of a deleted file. */
+	public void removed( Path file ) throws IOException {
+		if ( Policy.NONE == policy )
+			return;
+		synchronized ( this ) {
+			dirs.add( file.getParent() );
+		}
+		if ( Policy.FILE == policy )
+			flush();
+	}
+
+	/** Syncs the queue at the end of a source directory for the DIRECTORY policy. */
+	public void directoryDone() throws IOException {
+		if ( Policy.DIRECTORY == policy )
+			flush();
+	}
+
+	/** Syncs the queued files, then their directories. */
+	public void flush() throws IOException {
+		List<Path> syncFiles, syncDirs;
+		synchronized ( this ) {
+			if ( files.isEmpty() && dirs.isEmpty() )
+				return;
+			syncFiles = new ArrayList<Path>( files );
+			syncDirs = new ArrayList<Path>( dirs );
+			files.clear();
+			dirs.clear();
+		}
+		for ( Path file : syncFiles ) {
+			if ( syncFile( file ))
+				filesSynced.incrementAndGet();
+		}
+		for ( Path dir : syncDirs ) {
+			if ( syncDirectory( dir ))
+				dirsSynced.incrementAndGet();
+		}
+	}
+
+	/** Forces a file's data and attributes to storage. @return false if the file is gone */
+	public static boolean syncFile( Path file ) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open( file, WRITE ); // Windows flushes only writable handles
+		} catch ( AccessDeniedException e ) {
+			channel = FileChannel.open( file, READ ); // a read only copy, enough elsewhere
+		} catch ( NoSuchFileException e ) {
+			return false; // moved on since, for example by a directory rename
+		}
+		try ( FileChannel open = channel ) {
+			open.force( true );
+		}
+		return true;
+	}
+
+	/** Forces a directory's entries to storage. @return false if directories can not be synced here */
+	public static boolean syncDirectory( Path dir ) {
+		try ( FileChannel channel = FileChannel.open( dir, READ )) {
+			channel.force( true );
+			return true;
+		} catch ( IOException e ) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package info.danbecker.metarenamer;
+
+import java.text.Normalizer;
+
+/**
+ * Replaces characters in metadata values which a target file system does not allow in names.
+ * <p>
+ * A rule set is compiled once into a table for the ASCII characters, so a value is sanitized
+ * in one pass, appended straight into the caller's name buffer. A value which needs no change is
+ * appended as is, without a copy. Values which do change, or which are normalized, are kept in a
+ * small cache, since the same artist and album values come again for every track.
+ * <p>
+ * Rules for whole names, the length limit and the Windows reserved names and trailing dots and spaces,
+ * are applied by {@link #finishSegment(StringBuilder, int)} to each path segment once it is assembled.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class FileNameSanitizer {
+	public static final int CACHE_SIZE = 256; // a power of 2
+	public static final char DROP = 0; // table entry for a character which is removed
+	public static final int FAT32_NAME_LENGTH = 255;
+	public static final int MAX_EXTENSION = 16; // longest extension kept when a name is cut
+	/** Device names Windows reserves, with or without an extension. */
+	public static final String [] RESERVED_NAMES = { "CON", "PRN", "AUX", "NUL",
+		"COM1", "COM2", "COM3", "COM4", "COM5", "COM6", "COM7", "COM8", "COM9",
+		"LPT1", "LPT2", "LPT3", "LPT4", "LPT5", "LPT6", "LPT7", "LPT8", "LPT9" };
+
+	/** Rule sets by target file system. */
+	public enum Rules {
+		/** The replacements MetaRenamer always made, safe on Windows and POSIX. */
+		DEFAULT( "\"'/!\\!|!?!*+:,", false, false, false, 0 ),
+		/** DEFAULT, with angle brackets to parentheses, control characters removed, and Windows name rules. */
+		WINDOWS( "\"'/!\\!|!?!*+:,<(>)", true, false, true, 0 ),
+		/** Only the path separator is replaced. */
+		POSIX( "/!", false, false, false, 0 ),
+		/** POSIX, with the colon the Finder shows as a slash, and names decomposed as HFS+ stores them. */
+		MACOS( "/!:,", false, true, false, 0 ),
+		/** WINDOWS, with each path segment cut to the longest FAT32 name. */
+		FAT32( "\"'/!\\!|!?!*+:,<(>)", true, false, true, FAT32_NAME_LENGTH );
+
+		public final String replacements; // pairs of character and replacement
+		public final boolean dropControls;
+		public final boolean nfd;
+		public final boolean windowsNames; // no reserved device names, no trailing dots or spaces
+		public final int maxLength; // of a path segment, 0 for no limit
+
+		Rules( String replacements, boolean dropControls, boolean nfd, boolean windowsNames, int maxLength ) {
+			this.replacements = replacements;
+			this.dropControls = dropControls;
+			this.nfd = nfd;
+			this.windowsNames = windowsNames;
+			this.maxLength = maxLength;
+		}
+	}
+
+	/** The default sanitizer, as used by {@link MetaUtils#escapeChars(String)}. */
+	public static final FileNameSanitizer DEFAULT = new FileNameSanitizer( Rules.DEFAULT );
+
+	public final Rules rules;
+	protected final char [] table = new char [ 128 ]; // ASCII character to its replacement, itself, or DROP
+	protected final Cached [] cache = new Cached [ CACHE_SIZE ];
+
+	/** A value and its sanitized form. Immutable, so the cache may be shared by threads without locks. */
+	protected static class Cached {
+		final String value;
+		final String sanitized;
+
+		Cached( String value, String sanitized ) {
+			this.value = value;
+			this.sanitized = sanitized;
+		}
+	}
+
+	public FileNameSanitizer( Rules rules ) {
+		this.rules = rules;
+		for ( char c = 0; c < table.length; c++ )
+			table[ c ] = ( rules.dropControls && ( c < ' ' || c == 127 )) ? DROP : c;
+		table[ 0 ] = DROP; // no file system takes a NUL
+		for ( int i = 0; i < rules.replacements.length(); i += 2 )
+			table[ rules.replacements.charAt( i ) ] = rules.replacements.charAt( i + 1 );
+	}
+
+	/** Appends the sanitized value to a name. */
+	public void append( String value, StringBuilder name ) {
+		if ( clean( value ))
+			name.append( value );
+		else
+			name.append( cached( value ));
+	}
+
+	/** Returns the sanitized value. */
+	public String sanitize( String value ) {
+		return clean( value ) ? value : cached( value );
+	}
+
+	/** Tests if whole path segments need {@link #finishSegment(StringBuilder, int)}. */
+	public boolean checksSegments() {
+		return rules.windowsNames || ( rules.maxLength > 0 );
+	}
+
+	/**
+	 * Applies the rules for whole names to the path segment of a name from start to its end.
+	 * A reserved device name gets an underscore after it, a long segment is cut keeping its extension,
+	 * and trailing dots and spaces, which Windows drops, are removed. A segment left empty becomes an underscore.
+	 */
+	public void finishSegment( StringBuilder name, int start ) {
+		if ( rules.windowsNames ) {
+			int stemEnd = name.indexOf( ".", start );
+			if ( -1 == stemEnd )
+				stemEnd = name.length();
+			String stem = name.substring( start, stemEnd ).trim();
+			for ( String reserved : RESERVED_NAMES ) {
+				if ( reserved.equalsIgnoreCase( stem )) {
+					name.insert( stemEnd, '_' );
+					break;
+				}
+			}
+		}
+		if (( rules.maxLength > 0 ) && ( name.length() - start > rules.maxLength )) {
+			String extension = "";
+			int dot = name.lastIndexOf( "." );
+			if (( dot > start ) && ( name.length() - dot <= MAX_EXTENSION )) {
+				extension = name.substring( dot );
+				name.setLength( dot );
+			}
+			int end = start + rules.maxLength - extension.length();
+			if ( Character.isHighSurrogate( name.charAt( end - 1 )))
+				end--; // keep pairs whole
+			name.setLength( end );
+			name.append( extension );
+		}
+		if ( rules.windowsNames ) {
+			int end = name.length();
+			while (( end > start ) && (( '.' == name.charAt( end - 1 )) || ( ' ' == name.charAt( end - 1 ))))
+				end--;
+			name.setLength( end );
+		}
+		if ( name.length() == start )
+			name.append( '_' );
+	}
+
+	/** Tests if a value is left as is. */
+	protected boolean clean( String value ) {
+		int length = value.length();
+		for ( int i = 0; i < length; i++ ) {
+			char c = value.charAt( i );
+			if ( c < 128 ? table[ c ] != c : rules.nfd )
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the sanitized value from the cache, or makes it and caches it. */
+	protected String cached( String value ) {
+		int slot = value.hashCode() & ( CACHE_SIZE - 1 );
+		Cached cached = cache[ slot ];
+		if (( null != cached ) && cached.value.equals( value ))
+			return cached.sanitized;
+		String sanitized = sanitizeUncached( value );
+		cache[ slot ] = new Cached( value, sanitized );
+		return sanitized;
+	}
+
+	/** Sanitizes in one pass over the value. */
+	protected String sanitizeUncached( String value ) {
+		if ( rules.nfd )
+			value = Normalizer.normalize( value, Normalizer.Form.NFD );
+		StringBuilder out = new StringBuilder( value.length() );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			if ( c >= 128 )
+				out.append( c );
+			else if ( DROP != table[ c ] )
+				out.append( table[ c ] );
+		}
+		return out.toString();
+	}
+}
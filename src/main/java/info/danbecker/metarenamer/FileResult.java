@@ -0,0 +1,64 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of visiting one file, as reported by MetaRenamer.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class FileResult {
+	public enum Outcome {
+		IGNORED,   // media type not renamed
+		UNCHANGED, // file already has the proposed name
+		PROPOSED,  // rename proposed, no action mode
+		COPIED,
+		MOVED,
+		COLLIDED,  // proposed file already exists
+		DUPLICATE, // proposed file already exists with the same contents
+		QUARANTINED, // over its parse budget, now or in an earlier run
+		FAILED,
+	};
+
+	public final Path source;
+	public final Path destination; // null if no name was proposed
+	public final String mediaType;
+	public final Outcome outcome;
+	public final List<String> missingKeys;
+	public final Exception exception; // null unless FAILED with an exception
+	public final List<Path> views; // destinations in the other views, empty if none
+
+	public FileResult( Path source, Path destination, String mediaType, Outcome outcome, List<String> missingKeys ) {
+		this( source, destination, mediaType, outcome, missingKeys, null );
+	}
+
+	public FileResult( Path source, Path destination, String mediaType, Outcome outcome, List<String> missingKeys, Exception exception ) {
+		this( source, destination, mediaType, outcome, missingKeys, exception, null );
+	}
+
+	public FileResult( Path source, Path destination, String mediaType, Outcome outcome, List<String> missingKeys, Exception exception, List<Path> views ) {
+		this.source = source;
+		this.destination = destination;
+		this.mediaType = mediaType;
+		this.outcome = outcome;
+		this.missingKeys = ( null == missingKeys ) ? Collections.<String>emptyList() : Collections.unmodifiableList( missingKeys );
+		this.exception = exception;
+		this.views = ( null == views ) ? Collections.<Path>emptyList() : Collections.unmodifiableList( views );
+	}
+
+	/** Returns this result with the given view destinations. */
+	public FileResult withViews( List<Path> views ) {
+		return new FileResult( source, destination, mediaType, outcome, missingKeys, exception, views );
+	}
+
+	public static FileResult failed( Path source, Exception exception ) {
+		return new FileResult( source, null, null, Outcome.FAILED, null, exception );
+	}
+
+	@Override
+	public String toString() {
+		return outcome + " \"" + source + "\"" + (( null == destination ) ? "" : " to \"" + destination + "\"" );
+	}
+}
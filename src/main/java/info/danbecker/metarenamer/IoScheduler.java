@@ -0,0 +1,251 @@
+package info.danbecker.metarenamer;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+/**
+ * Limits file reads and writes per storage device.
+ * <p>
+ * Operations are grouped by the {@link FileStore} of their paths. Each device allows
+ * at most {@link #reads} concurrent reads and {@link #writes} concurrent writes,
+ * and is paced to at most {@link #bytesPerSecond}, so a busy NAS or spinning disk
+ * is not thrashed or starved of bandwidth for other clients.
+ * A copy takes a read permit on the source device before a write permit on the
+ * destination device, always in that order, so permits can not deadlock.
+ * The device of each recent parent directory is cached, since looking up a FileStore
+ * scans the mount table, and a walk asks for the same directories file after file.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class IoScheduler {
+	public static final int BUFFER_BYTES = 256 * 1024;
+	public static final int DIRECTORY_CACHE_SIZE = 1024;
+
+	public final int reads; // concurrent reads per device
+	public final int writes; // concurrent writes per device
+	public final long bytesPerSecond; // per device, 0 for no limit
+
+	protected final ConcurrentMap<FileStore,Device> devices = new ConcurrentHashMap<FileStore,Device>();
+	// Device by parent directory, least recently used dropped first. Guarded by itself.
+	protected final Map<Path,Device> directories = new LinkedHashMap<Path,Device>( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Path,Device> eldest ) {
+			return size() > DIRECTORY_CACHE_SIZE;
+		}
+	};
+
+	/** Permits, pacing, and byte counts of one FileStore. */
+	public static class Device {
+		public final FileStore store;
+		protected final Semaphore reads;
+		protected final Semaphore writes;
+		protected final long bytesPerSecond;
+		protected long nextFreeNanos = System.nanoTime();
+		public final AtomicLong bytesRead = new AtomicLong();
+		public final AtomicLong bytesWritten = new AtomicLong();
+
+		protected Device( FileStore store, int reads, int writes, long bytesPerSecond ) {
+			this.store = store;
+			this.reads = new Semaphore( reads, true );
+			this.writes = new Semaphore( writes, true );
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/** Waits until the device has bandwidth for the given bytes. */
+		protected void pace( long bytes ) throws InterruptedIOException {
+			if ( bytesPerSecond <= 0 )
+				return;
+			long waitNanos;
+			synchronized ( this ) {
+				long now = System.nanoTime();
+				long start = Math.max( now, nextFreeNanos );
+				nextFreeNanos = start + bytes * TimeUnit.SECONDS.toNanos( 1 ) / bytesPerSecond;
+				waitNanos = start - now;
+			}
+			if ( waitNanos > 0 ) {
+				try {
+					TimeUnit.NANOSECONDS.sleep( waitNanos );
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException( "paced I/O interrupted" );
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "\"" + store.name() + "\" read/written MB " + ( bytesRead.get() >> 20 ) + "/" + ( bytesWritten.get() >> 20 );
+		}
+	}
+
+	/**
+	 * @param reads concurrent reads per device
+	 * @param writes concurrent writes per device
+	 * @param megabytesPerSecond bandwidth per device, 0 for no limit
+	 */
+	public IoScheduler( int reads, int writes, int megabytesPerSecond ) {
+		this.reads = Math.max( 1, reads );
+		this.writes = Math.max( 1, writes );
+		this.bytesPerSecond = Math.max( 0, megabytesPerSecond ) * 1024L * 1024L;
+	}
+
+	/** Parses limits in the command line form "reads,writes,MB/s", for example "2,1,40". Missing values are 1,1,0. */
+	public static IoScheduler parse( String limits ) {
+		String [] values = limits.split( "," );
+		int [] ints = new int [] { 1, 1, 0 };
+		for ( int i = 0; i < Math.min( values.length, ints.length ); i++ ) {
+			if ( values[ i ].trim().length() > 0 )
+				ints[ i ] = Integer.parseInt( values[ i ].trim() );
+		}
+		return new IoScheduler( ints[ 0 ], ints[ 1 ], ints[ 2 ] );
+	}
+
+	/** Returns the device of a file, or of its nearest existing parent for a file not yet created. Cached by parent directory. */
+	public Device device( Path path ) throws IOException {
+		Path absolute = path.toAbsolutePath();
+		Path directory = ( null == absolute.getParent() ) ? absolute : absolute.getParent();
+		synchronized ( directories ) {
+			Device device = directories.get( directory );
+			if ( null != device )
+				return device;
+		}
+		Device device = lookup( directory );
+		synchronized ( directories ) {
+			directories.put( directory, device );
+		}
+		return device;
+	}
+
+	/** Looks up the FileStore of a path, or of its nearest existing parent, and returns its device. */
+	protected Device lookup( Path path ) throws IOException {
+		Path existing = path;
+		while (( null != existing.getParent() ) && !Files.exists( existing ))
+			existing = existing.getParent();
+		FileStore store = Files.getFileStore( existing );
+		Device device = devices.get( store );
+		if ( null == device ) {
+			Device created = new Device( store, reads, writes, bytesPerSecond );
+			device = devices.putIfAbsent( store, created );
+			if ( null == device )
+				device = created;
+		}
+		return device;
+	}
+
+	/** Returns the devices used so far. */
+	public List<Device> getDevices() {
+		return new ArrayList<Device>( devices.values() );
+	}
+
+	/** Waits for a read permit on the device of the path. Use for reads which are not paced, such as parsing. @return the device to release */
+	public Device acquireRead( Path path ) throws IOException {
+		Device device = device( path );
+		acquire( device.reads );
+		return device;
+	}
+
+	/** Releases a read permit from {@link #acquireRead(Path)}. */
+	public void releaseRead( Device device ) {
+		device.reads.release();
+	}
+
+	/** Copies a file without replacing an existing target, keeping its attributes. */
+	public void copy( Path source, Path target ) throws IOException {
+		copy( source, target, null );
+	}
+
+	/** Copies a file, updating the checksum with the source bytes as they are read. */
+	public void copy( Path source, Path target, Checksum checksum ) throws IOException {
+		Device from = device( source );
+		Device to = device( target );
+		acquire( from.reads );
+		try {
+			acquire( to.writes );
+			try {
+				transfer( source, target, from, to, checksum );
+			} finally {
+				to.writes.release();
+			}
+		} finally {
+			from.reads.release();
+		}
+	}
+
+	/** Moves a file without replacing an existing target. Between devices this is a paced copy, keeping the attributes, and a delete. */
+	public void move( Path source, Path target ) throws IOException {
+		Device from = device( source );
+		Device to = device( target );
+		if ( from == to ) {
+			acquire( to.writes );
+			try {
+				Files.move( source, target ); // a rename, no data moves
+			} finally {
+				to.writes.release();
+			}
+			return;
+		}
+		copy( source, target, null );
+		Files.delete( source );
+	}
+
+	/** Copies the bytes in paced chunks, and through the checksum if there is one. Removes a partial target on failure. */
+	protected void transfer( Path source, Path target, Device from, Device to, Checksum checksum ) throws IOException {
+		if (( from.bytesPerSecond <= 0 ) && ( to.bytesPerSecond <= 0 ) && ( null == checksum )) {
+			long size = Files.size( source );
+			Files.copy( source, target, COPY_ATTRIBUTES ); // no REPLACE_EXISTING
+			from.bytesRead.addAndGet( size );
+			to.bytesWritten.addAndGet( size );
+			return;
+		}
+		boolean done = false;
+		OutputStream created = Files.newOutputStream( target, CREATE_NEW, WRITE ); // fails before anything is cleaned up
+		try ( OutputStream out = created; InputStream in = Files.newInputStream( source )) {
+			byte [] buffer = new byte[ BUFFER_BYTES ];
+			int count;
+			while (( count = in.read( buffer )) > 0 ) {
+				from.pace( count );
+				to.pace( count );
+				if ( null != checksum )
+					checksum.update( buffer, 0, count );
+				out.write( buffer, 0, count );
+				from.bytesRead.addAndGet( count );
+				to.bytesWritten.addAndGet( count );
+			}
+			done = true;
+		} finally {
+			if ( !done )
+				Files.deleteIfExists( target );
+		}
+		MetaUtils.copyAttributes( source, target ); // as COPY_ATTRIBUTES does
+	}
+
+	/** Acquires a permit. The caller releases it in a finally block. */
+	protected static void acquire( Semaphore permits ) throws InterruptedIOException {
+		try {
+			permits.acquire();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "waiting for I/O permit" );
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package info.danbecker.metarenamer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.tika.metadata.Metadata;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+
+/**
+ * A filter expression over file attributes and metadata, compiled once and tested per file.
+ * <p>
+ * For example <code>size &gt; 10MB and mtime &gt;= 2015-01-01 and xmpDM:genre = Jazz</code>.
+ * Comparisons are joined with and, or, not, and parentheses, and compare with
+ * = != &lt; &lt;= &gt; &gt;=. Values with spaces are quoted.
+ * The attribute fields are size (with KB, MB, GB units), mtime, ctime (as yyyy-MM-dd or yyyy-MM-dd'T'HH:mm:ss),
+ * name, ext, and path. Any other field is a metadata key, compared as a number when both sides are numbers,
+ * otherwise as text ignoring case.
+ * <p>
+ * Tests are three valued. Without metadata, a metadata comparison is unknown, so the walker
+ * can drop files which fail on attributes alone before they are opened, and only files which
+ * might pass are parsed and tested again with their metadata.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class MetaFilter {
+	public static final String [] ATTRIBUTE_FIELDS = { "size", "mtime", "ctime", "name", "ext", "path" };
+
+	public final String expression;
+	protected final Node root;
+	protected final Set<String> metadataKeys;
+
+	/** A compiled expression. Test returns TRUE, FALSE, or null for unknown. */
+	protected interface Node {
+		Boolean test( Path path, BasicFileAttributes attrs, Metadata metadata );
+		boolean needsMetadata();
+	}
+
+	protected MetaFilter( String expression, Node root, Set<String> metadataKeys ) {
+		this.expression = expression;
+		this.root = root;
+		this.metadataKeys = metadataKeys;
+	}
+
+	/** Compiles an expression. @throws IllegalArgumentException for a malformed expression */
+	public static MetaFilter compile( String expression ) {
+		Compiler compiler = new Compiler( tokens( expression ));
+		Node root = compiler.or();
+		if ( compiler.position < compiler.tokens.size() )
+			throw new IllegalArgumentException( "filter has extra \"" + compiler.tokens.get( compiler.position ) + "\" in \"" + expression + "\"" );
+		return new MetaFilter( expression, root, compiler.metadataKeys );
+	}
+
+	/** Tests a file. @param metadata null before parsing @return TRUE, FALSE, or null if only metadata can tell */
+	public Boolean test( Path path, BasicFileAttributes attrs, Metadata metadata ) {
+		return root.test( path, attrs, metadata );
+	}
+
+	/** Tests a parsed file, reading its attributes. */
+	public boolean test( Path path, Metadata metadata ) throws IOException {
+		return Boolean.TRUE.equals( root.test( path, Files.readAttributes( path, BasicFileAttributes.class ), metadata ));
+	}
+
+	/** Returns the metadata keys compared, which a MetaRecord must keep. */
+	public Set<String> getMetadataKeys() {
+		return metadataKeys;
+	}
+
+	/** Tests if any comparison is on metadata, so parsed files must be tested again. */
+	public boolean needsMetadata() {
+		return root.needsMetadata();
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	protected static List<String> tokens( String expression ) {
+		List<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while ( i < expression.length() ) {
+			char c = expression.charAt( i );
+			if ( Character.isWhitespace( c )) {
+				i++;
+			} else if (( '(' == c ) || ( ')' == c )) {
+				tokens.add( String.valueOf( c ));
+				i++;
+			} else if (( '"' == c ) || ( '\'' == c )) {
+				int end = expression.indexOf( c, i + 1 );
+				if ( -1 == end )
+					throw new IllegalArgumentException( "filter has unclosed quote in \"" + expression + "\"" );
+				tokens.add( expression.substring( i, end + 1 ));
+				i = end + 1;
+			} else {
+				int start = i;
+				boolean operator = isOperator( c );
+				while (( i < expression.length() ) && ( isOperator( expression.charAt( i )) == operator ) &&
+					!Character.isWhitespace( expression.charAt( i )) && ( "()\"'".indexOf( expression.charAt( i )) == -1 ))
+					i++;
+				tokens.add( expression.substring( start, i ));
+			}
+		}
+		return tokens;
+	}
+
+	protected static boolean isOperator( char c ) {
+		return ( '=' == c ) || ( '!' == c ) || ( '<' == c ) || ( '>' == c );
+	}
+
+	/** Recursive descent over or, and, not, and comparisons. */
+	protected static class Compiler {
+		protected final List<String> tokens;
+		protected int position = 0;
+		protected final Set<String> metadataKeys = new LinkedHashSet<String>();
+
+		protected Compiler( List<String> tokens ) {
+			this.tokens = tokens;
+		}
+
+		protected String next() {
+			if ( position >= tokens.size() )
+				throw new IllegalArgumentException( "filter ends early after \"" + String.join( " ", tokens ) + "\"" );
+			return tokens.get( position++ );
+		}
+
+		protected boolean accept( String keyword ) {
+			if (( position < tokens.size() ) && keyword.equalsIgnoreCase( tokens.get( position ))) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		protected Node or() {
+			Node left = and();
+			while ( accept( "or" ))
+				left = new Or( left, and() );
+			return left;
+		}
+
+		protected Node and() {
+			Node left = not();
+			while ( accept( "and" ))
+				left = new And( left, not() );
+			return left;
+		}
+
+		protected Node not() {
+			if ( accept( "not" ))
+				return new Not( not() );
+			if ( accept( "(" )) {
+				Node node = or();
+				if ( !accept( ")" ))
+					throw new IllegalArgumentException( "filter is missing \")\"" );
+				return node;
+			}
+			String field = next();
+			String operator = next();
+			if ( !Comparison.OPERATORS.contains( " " + operator + " " ))
+				throw new IllegalArgumentException( "filter has unknown operator \"" + operator + "\" after \"" + field + "\"" );
+			Comparison comparison = new Comparison( field, operator, unquote( next() ));
+			if ( comparison.needsMetadata() )
+				metadataKeys.add( field );
+			return comparison;
+		}
+	}
+
+	protected static String unquote( String value ) {
+		if (( value.length() >= 2 ) && (( '"' == value.charAt( 0 )) || ( '\'' == value.charAt( 0 ))))
+			return value.substring( 1, value.length() - 1 );
+		return value;
+	}
+
+	protected static class And implements Node {
+		protected final Node left, right;
+
+		protected And( Node left, Node right ) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Boolean test( Path path, BasicFileAttributes attrs, Metadata metadata ) {
+			Boolean a = left.test( path, attrs, metadata );
+			if ( Boolean.FALSE.equals( a ))
+				return false;
+			Boolean b = right.test( path, attrs, metadata );
+			if ( Boolean.FALSE.equals( b ))
+				return false;
+			return (( null == a ) || ( null == b )) ? null : true;
+		}
+
+		@Override
+		public boolean needsMetadata() {
+			return left.needsMetadata() || right.needsMetadata();
+		}
+	}
+
+	protected static class Or implements Node {
+		protected final Node left, right;
+
+		protected Or( Node left, Node right ) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Boolean test( Path path, BasicFileAttributes attrs, Metadata metadata ) {
+			Boolean a = left.test( path, attrs, metadata );
+			if ( Boolean.TRUE.equals( a ))
+				return true;
+			Boolean b = right.test( path, attrs, metadata );
+			if ( Boolean.TRUE.equals( b ))
+				return true;
+			return (( null == a ) || ( null == b )) ? null : false;
+		}
+
+		@Override
+		public boolean needsMetadata() {
+			return left.needsMetadata() || right.needsMetadata();
+		}
+	}
+
+	protected static class Not implements Node {
+		protected final Node node;
+
+		protected Not( Node node ) {
+			this.node = node;
+		}
+
+		@Override
+		public Boolean test( Path path, BasicFileAttributes attrs, Metadata metadata ) {
+			Boolean value = node.test( path, attrs, metadata );
+			return ( null == value ) ? null : !value;
+		}
+
+		@Override
+		public boolean needsMetadata() {
+			return node.needsMetadata();
+		}
+	}
+
+	/** One field compared with one value. Numbers, dates, and sizes are parsed once, at compile time. */
+	protected static class Comparison implements Node {
+		public static final String OPERATORS = " = != < <= > >= ";
+
+		protected final String field;
+		protected final String operator;
+		protected final String value;
+		protected final boolean attribute;
+		protected final Double number; // value as a number, null if not one
+
+		protected Comparison( String field, String operator, String value ) {
+			this.field = field;
+			this.operator = operator;
+			this.value = value;
+			this.attribute = isAttribute( field );
+			if ( "size".equals( field ))
+				number = (double) parseSize( value );
+			else if ( "mtime".equals( field ) || "ctime".equals( field ))
+				number = (double) parseDate( value );
+			else
+				number = parseNumber( value );
+		}
+
+		protected static boolean isAttribute( String field ) {
+			for ( String name : ATTRIBUTE_FIELDS ) {
+				if ( name.equals( field ))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean needsMetadata() {
+			return !attribute;
+		}
+
+		@Override
+		public Boolean test( Path path, BasicFileAttributes attrs, Metadata metadata ) {
+			if ( attribute ) {
+				switch ( field ) {
+				case "size": return compare( Double.compare( attrs.size(), number ));
+				case "mtime": return compare( Double.compare( attrs.lastModifiedTime().toMillis(), number ));
+				case "ctime": return compare( Double.compare( attrs.creationTime().toMillis(), number ));
+				case "name": return compare( path.getFileName().toString() );
+				case "ext": {
+					String name = path.getFileName().toString();
+					return compare( name.substring( name.lastIndexOf( '.' ) + 1 ));
+				}
+				default: return compare( path.toString() );
+				}
+			}
+			if ( null == metadata )
+				return null;
+			String given = metadata.get( field );
+			if (( null == given ) || ( 0 == given.length() ))
+				return "!=".equals( operator );
+			return compare( given.trim() );
+		}
+
+		protected boolean compare( String given ) {
+			Double givenNumber = parseNumber( given );
+			if (( null != number ) && ( null != givenNumber ))
+				return compare( Double.compare( givenNumber, number ));
+			return compare( given.toLowerCase( Locale.ROOT ).compareTo( value.toLowerCase( Locale.ROOT )));
+		}
+
+		protected boolean compare( int order ) {
+			switch ( operator ) {
+			case "=": return 0 == order;
+			case "!=": return 0 != order;
+			case "<": return order < 0;
+			case "<=": return order <= 0;
+			case ">": return order > 0;
+			default: return order >= 0;
+			}
+		}
+	}
+
+	protected static Double parseNumber( String value ) {
+		try {
+			return Double.valueOf( value );
+		} catch ( NumberFormatException e ) {
+			return null;
+		}
+	}
+
+	/** Parses bytes with an optional KB, MB, or GB suffix, for example 10MB. */
+	public static long parseSize( String value ) {
+		String upper = value.toUpperCase( Locale.ROOT );
+		long unit = 1;
+		if ( upper.endsWith( "KB" )) unit = 1L << 10;
+		else if ( upper.endsWith( "MB" )) unit = 1L << 20;
+		else if ( upper.endsWith( "GB" )) unit = 1L << 30;
+		String digits = ( 1 == unit ) ? upper : upper.substring( 0, upper.length() - 2 );
+		try {
+			return (long) ( Double.parseDouble( digits.trim() ) * unit );
+		} catch ( NumberFormatException e ) {
+			throw new IllegalArgumentException( "filter has bad size \"" + value + "\"" );
+		}
+	}
+
+	/** Parses local datetime millis in the same forms as the time option. */
+	public static long parseDate( String value ) {
+		String date = value.replaceAll( "[/]+", "-" );
+		try {
+			return LocalDateTime.parse( date, DateTimeFormat.forPattern( "yyyy-MM-dd'T'HH:mm:ss" )).toDate().getTime();
+		} catch ( IllegalArgumentException e ) {
+			try {
+				return LocalDateTime.parse( date, DateTimeFormat.forPattern( "yyyy-MM-dd" )).toDate().getTime();
+			} catch ( IllegalArgumentException e2 ) {
+				throw new IllegalArgumentException( "filter has bad date \"" + value + "\"" );
+			}
+		}
+	}
+}
@@ -0,0 +1,510 @@
+package info.danbecker.metarenamer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.tika.metadata.Metadata;
+
+/**
+ * A local index of the key fields of every file renamed, kept so the library can be queried without parsing it again.
+ * <p>
+ * Queries memory-map the index file. Every distinct string is stored once, sorted, so string IDs sort as the strings do.
+ * Each field has a column of string IDs by row, and a column of rows sorted by that field,
+ * so a query binary searches the string, then the sorted column, and reads only the rows which match.
+ * <p>
+ * A run keeps the row of each file it plans, and appends it to a journal beside the index when the file moves or copies
+ * into the library, so rows are not kept on the heap for the whole run. Closing merges the journal into a new index.
+ * A journal left by a run which did not close is merged by the next run. Queries read only the index, not the journal.
+ * Files which do not land, in a dry run or on a collision, are not indexed.
+ * A run reads the old index into the heap rather than mapping it, since a mapped file can not be replaced on Windows.
+ * Values are those the run had, so files resolved from their names alone, without a parse, index only what their names give.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class MetaIndex implements Closeable {
+	public static final int MAGIC = 0x4d524958; // "MRIX"
+	public static final int VERSION = 1;
+	public static final String PATH = "path";
+	public static final String MEDIA_TYPE = "mediaType";
+	/** Fields of each row. The path is always the first. */
+	public static final String [] FIELDS = { PATH, "xmpDM:albumArtist", "xmpDM:artist", "xmpDM:album", "xmpDM:releaseYear",
+		"xmpDM:trackNumber", "title", "xmpDM:genre", MEDIA_TYPE };
+	public static final int MISSING = -1;
+	protected static final int REMOVE = 0; // journal record of a path
+	protected static final int PUT = 1; // journal record of a row
+
+	public final Path indexPath;
+	public final Path journalPath;
+	protected Reader base; // the index as of the last run, null if there is none
+	protected DataOutputStream journal; // rows and removals of this run, opened when the first file lands
+	protected final Map<String,String []> planned = new HashMap<String,String []>(); // rows by source path, until the files land
+
+	/** Opens the index at a path, which need not exist yet. */
+	public MetaIndex( Path indexPath ) throws IOException {
+		this.indexPath = indexPath;
+		journalPath = indexPath.resolveSibling( indexPath.getFileName() + ".journal" );
+		if ( Files.exists( indexPath ))
+			base = new Reader( indexPath, false );
+		if ( Files.exists( journalPath )) {
+			// Left by a run which did not close. Cut any record the crash left half written, and append after it.
+			long whole = replay( null, null );
+			try ( FileChannel channel = FileChannel.open( journalPath, StandardOpenOption.WRITE )) {
+				channel.truncate( whole );
+			}
+		}
+	}
+
+	/** Adds or replaces the row of a file. */
+	public synchronized void put( Path path, String mediaType, Metadata metadata ) throws IOException {
+		append( PUT, row( path, mediaType, metadata ));
+	}
+
+	/** Keeps the row of a planned file, which {@link #move(Path, Path)} adds once the file lands. */
+	public synchronized void plan( Path path, String mediaType, Metadata metadata ) {
+		String [] row = row( path, mediaType, metadata );
+		planned.put( row[ 0 ], row );
+	}
+
+	/** Drops the row of a planned file which did not land. */
+	public synchronized void discard( Path path ) {
+		planned.remove( path.toString() );
+	}
+
+	protected static String [] row( Path path, String mediaType, Metadata metadata ) {
+		String [] row = new String [ FIELDS.length ];
+		row[ 0 ] = path.toString();
+		for ( int f = 1; f < FIELDS.length; f++ ) {
+			String value = MEDIA_TYPE.equals( FIELDS[ f ] ) ? mediaType : metadata.get( FIELDS[ f ] );
+			if ( null != value )
+				value = value.trim();
+			if (( null == value ) || value.isEmpty() || ( "xmpDM:trackNumber".equals( FIELDS[ f ] ) && MetaRenamer.MISSING_TRACK_FILLER.equals( value )))
+				value = null;
+			row[ f ] = value;
+		}
+		return row;
+	}
+
+	/** Moves the row of a file which was moved or copied into the library, its planned row, or the row it had. */
+	public synchronized void move( Path from, Path to ) throws IOException {
+		String [] row = planned.remove( from.toString() );
+		if ( null == row )
+			row = get( from.toString() );
+		if ( null == row )
+			return;
+		row = row.clone();
+		row[ 0 ] = to.toString();
+		append( REMOVE, new String [] { from.toString() } );
+		append( PUT, row );
+	}
+
+	/** Returns the row of a path, or null if it has none. Reads the journal, so it is meant for the odd file, not every file. */
+	public synchronized String [] get( String path ) throws IOException {
+		Map<String,String []> journaled = new HashMap<String,String []>();
+		if ( null != journal )
+			journal.flush();
+		if ( Files.exists( journalPath ))
+			replay( journaled, path );
+		if ( journaled.containsKey( path ))
+			return journaled.get( path );
+		if ( null == base )
+			return null;
+		int row = base.row( path );
+		return ( MISSING == row ) ? null : base.row( row );
+	}
+
+	/**
+	 * Appends a record to the journal, a type byte then each value as a length, -1 for none, and UTF-8 bytes.
+	 * Each record is flushed, so a crash loses at most the file in flight.
+	 */
+	protected void append( int type, String [] values ) throws IOException {
+		if ( null == journal )
+			journal = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( journalPath,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND )));
+		journal.writeByte( type );
+		for ( String value : values ) {
+			if ( null == value ) {
+				journal.writeInt( -1 );
+			} else {
+				byte [] bytes = value.getBytes( StandardCharsets.UTF_8 );
+				journal.writeInt( bytes.length );
+				journal.write( bytes );
+			}
+		}
+		journal.flush();
+	}
+
+	/**
+	 * Reads the journal into rows by path, null for removed paths, later records replacing earlier ones.
+	 * @param rows map to fill, or null to only check the records
+	 * @param only the path to keep, or null to keep every path
+	 * @return the length of the whole records, which ends before any record cut short by a crash
+	 */
+	protected long replay( Map<String,String []> rows, String only ) throws IOException {
+		long size = Files.size( journalPath );
+		long whole = 0;
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( journalPath )))) {
+			long position = 0;
+			int type;
+			while ((( type = in.read() ) == REMOVE ) || ( PUT == type )) {
+				position++;
+				String [] row = new String [ ( PUT == type ) ? FIELDS.length : 1 ];
+				for ( int f = 0; f < row.length; f++ ) {
+					int length = in.readInt();
+					position += 4;
+					if (( length < -1 ) || ( length > size - position ))
+						return whole; // cut short
+					if ( length >= 0 ) {
+						byte [] bytes = new byte [ length ];
+						in.readFully( bytes );
+						position += length;
+						row[ f ] = new String( bytes, StandardCharsets.UTF_8 );
+					}
+				}
+				whole = position;
+				if (( null != rows ) && (( null == only ) || only.equals( row[ 0 ] )))
+					rows.put( row[ 0 ], ( PUT == type ) ? row : null );
+			}
+		} catch ( EOFException e ) {
+			// cut short
+		}
+		return whole;
+	}
+
+	/** Merges the journal into a new index, replacing the old one, and deletes the journal. */
+	@Override
+	public synchronized void close() throws IOException {
+		if ( null != journal ) {
+			journal.close();
+			journal = null;
+		}
+		Map<String,String []> changes = new HashMap<String,String []>();
+		if ( Files.exists( journalPath ))
+			replay( changes, null );
+		if ( changes.isEmpty() ) {
+			if ( null != base )
+				base.close();
+			Files.deleteIfExists( journalPath );
+			return;
+		}
+		List<String []> rows = new ArrayList<String []>();
+		if ( null != base ) {
+			for ( int row = 0; row < base.rows; row++ ) {
+				String path = base.value( row, 0 );
+				if ( !changes.containsKey( path ))
+					rows.add( base.row( row ));
+			}
+			base.close();
+			base = null;
+		}
+		for ( String [] row : changes.values() ) {
+			if ( null != row )
+				rows.add( row );
+		}
+		changes.clear();
+		Path temp = indexPath.resolveSibling( indexPath.getFileName() + ".tmp" );
+		write( temp, rows );
+		Files.move( temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		Files.delete( journalPath );
+	}
+
+	/**
+	 * Writes rows as a header, a sorted string pool of offsets and UTF-8 bytes,
+	 * then for each field a column of string IDs by row and a column of rows sorted by ID.
+	 */
+	protected static void write( Path file, List<String []> rows ) throws IOException {
+		TreeSet<String> strings = new TreeSet<String>( Arrays.asList( FIELDS ));
+		for ( String [] row : rows ) {
+			for ( String value : row ) {
+				if ( null != value )
+					strings.add( value );
+			}
+		}
+		Map<String,Integer> ids = new HashMap<String,Integer>( strings.size() * 2 );
+		List<byte []> pool = new ArrayList<byte []>( strings.size() );
+		for ( String value : strings ) {
+			ids.put( value, ids.size() );
+			pool.add( value.getBytes( StandardCharsets.UTF_8 ));
+		}
+
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( file )))) {
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( rows.size() );
+			out.writeInt( FIELDS.length );
+			out.writeInt( pool.size() );
+			for ( String field : FIELDS )
+				out.writeInt( ids.get( field ));
+			int offset = 0;
+			for ( byte [] bytes : pool ) {
+				out.writeInt( offset );
+				offset += bytes.length;
+			}
+			out.writeInt( offset );
+			for ( byte [] bytes : pool )
+				out.write( bytes );
+			for ( int f = 0; f < FIELDS.length; f++ ) {
+				final int [] values = new int [ rows.size() ];
+				for ( int row = 0; row < values.length; row++ ) {
+					String value = rows.get( row )[ f ];
+					values[ row ] = ( null == value ) ? MISSING : ids.get( value );
+					out.writeInt( values[ row ] );
+				}
+				Integer [] sorted = new Integer [ values.length ];
+				for ( int row = 0; row < sorted.length; row++ )
+					sorted[ row ] = row;
+				Arrays.sort( sorted, new Comparator<Integer>() {
+					@Override
+					public int compare( Integer a, Integer b ) {
+						return Integer.compare( values[ a ], values[ b ] ); // missing first
+					}
+				});
+				for ( Integer row : sorted )
+					out.writeInt( row );
+			}
+		}
+	}
+
+	/** An index file, memory-mapped or read into the heap. Reads strings and columns in place. */
+	public static class Reader implements Closeable {
+		protected final FileChannel channel;
+		protected final ByteBuffer buffer;
+		public final int rows;
+		public final String [] fields;
+		protected final int strings;
+		protected final int offsetsStart; // string offsets, strings + 1 ints
+		protected final int bytesStart; // UTF-8 bytes of the strings
+		protected final int columnsStart; // per field, values then sorted rows
+
+		/** Maps an index file. */
+		public Reader( Path file ) throws IOException {
+			this( file, true );
+		}
+
+		/** @param map true to map the file, false to read it into the heap, which leaves the file free to replace */
+		public Reader( Path file, boolean map ) throws IOException {
+			channel = FileChannel.open( file, StandardOpenOption.READ );
+			if ( channel.size() < 20 ) {
+				channel.close();
+				throw new IOException( "index \"" + file + "\" is truncated" );
+			}
+			buffer = map ? channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) : read( channel );
+			if (( buffer.getInt( 0 ) != MAGIC ) || ( buffer.getInt( 4 ) != VERSION )) {
+				channel.close();
+				throw new IOException( "index \"" + file + "\" is not a MetaRenamer index of version " + VERSION );
+			}
+			rows = buffer.getInt( 8 );
+			int fieldCount = buffer.getInt( 12 );
+			strings = buffer.getInt( 16 );
+			offsetsStart = 20 + 4 * fieldCount;
+			bytesStart = offsetsStart + 4 * ( strings + 1 );
+			columnsStart = bytesStart + buffer.getInt( offsetsStart + 4 * strings );
+			fields = new String [ fieldCount ];
+			for ( int f = 0; f < fieldCount; f++ )
+				fields[ f ] = string( buffer.getInt( 20 + 4 * f ));
+			if ( !Arrays.equals( fields, FIELDS )) {
+				channel.close();
+				throw new IOException( "index \"" + file + "\" has fields " + Arrays.toString( fields ) + ", rebuild it" );
+			}
+		}
+
+		/** Reads a whole file into a heap buffer, then closes it. */
+		protected static ByteBuffer read( FileChannel channel ) throws IOException {
+			if ( channel.size() > Integer.MAX_VALUE ) {
+				channel.close();
+				throw new IOException( "index of " + channel.size() + " bytes is too large" );
+			}
+			ByteBuffer buffer = ByteBuffer.allocate( (int) channel.size() );
+			try {
+				while ( buffer.hasRemaining() && ( channel.read( buffer ) >= 0 )) {
+				}
+			} finally {
+				channel.close();
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		/** Returns the string of an ID. */
+		public String string( int id ) {
+			int start = buffer.getInt( offsetsStart + 4 * id );
+			byte [] bytes = new byte [ buffer.getInt( offsetsStart + 4 * ( id + 1 )) - start ];
+			ByteBuffer view = buffer.duplicate();
+			view.position( bytesStart + start );
+			view.get( bytes );
+			return new String( bytes, StandardCharsets.UTF_8 );
+		}
+
+		/** Returns the ID of a string, or MISSING if no row has it. */
+		public int id( String value ) {
+			int low = 0, high = strings - 1;
+			while ( low <= high ) {
+				int mid = ( low + high ) >>> 1;
+				int order = string( mid ).compareTo( value );
+				if ( order == 0 )
+					return mid;
+				if ( order < 0 )
+					low = mid + 1;
+				else
+					high = mid - 1;
+			}
+			return MISSING;
+		}
+
+		/** Returns the string ID of a field of a row, MISSING if it has no value. */
+		public int valueId( int row, int field ) {
+			return buffer.getInt( columnsStart + 8 * field * rows + 4 * row );
+		}
+
+		public String value( int row, int field ) {
+			int id = valueId( row, field );
+			return ( MISSING == id ) ? null : string( id );
+		}
+
+		public String [] row( int row ) {
+			String [] values = new String [ fields.length ];
+			for ( int f = 0; f < values.length; f++ )
+				values[ f ] = value( row, f );
+			return values;
+		}
+
+		/** Returns the row at a position of the column sorted by a field. */
+		protected int sortedRow( int field, int position ) {
+			return buffer.getInt( columnsStart + 8 * field * rows + 4 * rows + 4 * position );
+		}
+
+		/** Returns the first position in the sorted column of a field with an ID at least the given ID. */
+		protected int lowerBound( int field, int id ) {
+			int low = 0, high = rows;
+			while ( low < high ) {
+				int mid = ( low + high ) >>> 1;
+				if ( valueId( sortedRow( field, mid ), field ) < id )
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		/** Returns the rows whose field has the value, or has no value if the value is null. */
+		public int [] rows( int field, String value ) {
+			int id = ( null == value ) ? MISSING : id( value );
+			if (( null != value ) && ( MISSING == id ))
+				return new int [ 0 ];
+			int start = lowerBound( field, id );
+			int end = lowerBound( field, id + 1 );
+			int [] matches = new int [ end - start ];
+			for ( int i = 0; i < matches.length; i++ )
+				matches[ i ] = sortedRow( field, start + i );
+			return matches;
+		}
+
+		/** Returns the row of a path, or MISSING. */
+		public int row( String path ) {
+			int [] matches = rows( 0, path );
+			return ( 0 == matches.length ) ? MISSING : matches[ 0 ];
+		}
+
+		public int field( String name ) {
+			for ( int f = 0; f < fields.length; f++ ) {
+				if ( fields[ f ].equals( name ))
+					return f;
+			}
+			throw new IllegalArgumentException( "index has no field \"" + name + "\", fields are " + Arrays.toString( fields ));
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * A query such as <code>xmpDM:album where xmpDM:artist=Miles Davis</code>, which lists the distinct albums
+	 * with their track counts, or <code>xmpDM:trackNumber=</code>, which lists the paths of tracks with no track number.
+	 * Terms are field=value joined with and. Values match exactly, and an empty value matches a missing one.
+	 */
+	public static class Query {
+		public final String distinct; // field to list the distinct values of, null to list paths
+		public final List<String []> terms = new ArrayList<String []>(); // field, value or null
+
+		public Query( String query ) {
+			String where = query;
+			int split = query.indexOf( " where " );
+			distinct = ( -1 == split ) ? null : query.substring( 0, split ).trim();
+			if ( -1 != split )
+				where = query.substring( split + " where ".length() );
+			for ( String term : where.split( " and " )) {
+				int equals = term.indexOf( '=' );
+				if ( -1 == equals )
+					throw new IllegalArgumentException( "query term \"" + term.trim() + "\" is not field=value" );
+				String value = term.substring( equals + 1 ).trim();
+				terms.add( new String [] { term.substring( 0, equals ).trim(), value.isEmpty() ? null : value } );
+			}
+		}
+
+		/** Returns the matching rows. The rows of the term with the fewest are checked against the other terms. */
+		public int [] rows( Reader reader ) {
+			int [] fields = new int [ terms.size() ];
+			int [] best = null;
+			int bestTerm = 0;
+			for ( int t = 0; t < fields.length; t++ ) {
+				fields[ t ] = reader.field( terms.get( t )[ 0 ] );
+				int [] rows = reader.rows( fields[ t ], terms.get( t )[ 1 ] );
+				if (( null == best ) || ( rows.length < best.length )) {
+					best = rows;
+					bestTerm = t;
+				}
+			}
+			int [] matches = new int [ best.length ];
+			int count = 0;
+			for ( int row : best ) {
+				boolean match = true;
+				for ( int t = 0; match && ( t < fields.length ); t++ ) {
+					String value = terms.get( t )[ 1 ];
+					match = ( t == bestTerm ) || (( null == value ) ? ( null == reader.value( row, fields[ t ] )) : value.equals( reader.value( row, fields[ t ] )));
+				}
+				if ( match )
+					matches[ count++ ] = row;
+			}
+			return Arrays.copyOf( matches, count );
+		}
+
+		/** Returns the paths, or the distinct values and their counts, of the matching rows, in sorted order. */
+		public Map<String,Integer> run( Reader reader ) {
+			int field = ( null == distinct ) ? 0 : reader.field( distinct );
+			Map<String,Integer> results = new TreeMap<String,Integer>();
+			for ( int row : rows( reader )) {
+				String value = reader.value( row, field );
+				MetaReport.increment( results, ( null == value ) ? "" : value );
+			}
+			return results;
+		}
+	}
+
+	/** Opens an index and runs a query on it. */
+	public static Map<String,Integer> query( Path indexPath, String query ) throws IOException {
+		try ( Reader reader = new Reader( indexPath )) {
+			return new Query( query ).run( reader );
+		}
+	}
+}
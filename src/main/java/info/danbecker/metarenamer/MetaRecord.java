@@ -0,0 +1,359 @@
+package info.danbecker.metarenamer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.Property;
+
+/**
+ * A compact Metadata with one fixed slot per key of interest.
+ * <p>
+ * A Tika Metadata keeps every parsed key in a HashMap of String arrays,
+ * even though the renamer only reads a handful of them. A MetaRecord keeps
+ * just the keys of its {@link Schema} in a String array and drops all others.
+ * Parsers fill it through the usual Metadata add/set calls, so it can be
+ * handed to any Tika parser.
+ * <p>
+ * Only the first value of a key is kept, which matches what Metadata.get returns.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class MetaRecord extends Metadata {
+	private static final long serialVersionUID = 1L;
+
+	protected final Schema schema;
+	protected final String [] values;
+
+	public MetaRecord( Schema schema ) {
+		this.schema = schema;
+		this.values = new String[ schema.size() ];
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	/** Returns the value in the given slot or null. */
+	public String get( int slot ) {
+		return values[ slot ];
+	}
+
+	/** Sets the value in the given slot. */
+	public void set( int slot, String value ) {
+		values[ slot ] = value;
+	}
+
+	/** Clears all slots so the record may be reused for another file. */
+	public void clear() {
+		Arrays.fill( values, null );
+	}
+
+	@Override
+	public String get( String name ) {
+		int slot = schema.slot( name );
+		return ( -1 == slot ) ? null : values[ slot ];
+	}
+
+	@Override
+	public String [] getValues( String name ) {
+		String value = get( name );
+		return ( null == value ) ? new String[ 0 ] : new String [] { value };
+	}
+
+	@Override
+	public String [] getValues( Property property ) {
+		return getValues( property.getName() );
+	}
+
+	@Override
+	public void set( String name, String value ) {
+		int slot = schema.slot( name );
+		if ( -1 != slot )
+			values[ slot ] = value;
+	}
+
+	@Override
+	public void set( Property property, String [] values ) {
+		if ( Property.PropertyType.COMPOSITE == property.getPropertyType() ) {
+			set( property.getPrimaryProperty(), values );
+			if ( null != property.getSecondaryExtractProperties() ) {
+				for ( Property secondary : property.getSecondaryExtractProperties() )
+					set( secondary, values );
+			}
+		} else {
+			set( property.getName(), (( null == values ) || ( values.length == 0 )) ? null : values[ 0 ] );
+		}
+	}
+
+	@Override
+	public void add( String name, String value ) {
+		int slot = schema.slot( name );
+		if (( -1 != slot ) && ( null == values[ slot ] ))
+			values[ slot ] = value;
+	}
+
+	@Override
+	public void add( Property property, String value ) {
+		if ( Property.PropertyType.COMPOSITE == property.getPropertyType() ) {
+			add( property.getPrimaryProperty(), value );
+			if ( null != property.getSecondaryExtractProperties() ) {
+				for ( Property secondary : property.getSecondaryExtractProperties() )
+					add( secondary, value );
+			}
+		} else {
+			add( property.getName(), value );
+		}
+	}
+
+	@Override
+	public void setAll( Properties properties ) {
+		for ( String name : properties.stringPropertyNames() )
+			set( name, properties.getProperty( name ) );
+	}
+
+	@Override
+	public void remove( String name ) {
+		set( name, null );
+	}
+
+	@Override
+	public boolean isMultiValued( String name ) {
+		return false;
+	}
+
+	@Override
+	public boolean isMultiValued( Property property ) {
+		return false;
+	}
+
+	@Override
+	public String [] names() {
+		List<String> names = new ArrayList<String>( values.length );
+		for ( int slot = 0; slot < values.length; slot++ ) {
+			if ( null != values[ slot ] )
+				names.add( schema.key( slot ) );
+		}
+		return names.toArray( new String[ 0 ] );
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for ( String value : values ) {
+			if ( null != value )
+				size++;
+		}
+		return size;
+	}
+
+	@Override
+	public boolean equals( Object o ) {
+		if ( !( o instanceof MetaRecord ))
+			return false;
+		MetaRecord other = (MetaRecord) o;
+		return schema == other.schema && Arrays.equals( values, other.values );
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode( values );
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for ( String name : names() ) {
+			if ( sb.length() > 0 ) sb.append( " " );
+			sb.append( name ).append( "=" ).append( get( name ) );
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The fixed set of interned keys for a rename pattern, built once at startup.
+	 * <p>
+	 * The schema also holds the pattern compiled into tokens,
+	 * so a proposed name is built in one pass rather than with a regex replace per key.
+	 * <p>
+	 * A key token may be a fallback chain of keys joined by commas, for example
+	 * <code>xmpDM:album,title,dc:title</code>, which takes the first key with a value.
+	 */
+	public static class Schema {
+		public static final String CHAIN_DELIMITER = ",";
+
+		/** Keys which are not in a pattern but are used by the renamer and MetaUtils.updateMetadata. */
+		public static final String [] SUPPORT_KEYS = {
+			Metadata.RESOURCE_NAME_KEY, MetaRenamer.MEDIATYPE_KEY,
+			MetaRenamer.ADDITIONAL_DATA_KEY_FILENAME, MetaRenamer.ADDITIONAL_DATA_KEY_EXTENSION,
+			"xmpDM:releaseDate", "xmpDM:releaseYear", "xmpDM:trackNumber", "xmpDM:albumArtist", "Author", "creator",
+		};
+
+		protected final String pattern;
+		protected final String [] keys;
+		protected final Map<String,Integer> slots = new HashMap<String,Integer>();
+		// pattern as delimiters and keys, e.g. [xmpDM:albumArtist,/,xmpDM:releaseYear, - ,...]
+		protected final String [] tokens;
+		protected final int [][] chainSlots; // slots of each key of a key token in fallback order, null for a delimiter token
+		protected final FileNameSanitizer sanitizer;
+
+		public Schema( String pattern, String [] patternKeyNames ) {
+			this( pattern, patternKeyNames, FileNameSanitizer.DEFAULT );
+		}
+
+		public Schema( String pattern, String [] patternKeyNames, FileNameSanitizer sanitizer ) {
+			this.pattern = pattern;
+			this.sanitizer = sanitizer;
+			List<String> keyList = new ArrayList<String>();
+			for ( String key : SUPPORT_KEYS )
+				addKey( keyList, key );
+			for ( String key : patternKeyNames ) {
+				for ( String member : chain( key ))
+					addKey( keyList, member );
+			}
+			keys = keyList.toArray( new String[ 0 ] );
+
+			// Compile pattern into tokens. Every run of non-delimiters is a key.
+			List<String> tokenList = new ArrayList<String>();
+			int start = 0;
+			for ( int i = 1; i <= pattern.length(); i++ ) {
+				if (( i == pattern.length() ) || ( isDelimiter( pattern.charAt( i ) ) != isDelimiter( pattern.charAt( start ) ))) {
+					tokenList.add( pattern.substring( start, i ).intern() );
+					start = i;
+				}
+			}
+			tokens = tokenList.toArray( new String[ 0 ] );
+			chainSlots = new int[ tokens.length ][];
+			for ( int i = 0; i < tokens.length; i++ ) {
+				if ( isDelimiter( tokens[ i ].charAt( 0 ) ))
+					continue;
+				String [] members = chain( tokens[ i ] );
+				chainSlots[ i ] = new int[ members.length ];
+				for ( int m = 0; m < members.length; m++ )
+					chainSlots[ i ][ m ] = slot( members[ m ] );
+			}
+		}
+
+		/** Returns the keys of a key token in fallback order. A plain key is a chain of one. */
+		public static String [] chain( String token ) {
+			return token.split( CHAIN_DELIMITER );
+		}
+
+		/** Returns the first value of a key token's chain, or null if none has a value. */
+		protected String resolve( Metadata metadata, MetaRecord record, int token ) {
+			String [] members = null;
+			for ( int m = 0; m < chainSlots[ token ].length; m++ ) {
+				String value;
+				if (( null != record ) && ( -1 != chainSlots[ token ][ m ] )) {
+					value = record.get( chainSlots[ token ][ m ] );
+				} else {
+					if ( null == members )
+						members = chain( tokens[ token ] );
+					value = metadata.get( members[ m ] );
+				}
+				if (( null != value ) && ( value.length() > 0 ))
+					return value;
+			}
+			return null;
+		}
+
+		/**
+		 * Tests if a full parse is needed to resolve the pattern. Each chain is walked in order.
+		 * A filled cheap key resolves its chain, an empty cheap key falls through,
+		 * and any other key needs the parse, since only the parse can tell if it has a value.
+		 */
+		public boolean needsParse( Metadata metadata, Set<String> cheapKeys ) {
+			for ( int i = 0; i < tokens.length; i++ ) {
+				if ( null == chainSlots[ i ] )
+					continue; // delimiter
+				for ( String member : chain( tokens[ i ] )) {
+					if ( !cheapKeys.contains( member ))
+						return true;
+					String value = metadata.get( member );
+					if (( null != value ) && ( value.length() > 0 ))
+						break;
+				}
+			}
+			return false;
+		}
+
+		private void addKey( List<String> keyList, String key ) {
+			if ( !slots.containsKey( key )) {
+				slots.put( key, keyList.size() );
+				keyList.add( key.intern() );
+			}
+		}
+
+		/** Delimiters are the same as those used to split patternKeyNames. */
+		public static boolean isDelimiter( char c ) {
+			return c == ' ' || c == '-' || c == '.' || c == '/';
+		}
+
+		/** Returns a new, empty record for this schema. */
+		public MetaRecord newRecord() {
+			return new MetaRecord( this );
+		}
+
+		/** Returns the slot for the given key, or -1 if the key is not in this schema. */
+		public int slot( String key ) {
+			Integer slot = slots.get( key );
+			return ( null == slot ) ? -1 : slot;
+		}
+
+		public String key( int slot ) {
+			return keys[ slot ];
+		}
+
+		public int size() {
+			return keys.length;
+		}
+
+		public String getPattern() {
+			return pattern;
+		}
+
+		/**
+		 * Appends the pattern with each key replaced by its metadata value, sanitized for the target file system.
+		 * Missing values are replaced by the key name and the key is added to missingKeys.
+		 * Each path segment is then finished by the sanitizer's rules for whole names, such as a length limit.
+		 * @return count of missing keys
+		 */
+		public int format( Metadata metadata, StringBuilder name, List<String> missingKeys ) {
+			MetaRecord record = ( metadata instanceof MetaRecord ) && ( this == ((MetaRecord) metadata).schema ) ? (MetaRecord) metadata : null;
+			boolean segments = sanitizer.checksSegments();
+			int segmentStart = name.length();
+			int emptyCount = 0;
+			for ( int i = 0; i < tokens.length; i++ ) {
+				if (( null == chainSlots[ i ] ) && segments ) {
+					for ( int c = 0; c < tokens[ i ].length(); c++ ) {
+						char delimiter = tokens[ i ].charAt( c );
+						if ( '/' == delimiter ) {
+							sanitizer.finishSegment( name, segmentStart );
+							segmentStart = name.length() + 1;
+						}
+						name.append( delimiter );
+					}
+				} else if ( null == chainSlots[ i ] ) {
+					name.append( tokens[ i ] );
+				} else {
+					String value = resolve( metadata, record, i );
+					if ( null == value ) {
+						value = tokens[ i ]; // replace empty value with key name, e.g. "title"="title"
+						if ( null != missingKeys )
+							missingKeys.add( tokens[ i ] );
+						emptyCount++;
+					}
+					sanitizer.append( value, name );
+				}
+			}
+			if ( segments )
+				sanitizer.finishSegment( name, segmentStart );
+			return emptyCount;
+		}
+	}
+}
@@ -3,27 +3,61 @@ package info.danbecker.metarenamer;
 import static info.danbecker.metarenamer.FileAttribute.*;
 import static info.danbecker.metarenamer.MetaRenamer.FileAction.*;
 import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import info.danbecker.metarenamer.FileResult.Outcome;
 
 import java.io.File;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Properties;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.TreeSet;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.stream.StreamSupport;
 import java.util.Date;
 import java.text.SimpleDateFormat;
 
@@ -33,38 +67,51 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.exception.TikaException;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.metadata.XMPDM;
 import org.apache.tika.mime.MediaType;
-import org.apache.tika.parser.DefaultParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
-import org.joda.time.LocalDateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
+import org.apache.tika.parser.mp3.ID3Tags;
+import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * An app to rename files based on metadata in the file.
  * <p>
+ * Each MetaRenamer instance is one job with its own immutable {@link MetaRenamerConfig},
+ * counters, and caches, so several jobs may run in one JVM.
+ * Use {@link #run()} to walk the source tree, or {@link #stream()} for a Stream of per-file results.
+ * Close the job when done, so its report, quarantine, index, and shard counts are written.
+ * <p>
  * TODO
  * 1. No Exception friendlier messages on file not found.
- * 2. Test cases run individually. Exception thrown when run as a suite. Exception creates new files in original source resource directory which throws visited counts off.
  * 
  * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
  */
-public class MetaRenamer {
+public class MetaRenamer implements AutoCloseable {
 	public static final SimpleDateFormat DEFAULT_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
 	
 	public static final String PATTERN_DELIMITER = "/";
 	// xmpDM is XMP Dynamic Media schema. Other keys are Dublin core.
-	// Common search fallback: xmpDM:album,title,dc:title?
+	// A key may be a fallback chain taking the first key with a value, e.g. xmpDM:album,dirname.
 	public static final String PATTERN_DEFAULT = "xmpDM:albumArtist/xmpDM:releaseYear - xmpDM:album/xmpDM:artist - xmpDM:releaseYear - xmpDM:album - xmpDM:trackNumber - title.extension";
 	public static final String MISSING_TRACK_FILLER = "#";
 	
 	public static final String ADDITIONAL_DATA_KEY_FILENAME = "filename";
 	public static final String ADDITIONAL_DATA_KEY_EXTENSION = "extension";
+	public static final String ADDITIONAL_DATA_KEY_BASENAME = "basename"; // file name without extension
+	public static final String ADDITIONAL_DATA_KEY_DIRNAME = "dirname"; // name of the parent directory
 	
+	public static final String DO_NOT_PARSE_DEFAULT = "src/main/resources/doNotParse.txt ";
+
+	/** Number of results a stream walker may run ahead of its consumer. */
+	public static final int STREAM_QUEUE_SIZE = 256;
+
 	public enum FileAction {
 		CREATE,	DELETE,	UPDATE,
 	};
@@ -74,189 +121,1027 @@ public class MetaRenamer {
 	};
 
 	public static final String MEDIATYPE_KEY = MediaType.class.getSimpleName();	
+	// Keys known before a parse. A pattern resolved from these alone is not parsed.
+	public static final Set<String> CHEAP_KEYS = Collections.unmodifiableSet( new HashSet<String>( Arrays.asList(
+		ADDITIONAL_DATA_KEY_FILENAME, ADDITIONAL_DATA_KEY_EXTENSION, ADDITIONAL_DATA_KEY_BASENAME, ADDITIONAL_DATA_KEY_DIRNAME, MEDIATYPE_KEY )));
 	
 	// options
-	public static boolean actionMode = false;
-	public static String msgPrefix = "   action: ";
-	public static boolean verbose = false;
-	public static boolean debug = false;
-	public static String sourcePath = ".";
-	public static String destPath = ".";	
-	public static String fileGlob = "*";	
-	public static boolean quiet = false;
-	public static boolean moveTrueCopyFalse = false;
-	public static int filesLimit = Integer.MAX_VALUE;
-	public static Comparator dateTimeComparator = Comparator.FALSE;
-	public static Date dateTimeCompare = null;
-	
-	public static String pattern; // pattern in string form with N path delimiters
-	public static String [] patterns; // pattern broken up by path delimiters. [...,parent2,parent1,parent0,filename]
-	public static String [] patternKeyNames; // list of all key names in pattern
+	public final MetaRenamerConfig config;
 	
 	// statistics
-    public static int filesVisited = 0;
-    public static int filesRenamed = 0;
-    public static int filesCreated = 0;
-    public static int filesCollided = 0;
-    public static int filesMissingMetadata = 0;
-    public static int dirsVisited = 0;
-    public static int dirsRenamed = 0;
-    public static int dirsCreated = 0;
-    public static int dirsCollided = 0;
-    public static int dirsMissingMetadata = 0;
-    public static List<String> missingMetadata = new LinkedList<String>(); 
+    public int filesVisited = 0;
+    public int filesRenamed = 0;
+    public int filesCreated = 0;
+    public int filesCollided = 0;
+    public int filesMissingMetadata = 0;
+    public int filesDuplicated = 0;
+    public int filesQuarantined = 0;
+    public int filesFiltered = 0; // dropped on attributes by the walker
+    public final AtomicInteger filesFilteredParsed = new AtomicInteger(); // dropped on metadata after parsing
+    public final AtomicInteger parsesSkipped = new AtomicInteger(); // patterns resolved from file and directory names
+    public final AtomicInteger viewsLinked = new AtomicInteger(); // files added to other views
+    public final AtomicInteger viewsCopied = new AtomicInteger();
+    public final AtomicInteger viewsCollided = new AtomicInteger();
+    public final AtomicInteger parsesStopped = new AtomicInteger(); // parses stopped once the pattern keys were filled
+    public int dirsVisited = 0;
+    public int dirsRenamed = 0;
+    public int dirsCreated = 0;
+    public int dirsCollided = 0;
+    public int dirsMissingMetadata = 0;
+    public long filesBytes = 0; // size of files handed to the parse stage
+    public long walkMillis = 0; // time of the last run
+    // Detect and parse reads of files in directory order, and in inode order. The first batch of an ordered run is the baseline.
+    public final ReadClock [] readClocks = { new ReadClock(), new ReadClock() };
+    public static final int DIRECTORY_ORDER = 0;
+    public static final int INODE_ORDER = 1;
+    // Clock of the file this thread visits, null for the directory order clock.
+    protected final ThreadLocal<ReadClock> readClock = new ThreadLocal<ReadClock>();
+    // Counts per outcome, media type, and missing key. Streams a line per file if a report path is given.
+    public final MetaReport report;
 
     // Tika instance vars
-    public static TikaConfig tikaConfig;
-    public static DefaultParser defaultParser;
-    public static DefaultHandler defaultHandler;
-    public static ParseContext parseContext;
-    public static PathMatcher matcher;
+    protected TikaLoader tikaConfig; // loads in the background while the walk starts
+    protected DefaultHandler defaultHandler;
+    protected ParseContext parseContext;
+    protected PathMatcher matcher;
+    protected MetaFilter filter; // null for no filter
     
-	public static Set<String> doNotParse = new TreeSet<String>();
-	// A cache of paths, so that collision count does not increment.
-	public static Set<String> checkedPaths = new TreeSet<String>();
-	public static boolean cachePaths = true;
+	// IDs of the paths seen, kept off the heap, and a cache of checked path IDs, so that collision count does not increment.
+	public final PathDictionary paths = new PathDictionary();
+	protected final BitSet checkedPaths = new BitSet();
+
+	// Tells true duplicates from collisions, null unless a duplicate policy is given.
+	protected DuplicateDetector duplicates;
+
+	// Limits reads and writes per device, and the workers which share them. Null for serial I/O.
+	protected IoScheduler scheduler;
+	protected ExecutorService workers;
+	protected int workerCount = 1;
+	protected ConcurrencyController controller; // tunes files in flight, null for a fixed count
+
+	// Times detection and parsing, and cancels files over budget, which go in the quarantine.
+	public final ParseBudget budget;
+	public final Quarantine quarantine;
+
+	// Directory rename mode and the keys of the directory part of the pattern.
+	protected final boolean directoryMode;
+	protected final Set<String> dirKeyNames = new HashSet<String>();
+
+	// Settles directory keys from a sample of each album, null to fully parse every track.
+	protected AlbumConsensus consensus;
+
+	// Syncs copies and moves to storage by the durability policy.
+	protected final Durability durability;
+
+	// Checks copies against their sources in the background, null to trust them.
+	protected CopyVerifier verifier;
+
+	// Keeps the key fields of renamed files for later queries, null for no index.
+	protected MetaIndex index;
+
+	// Splits the tree with other processes, null to walk all of it.
+	protected Shard shard;
+
+	// Set by a closed stream, so the walker stops early.
+	protected volatile boolean cancelled = false;
+
+	// Set by the first close, so later closes do nothing.
+	protected final AtomicBoolean closed = new AtomicBoolean();
+
+	/** Creates a job with its own Tika configuration, which loads in the background. */
+	public MetaRenamer( MetaRenamerConfig config ) throws Exception {
+		this( config, new TikaLoader() );
+	}
+
+	/** Creates a job which shares the given Tika configuration. TikaConfig creation is costly, so jobs may share one. */
+	public MetaRenamer( MetaRenamerConfig config, TikaConfig tikaConfig ) throws IOException {
+		this( config, new TikaLoader( tikaConfig ));
+	}
+
+	/** Creates a job which shares a Tika configuration which may still be loading. */
+	public MetaRenamer( MetaRenamerConfig config, TikaLoader tikaConfig ) throws IOException {
+		this.config = config;
+		report = ( null == config.reportPath ) ? new MetaReport() : MetaReport.open( Paths.get( config.reportPath ));
+		quarantine = new Quarantine(( null == config.quarantinePath ) ? null : Paths.get( config.quarantinePath ));
+	    this.tikaConfig = tikaConfig;
+	    defaultHandler = new DefaultHandler();
+	    parseContext = new ParseContext();
+    	// See file system path matching at http://docs.oracle.com/javase/tutorial/essential/io/find.html
+	    matcher = FileSystems.getDefault().getPathMatcher("glob:" + config.fileGlob );
+	    if ( null != config.filter )
+	    	filter = MetaFilter.compile( config.filter );
+	    if ( null != config.duplicatePolicy )
+	    	duplicates = new DuplicateDetector( config.duplicatePolicy, Math.max( 2, Runtime.getRuntime().availableProcessors() ), paths );
+	    if ( null != config.ioLimits ) {
+	    	scheduler = IoScheduler.parse( config.ioLimits );
+	    	workerCount = scheduler.reads + scheduler.writes; // enough to keep reads and writes of one device busy
+	    }
+	    if ( null != config.concurrency ) {
+	    	controller = ConcurrencyController.parse( "files", config.concurrency, config.verbose );
+	    	workerCount = controller.max;
+	    }
+	    // Workers and the walker may parse at once.
+		budget = new ParseBudget( config.parseTimeoutMillis, config.parseMaxMegabytes * 1024L * 1024L, config.slowestCount, workerCount + 1 );
+	    directoryMode = config.directoryRename && config.moveTrueCopyFalse;
+	    for ( int i = 0; i < config.patterns.size() - 1; i++ ) {
+	    	for ( String key : MetaUtils.split( config.patterns.get( i ), " -./" ))
+	    		dirKeyNames.add( key );
+	    }
+	    if ( config.albumSample > 0 ) {
+	    	// Keys not in the ID3 tag read are settled from the sample, which covers the views and filter too.
+	    	Set<String> albumKeys = new HashSet<String>( config.recordKeyNames );
+	    	albumKeys.removeAll( Arrays.asList( "title", "dc:title", "xmpDM:artist", "xmpDM:trackNumber" ));
+	    	albumKeys.removeAll( CHEAP_KEYS ); // set for each file before any parse, so never settled
+	    	consensus = new AlbumConsensus( config.albumSample, albumKeys );
+	    }
+	    int levels = config.patterns.size() - 1; // directories a file may land under
+	    for ( MetaRenamerConfig.View view : config.views )
+	    	levels = Math.max( levels, MetaUtils.split( view.pattern, PATTERN_DELIMITER ).length - 1 );
+	    durability = new Durability( config.durability, levels );
+	    if ( config.verify )
+	    	verifier = new CopyVerifier( CopyVerifier.DEFAULT_THREADS );
+	    if ( null != config.indexPath )
+	    	index = new MetaIndex( Paths.get( config.indexPath ));
+	    if (( null != config.shard ) && !Shard.MERGE.equals( config.shard ))
+	    	shard = Shard.parse( config.shard, Paths.get( config.journalPath ));
+	    if (( null != scheduler ) || ( null != controller ))
+	    	workers = Executors.newFixedThreadPool( workerCount, MetaUtils.daemonThreads( "MetaRenamer worker" ));
+	}
+
+	/**
+	 * Releases worker threads, and writes the report, quarantine, index, and shard counts.
+	 * The job should not be run again after closing. Closing again does nothing.
+	 */
+	@Override
+	public void close() {
+		if ( !closed.compareAndSet( false, true ))
+			return;
+		if ( null != duplicates )
+			duplicates.close();
+		if ( null != workers )
+			workers.shutdown();
+		budget.close();
+		try {
+			report.close();
+		} catch ( IOException e ) {
+			System.err.println( "   report exception=" + e.getMessage() );
+		}
+		try {
+			quarantine.save();
+		} catch ( IOException e ) {
+			System.err.println( "   quarantine exception=" + e.getMessage() );
+		}
+		try {
+			durability.flush();
+		} catch ( IOException e ) {
+			System.err.println( "   durability exception=" + e.getMessage() );
+		}
+		if ( null != verifier ) {
+			try {
+				verifier.close();
+			} catch ( IOException e ) {
+				System.err.println( "   verify exception=" + e.getMessage() );
+			}
+		}
+		if ( null != index ) {
+			try {
+				index.close();
+			} catch ( IOException e ) {
+				System.err.println( "   index exception=" + e.getMessage() );
+			}
+		}
+		if ( null != shard ) {
+			try {
+				shard.close( counters() );
+			} catch ( IOException e ) {
+				System.err.println( "   shard exception=" + e.getMessage() );
+			}
+		}
+	}
     
 	/** Commmand line version of this application. */
 	public static void main(String[] args) throws Exception {
 	    System.out.println( "MetaRenamer 1.0 by Dan Becker" );
 	    long startTime = System.currentTimeMillis();
 	    
+	    MetaRenamerConfig config = parseConfig( args );
+	    if ( null == config )
+	    	System.exit( 0 ); // only help was requested
+	    execute( config );
+
+		// conclude and end
+       long elapsedTime = System.currentTimeMillis() - startTime;
+       System.out.println( "elapsed time=" + format( elapsedTime ));
+	}
+
+	/**
+	 * Parses the command line arguments, runs the job, and prints statistics.
+	 * @return the finished job, or null if only help was requested
+	 */
+	public static MetaRenamer execute( String [] args ) throws Exception {
+	    MetaRenamerConfig config = parseConfig( args );
+	    return ( null == config ) ? null : execute( config );
+	}
+
+	/**
+	 * Runs the job of a configuration and prints statistics.
+	 * @return the finished job, or null for a query or a shard merge, which run no job
+	 */
+	public static MetaRenamer execute( MetaRenamerConfig config ) throws Exception {
+	    if ( Shard.MERGE.equals( config.shard )) {
+	    	merge( config );
+	    	return null;
+	    }
+	    if ( null != config.query ) {
+	    	query( config );
+	    	return null;
+	    }
+	    MetaRenamer renamer = new MetaRenamer( config );
+	    try {
+	    	if ( config.watch ) {
+	    		watch( renamer ); // runs until the JVM shuts down
+	    	} else {
+	    		renamer.run();
+	    	}
+	    	renamer.printStats();
+	    } catch ( IOException e ) {
+	    	System.err.println( "Exception=" + e);
+	    } finally {
+	    	renamer.close();
+	    }
+	    return renamer;
+	}
+
+	/**
+	 * Watches the source of a job on a watcher thread until the watcher stops.
+	 * A watch usually ends with Ctrl-C or a kill, so a shutdown hook stops the watcher,
+	 * waits for its current visit, and closes the job, which writes the report, quarantine, index, and shard counts.
+	 */
+	protected static void watch( final MetaRenamer renamer ) throws InterruptedException {
+		final MetaWatcher watcher = new MetaWatcher( renamer );
+		final Thread watching = new Thread( watcher, "MetaRenamer watcher " + renamer.config.sourcePath );
+		Thread hook = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				watcher.stop();
+				try {
+					watching.join();
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				renamer.close();
+			}
+		}, "MetaRenamer watch shutdown" );
+		Runtime.getRuntime().addShutdownHook( hook );
+		watching.start();
+		watching.join();
+		try {
+			Runtime.getRuntime().removeShutdownHook( hook );
+		} catch ( IllegalStateException e ) {
+			// Shutting down already, the hook closes the job.
+		}
+	}
+
+	/** Merges the journals and counters of finished shards into one report, and prints the totals. */
+	protected static void merge( MetaRenamerConfig config ) throws IOException {
+		MetaReport report = ( null == config.reportPath ) ? new MetaReport() : MetaReport.open( Paths.get( config.reportPath ));
+		try {
+			Properties totals = Shard.merge( Paths.get( config.journalPath ), report );
+			if ( !config.quiet ) {
+				System.out.println( "shards merged " + totals.getProperty( "shards" ) + " from \"" + config.journalPath + "\"." );
+				System.out.println( "files visited/renamed/created/collided/missing meta " + totals.getProperty( "filesVisited", "0" ) + "/" +
+					totals.getProperty( "filesRenamed", "0" ) + "/" + totals.getProperty( "filesCreated", "0" ) + "/" +
+					totals.getProperty( "filesCollided", "0" ) + "/" + totals.getProperty( "filesMissingMetadata", "0" ));
+				System.out.println( "outcomes " + report.getOutcomes() + "." );
+			}
+		} finally {
+			report.close();
+		}
+	}
+
+	/** Runs a query on the index and prints the paths, or distinct values and counts, which match. */
+	protected static void query( MetaRenamerConfig config ) throws IOException {
+		if ( null == config.indexPath )
+			throw new IllegalArgumentException( "query needs an index path" );
+		long start = System.nanoTime();
+		Map<String,Integer> results = MetaIndex.query( Paths.get( config.indexPath ), config.query );
+		long micros = ( System.nanoTime() - start ) / 1000;
+		boolean distinct = null != new MetaIndex.Query( config.query ).distinct;
+		for ( Map.Entry<String,Integer> result : results.entrySet() )
+			System.out.println( distinct ? result.getKey() + " (" + result.getValue() + ")" : result.getKey() );
+		if ( !config.quiet )
+			System.out.println( String.format( "%d matches in %.3f ms.", results.size(), micros / 1000.0 ));
+	}
+
+	/** Returns the statistics counters by field name, which shards write for a later merge. */
+	protected Properties counters() {
+		Properties counters = new Properties();
+		counters.setProperty( "filesVisited", Integer.toString( filesVisited ));
+		counters.setProperty( "filesRenamed", Integer.toString( filesRenamed ));
+		counters.setProperty( "filesCreated", Integer.toString( filesCreated ));
+		counters.setProperty( "filesCollided", Integer.toString( filesCollided ));
+		counters.setProperty( "filesMissingMetadata", Integer.toString( filesMissingMetadata ));
+		counters.setProperty( "filesDuplicated", Integer.toString( filesDuplicated ));
+		counters.setProperty( "filesQuarantined", Integer.toString( filesQuarantined ));
+		counters.setProperty( "filesFiltered", Integer.toString( filesFiltered + filesFilteredParsed.get() ));
+		counters.setProperty( "dirsVisited", Integer.toString( dirsVisited ));
+		counters.setProperty( "dirsRenamed", Integer.toString( dirsRenamed ));
+		counters.setProperty( "dirsCreated", Integer.toString( dirsCreated ));
+		counters.setProperty( "dirsCollided", Integer.toString( dirsCollided ));
+		counters.setProperty( "filesBytes", Long.toString( filesBytes ));
+		counters.setProperty( "walkMillis", Long.toString( walkMillis ));
+		return counters;
+	}
+
+	/**
+	 * Parses the command line arguments into a config.
+	 * @return the config, or null if only help was requested
+	 */
+	public static MetaRenamerConfig parseConfig( String [] args ) throws Exception {
 	    // Parse the command line arguments
 		Options cliOptions = createOptions();
 		CommandLineParser cliParser = new BasicParser();
 	    CommandLine line = cliParser.parse( cliOptions, args );
+	    MetaRenamerConfig.Builder builder = new MetaRenamerConfig.Builder();
 
 	    // Gather command line arguments for execution
 	    if( line.hasOption( "help" ) ) {
 	    	HelpFormatter formatter = new HelpFormatter();
 	    	formatter.setWidth( 100 );
 	    	formatter.printHelp( "java -jar MetaRenamer.jar <options>", cliOptions );
-	    	System.exit( 0 );
+	    	return null;
 	    }
-	    if( line.hasOption( "verbose" ) ) {
-	    	verbose = true;	
+	    boolean verbose = line.hasOption( "verbose" );
+	    builder.verbose( verbose );
+	    if( verbose ) {
 	    	System.out.println( "   running in verbose mode");
 	    }	    
 	    if( line.hasOption( "action" ) ) {
-	    	actionMode = true;	
-	    	// this.fileName = line.getOptionValue( "fileName" );
+	    	builder.actionMode( true );
 	    	if ( verbose )
 	    		System.out.println( "   running in test mode");
 	    }	    
 	    if( line.hasOption( "debug" ) ) {
-	    	debug = true;	
+	    	builder.debug( true );
 	    	System.out.println( "   running in debug mode");
 	    }	    
-		msgPrefix = actionMode ? "   action: " : "   proposed: "; 
+	    String sourcePath = ".";
 	    if( line.hasOption( "sourcePath" ) ) {
 	    	sourcePath = line.getOptionValue( "sourcePath" );
 	    	if ( verbose ) {
 	    		System.out.println( "   source path=\"" + Paths.get( sourcePath ) + "\"" );
 	    	}
 	    }	    
-	    checkPath( sourcePath, EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class ) );
+	    builder.sourcePath( sourcePath );
 	    if( line.hasOption( "destinationPath" ) ) {
-	    	destPath  = line.getOptionValue( "destinationPath" );
+	    	String destPath = line.getOptionValue( "destinationPath" );
+	    	builder.destPath( destPath );
 	    	if ( verbose ) {
 	    		System.out.println( "   destination path=\"" + Paths.get( destPath ) + "\"");
 	    	}
-	    } else {
-	    	destPath = sourcePath;
 	    }
-	    checkPath( destPath, EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( CREATE )  );	    
 	    if( line.hasOption( "time" ) ) {
 	    	String option = line.getOptionValue( "time" );
-	    	MetaRenamer.readDateTime(option);
+	    	builder.readDateTime( option );
 	    	if ( verbose ) {
-	    		System.out.println( "   time comparison=" + MetaRenamer.dateTimeComparator + ", datetime=" + DEFAULT_DATE_FORMAT.format( MetaRenamer.dateTimeCompare ) );
+	    		System.out.println( "   time comparison=" + builder.getDateTimeComparator() + ", datetime=" + DEFAULT_DATE_FORMAT.format( builder.getDateTimeCompare() ) );
 	    	}
 	    }
 	    if( line.hasOption( "glob" ) ) {
-	    	fileGlob  = line.getOptionValue( "glob" );
+	    	String fileGlob  = line.getOptionValue( "glob" );
 	    	// Strange Eclipse Windows bug. Asterisks are expanded even when quoted. Will allow @ as * replacement.  
 	    	if (( null != fileGlob ) && fileGlob.contains("@")) {
 	    		System.out.println( "   replacing glob @ with *" );
 	    		fileGlob = fileGlob.replace("@", "*");
 	    	}
+	    	builder.fileGlob( fileGlob );
 	    	if ( verbose ) {
 	    		System.out.println( "   path glob pattern=\"" + fileGlob + "\"" );
 	    	}
 	    }
+	    if( line.hasOption( "filter" ) ) {
+	    	String filter = line.getOptionValue( "filter" );
+	    	MetaFilter.compile( filter ); // fail early on a malformed expression
+	    	builder.filter( filter );
+	    	if ( verbose ) {
+	    		System.out.println( "   filter=\"" + filter + "\"" );
+	    	}
+	    }
+	    if( line.hasOption( "view" ) ) {
+	    	for ( String view : line.getOptionValues( "view" )) {
+	    		builder.view( MetaRenamerConfig.View.parse( view ));
+	    		if ( verbose ) {
+	    			System.out.println( "   view=\"" + view + "\"" );
+	    		}
+	    	}
+	    }
 	    if( line.hasOption( "pattern" ) ) {
-	    	pattern = line.getOptionValue( "pattern" );
+	    	String pattern = line.getOptionValue( "pattern" );
+	    	builder.pattern( pattern );
 	    	if ( verbose ) {
 	    		System.out.println( "   pattern for renaming=\"" + pattern + "\"" );
 	    	}
-	    } else {
-	    	pattern = PATTERN_DEFAULT;	    	
 	    }
-		patterns = MetaUtils.split( pattern, PATTERN_DELIMITER );  // Bugs in String [] keys = pattern.split( " -\\x2E" );  // x2E= point
-		patternKeyNames = MetaUtils.split( pattern, " -./" );  // Bugs in String [] keys = pattern.split( " -\\x2E" );  // x2E= point
 	    if( line.hasOption( "move" ) ) {
-	    	moveTrueCopyFalse = true;
+	    	builder.moveTrueCopyFalse( true );
     		System.out.println( "   files will be moved/renamed" );
 	    } else {
     		System.out.println( "   files will be copied" );
 	    }
 	    if( line.hasOption( "quiet" ) ) {
-	    	quiet = true;
+	    	builder.quiet( true );
 	    }	    
 	    if( line.hasOption( "limit" ) ) {
-	    	filesLimit = Integer.parseInt( line.getOptionValue( "limit" ) );
+	    	int filesLimit = Integer.parseInt( line.getOptionValue( "limit" ) );
+	    	builder.filesLimit( filesLimit );
 	    	if ( verbose ) {
 	    		System.out.println( "   files limited to \"" + filesLimit + "\" file visits." );
 	    	}
-	    } else {
-	    	pattern = PATTERN_DEFAULT;	    	
+	    }
+	    if( line.hasOption( "duplicates" ) ) {
+	    	DuplicateDetector.Policy policy = DuplicateDetector.Policy.valueOf( line.getOptionValue( "duplicates" ).toUpperCase() );
+	    	builder.duplicatePolicy( policy );
+	    	if ( verbose ) {
+	    		System.out.println( "   duplicate policy=" + policy );
+	    	}
+	    }
+	    if( line.hasOption( "budget" ) ) {
+	    	String [] budget = line.getOptionValue( "budget" ).split( "," );
+	    	double seconds = Double.parseDouble( budget[ 0 ] );
+	    	builder.parseTimeoutMillis( (long) ( seconds * 1000 ));
+	    	if ( budget.length > 1 )
+	    		builder.parseMaxMegabytes( Integer.parseInt( budget[ 1 ].trim() ));
+	    	if ( verbose ) {
+	    		System.out.println( "   parse budget seconds,MB=" + line.getOptionValue( "budget" ) );
+	    	}
+	    }
+	    if( line.hasOption( "quarantine" ) ) {
+	    	String quarantinePath = line.getOptionValue( "quarantine" );
+	    	builder.quarantinePath( quarantinePath );
+	    	if ( verbose ) {
+	    		System.out.println( "   quarantine path=\"" + Paths.get( quarantinePath ) + "\"" );
+	    	}
+	    }
+	    if( line.hasOption( "concurrency" ) ) {
+	    	String concurrency = line.getOptionValue( "concurrency" );
+	    	builder.concurrency( concurrency );
+	    	if ( verbose ) {
+	    		System.out.println( "   adaptive workers min,max=" + concurrency );
+	    	}
+	    }
+	    if( line.hasOption( "io" ) ) {
+	    	String ioLimits = line.getOptionValue( "io" );
+	    	builder.ioLimits( ioLimits );
+	    	if ( verbose ) {
+	    		System.out.println( "   parallel I/O per device reads,writes,MB/s=" + ioLimits );
+	    	}
+	    }
+	    if( line.hasOption( "directories" ) ) {
+	    	builder.directoryRename( true );
+	    	if ( verbose ) {
+	    		System.out.println( "   album directories renamed whole when moving." );
+	    	}
+	    }
+	    if( line.hasOption( "keys" ) ) {
+	    	builder.stopAtKeys( true );
+	    	if ( verbose ) {
+	    		System.out.println( "   parses stop once all pattern keys are filled." );
+	    	}
+	    }
+	    if( line.hasOption( "sample" ) ) {
+	    	int albumSample = Integer.parseInt( line.getOptionValue( "sample" ) );
+	    	builder.albumSample( albumSample );
+	    	if ( verbose ) {
+	    		System.out.println( "   album keys settled from " + albumSample + " parsed tracks per directory." );
+	    	}
+	    }
+	    if( line.hasOption( "archives" ) ) {
+	    	builder.archives( true );
+	    	if ( verbose ) {
+	    		System.out.println( "   zip and tar archives read as directories." );
+	    	}
+	    }
+	    if( line.hasOption( "fileSystem" ) ) {
+	    	FileNameSanitizer.Rules fileSystem = FileNameSanitizer.Rules.valueOf( line.getOptionValue( "fileSystem" ).toUpperCase() );
+	    	builder.fileSystem( fileSystem );
+	    	if ( verbose ) {
+	    		System.out.println( "   names sanitized for file system=" + fileSystem );
+	    	}
+	    }
+	    if( line.hasOption( "durability" ) ) {
+	    	Durability.Policy durability = Durability.Policy.valueOf( line.getOptionValue( "durability" ).toUpperCase() );
+	    	builder.durability( durability );
+	    	if ( verbose ) {
+	    		System.out.println( "   durability policy=" + durability );
+	    	}
+	    }
+	    if( line.hasOption( "verify" ) ) {
+	    	builder.verify( true );
+	    	if ( verbose ) {
+	    		System.out.println( "   copies verified by checksum in the background." );
+	    	}
+	    }
+	    if( line.hasOption( "index" ) ) {
+	    	String indexPath = line.getOptionValue( "index" );
+	    	builder.indexPath( indexPath );
+	    	if ( verbose ) {
+	    		System.out.println( "   index path=\"" + Paths.get( indexPath ) + "\"" );
+	    	}
+	    }
+	    if( line.hasOption( "query" ) ) {
+	    	String query = line.getOptionValue( "query" );
+	    	new MetaIndex.Query( query ); // fail early on a malformed query
+	    	builder.query( query );
+	    	if ( verbose ) {
+	    		System.out.println( "   query=\"" + query + "\"" );
+	    	}
+	    }
+	    if( line.hasOption( "shard" ) ) {
+	    	String shard = line.getOptionValue( "shard" );
+	    	builder.shard( shard );
+	    	if ( verbose ) {
+	    		System.out.println( "   shard=" + shard );
+	    	}
+	    }
+	    if( line.hasOption( "journal" ) ) {
+	    	String journalPath = line.getOptionValue( "journal" );
+	    	builder.journalPath( journalPath );
+	    	if ( verbose ) {
+	    		System.out.println( "   shard journal path=\"" + Paths.get( journalPath ) + "\"" );
+	    	}
+	    }
+	    if( line.hasOption( "order" ) ) {
+	    	int orderBatch = Integer.parseInt( line.getOptionValue( "order" ) );
+	    	builder.orderBatch( orderBatch );
+	    	if ( verbose ) {
+	    		System.out.println( "   files read in inode order, batches of " + orderBatch + "." );
+	    	}
+	    }
+	    if( line.hasOption( "report" ) ) {
+	    	String reportPath = line.getOptionValue( "report" );
+	    	builder.reportPath( reportPath );
+	    	if ( verbose ) {
+	    		System.out.println( "   report path=\"" + Paths.get( reportPath ) + "\", format=" + MetaReport.formatOf( Paths.get( reportPath )) );
+	    	}
+	    }
+	    if( line.hasOption( "watch" ) ) {
+	    	int reconcileMinutes = Integer.parseInt( line.getOptionValue( "watch" ) );
+	    	builder.watch( true ).watchReconcileMinutes( reconcileMinutes );
+	    	if ( verbose ) {
+	    		System.out.println( "   watching for new files, reconcile every " + reconcileMinutes + " minutes." );
+	    	}
 	    }
 	    
 	    // Init things
-	    MetaRenamer.readDoNotParse( "src/main/resources/doNotParse.txt ", doNotParse);
+	    Set<String> doNotParse = new TreeSet<String>();
+	    MetaRenamer.readDoNotParse( DO_NOT_PARSE_DEFAULT, doNotParse );
+	    builder.doNotParse( doNotParse );
+	    return builder.build();
+	}
 	    
-	    // Init Tika variables
-	    tikaConfig = new TikaConfig();
-	    defaultParser = (DefaultParser) tikaConfig.getParser();
-	    defaultHandler = new DefaultHandler();
-	    parseContext = new ParseContext(); 
+	/** Checks the source and destination paths, then walks the source tree. */
+	public MetaRenamer run() throws IOException {
+		run( null );
+		return this;
+	}
 	    
+	/** Checks the source and destination paths, then walks the source tree, giving each file result to the given consumer. */
+	public void run( Consumer<FileResult> results ) throws IOException {
+	    checkPath( config.sourcePath, EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class ) );
+	    checkPath( config.destPath, EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( CREATE )  );
 	    // Kick off tree walking process.
-    	// See file system path matching at http://docs.oracle.com/javase/tutorial/essential/io/find.html
-	    matcher = FileSystems.getDefault().getPathMatcher("glob:" + fileGlob );
+	    MetaRenamerFileVisitor visitor = new MetaRenamerFileVisitor( results );
+	    long startTime = System.currentTimeMillis();
 	    try {
-	    	Files.walkFileTree( Paths.get( sourcePath ), new MetaRenamerFileVisitor() );
-			if (!quiet) {
-				if (verbose) {
-					if ( missingMetadata.size() > 0) {
-						StringBuilder sb = new StringBuilder( "missing metadata keys (" + missingMetadata.size() + "/" + patternKeyNames.length + ")=" );
-						int i = 0;
-						for ( String metadataKey: missingMetadata) {
-							if ( i > 0 ) sb.append( ",");
-							sb.append( metadataKey );
-							i++;
+	    	Files.walkFileTree( Paths.get( config.sourcePath ), visitor );
+	    } finally {
+	    	visitor.finish();
+	    	walkMillis += System.currentTimeMillis() - startTime;
+	    }
+	    if ( null != verifier )
+	    	verifier.finish(); // so the stats count every copy
+	    durability.flush();
+	}
+
+	/**
+	 * Returns a lazy Stream of file results. The tree is walked on a background thread
+	 * which runs at most {@link #STREAM_QUEUE_SIZE} results ahead of the consumer.
+	 * Closing the stream stops the walk, waits for the walker, and closes the job.
+	 */
+	public Stream<FileResult> stream() {
+		final FileResult endOfStream = new FileResult( null, null, null, Outcome.IGNORED, null );
+		final BlockingQueue<FileResult> queue = new ArrayBlockingQueue<FileResult>( STREAM_QUEUE_SIZE );
+		final Thread walker = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					MetaRenamer.this.run( new Consumer<FileResult>() {
+						@Override
+						public void accept( FileResult result ) {
+							put( queue, result );
 						}
-						System.out.println( sb.toString() );
-					} else {
-						System.out.println( "no missing metadata" );
+					});
+				} catch ( Exception e ) {
+					put( queue, FileResult.failed( Paths.get( config.sourcePath ), e ));
+				} finally {
+					put( queue, endOfStream );
+				}
+			}
+		}, "MetaRenamer walker " + config.sourcePath );
+		walker.setDaemon( true );
+
+		Iterator<FileResult> iterator = new Iterator<FileResult>() {
+			FileResult next = null;
+
+			@Override
+			public boolean hasNext() {
+				if ( null == next ) {
+					try {
+						next = queue.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						next = endOfStream;
 					}
 				}
-				System.out.println( "dirs visited/renamed/created/collided/missing meta " + dirsVisited + "/" + dirsRenamed + "/" + dirsCreated + "/" + dirsCollided + "/" + dirsMissingMetadata + "." );
-				System.out.println( "files visited/renamed/created/collided/missing meta " + filesVisited + "/" + filesRenamed + "/" + filesCreated + "/" + filesCollided + "/" + filesMissingMetadata ); 
+				return endOfStream != next;
 			}
-	    } catch ( IOException e ) {
-	    	System.err.println( "Exception=" + e);
-	    }
 
-		// conclude and end
-       long elapsedTime = System.currentTimeMillis() - startTime;
-       System.out.println( "elapsed time=" + format( elapsedTime ));       
+			@Override
+			public FileResult next() {
+				if ( !hasNext() )
+					throw new NoSuchElementException();
+				FileResult result = next;
+				next = null;
+				return result;
+			}
+		};
+		walker.start();
+		return StreamSupport.stream( Spliterators.spliteratorUnknownSize( iterator, Spliterator.ORDERED | Spliterator.NONNULL ), false )
+			.onClose( new Runnable() {
+				@Override
+				public void run() {
+					cancelled = true;
+					queue.clear(); // unblock the walker
+					try {
+						walker.join();
+					} catch ( InterruptedException e ) {
+						Thread.currentThread().interrupt();
+					}
+					close();
+				}
+			});
+	}
+
+	/** Puts a result on a stream queue. Gives up when the stream is closed. */
+	protected void put( BlockingQueue<FileResult> queue, FileResult result ) {
+		try {
+			while ( !queue.offer( result, 100, TimeUnit.MILLISECONDS )) {
+				if ( cancelled )
+					return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Prints missing metadata and directory and file counts unless quiet. */
+	public void printStats() {
+		if (!config.quiet) {
+			if (config.verbose) {
+				Map<String,Integer> missingMetadata = report.getMissingKeys();
+				if ( missingMetadata.size() > 0) {
+					StringBuilder sb = new StringBuilder( "missing metadata keys (" + missingMetadata.size() + "/" + config.patternKeyNames.size() + ")=" );
+					int i = 0;
+					for ( Map.Entry<String,Integer> metadataKey: missingMetadata.entrySet() ) {
+						if ( i > 0 ) sb.append( ",");
+						sb.append( metadataKey.getKey() ).append( " " ).append( metadataKey.getValue() );
+						i++;
+					}
+					System.out.println( sb.toString() );
+				} else {
+					System.out.println( "no missing metadata" );
+				}
+				System.out.println( "media types " + report.getMediaTypes() + "." );
+			}
+			System.out.println( "dirs visited/renamed/created/collided/missing meta " + dirsVisited + "/" + dirsRenamed + "/" + dirsCreated + "/" + dirsCollided + "/" + dirsMissingMetadata + "." );
+			System.out.println( "files visited/renamed/created/collided/missing meta " + filesVisited + "/" + filesRenamed + "/" + filesCreated + "/" + filesCollided + "/" + filesMissingMetadata );
+			if ( !config.views.isEmpty() )
+				System.out.println( "views " + config.views.size() + " linked/copied/collided " + viewsLinked.get() + "/" + viewsCopied.get() + "/" + viewsCollided.get() + "." );
+			if ( null != filter )
+				System.out.println( "files filtered on attributes/metadata " + filesFiltered + "/" + filesFilteredParsed.get() + "." );
+			if ( walkMillis > 0 ) {
+				double megabytes = filesBytes / ( 1024.0 * 1024.0 );
+				System.out.println( String.format( "walk %.1f MB in %s, %.2f MB/s with every stage.", megabytes, format( walkMillis ), megabytes * 1000.0 / walkMillis ));
+			}
+			String [] orders = { "directory order", "inode order" };
+			for ( int order = DIRECTORY_ORDER; order <= INODE_ORDER; order++ ) {
+				if ( readClocks[ order ].rate() > 0 )
+					System.out.println( "files read " + readClocks[ order ] + ", " + orders[ order ] + (( INODE_ORDER == order ) ? "." : (( config.orderBatch > 0 ) ? " baseline batch." : "." )));
+			}
+			if (( readClocks[ DIRECTORY_ORDER ].rate() > 0 ) && ( readClocks[ INODE_ORDER ].rate() > 0 ))
+				System.out.println( String.format( "inode order read %.2f times the directory order rate.", readClocks[ INODE_ORDER ].rate() / readClocks[ DIRECTORY_ORDER ].rate() ));
+			if (( Durability.Policy.NONE != durability.policy ) && config.verbose )
+				System.out.println( "   durability " + durability.policy + " synced files/dirs " + durability.filesSynced.get() + "/" + durability.dirsSynced.get() + "." );
+			if ( null != verifier ) {
+				List<CopyVerifier.Mismatch> mismatches = verifier.getMismatches();
+				System.out.println( "files verified/mismatched " + verifier.verified.get() + "/" + mismatches.size() + "." );
+				for ( CopyVerifier.Mismatch mismatch : mismatches )
+					System.out.println( "   mismatch " + mismatch );
+			}
+			if ( filesQuarantined > 0 )
+				System.out.println( "files quarantined " + filesQuarantined + ", " + quarantine.getEntries().size() + " in quarantine." );
+			if ( config.verbose ) {
+				for ( ParseBudget.Timing timing : budget.getSlowest() )
+					System.out.println( "   slowest " + timing );
+			}
+			if (( parsesSkipped.get() > 0 ) && config.verbose )
+				System.out.println( "   parses skipped with the pattern resolved from names " + parsesSkipped.get() + "." );
+			if ( config.stopAtKeys && config.verbose )
+				System.out.println( "   parses stopped with pattern keys filled " + parsesStopped.get() + "." );
+			if (( paths.size() > 0 ) && config.verbose )
+				System.out.println( String.format( "   path dictionary %d ids, %.1f MB off heap.", paths.size(), paths.offHeapBytes() / ( 1024.0 * 1024.0 )));
+			if (( null != consensus ) && config.verbose )
+				System.out.println( "   album consensus tag reads " + consensus.tagReads.get() + ", fallbacks to full parse " + consensus.fallbacks.get() + "." );
+			if (( null != controller ) && config.verbose )
+				System.out.println( "   concurrency " + controller.name + " limit " + controller.getLimit() + " of " + controller.min + ".." + controller.max + ", " + controller.getDecisionCount() + " decisions." );
+			if (( null != scheduler ) && config.verbose ) {
+				for ( IoScheduler.Device device : scheduler.getDevices() )
+					System.out.println( "   device " + device );
+			}
+			if ( null != duplicates ) {
+				Map<Path,List<Path>> groups = duplicates.getGroups();
+				System.out.println( "files duplicated " + filesDuplicated + " in " + groups.size() + " groups." );
+				if ( config.verbose ) {
+					for ( Map.Entry<Path,List<Path>> group : groups.entrySet() ) {
+						System.out.println( "   duplicates of \"" + group.getKey() + "\"" );
+						for ( Path source : group.getValue() )
+							System.out.println( "      \"" + source + "\"" );
+					}
+				}
+			}
+		}
 	}
 	
-	/** This is the file visitor called for each file on the path. */
-	public static class MetaRenamerFileVisitor extends SimpleFileVisitor<Path> {
+	/** Counts a finished file and adds it to the report. */
+	protected void record( FileResult result ) {
+		switch ( result.outcome ) {
+		case MOVED: filesRenamed++; break;
+		case COPIED: filesCreated++; break;
+		case COLLIDED: filesCollided++; break;
+		case DUPLICATE: filesDuplicated++; break;
+		case QUARANTINED: filesQuarantined++; break;
+		default:
+		}
+		if ( !result.missingKeys.isEmpty() )
+			filesMissingMetadata++;
+		report.accept( result );
+		if (( Outcome.MOVED == result.outcome ) || ( Outcome.COPIED == result.outcome )) {
+			try {
+				if ( null != index )
+					index.move( result.source, result.destination );
+			} catch ( IOException e ) {
+				System.err.println( "   index exception=" + e.getMessage() );
+			}
+			try {
+				durability.landed( result.destination, ( Outcome.MOVED == result.outcome ) ? result.source.getParent() : null );
+				for ( Path view : result.views )
+					durability.landed( view, null );
+			} catch ( IOException e ) {
+				System.err.println( "   durability exception=" + e.getMessage() );
+			}
+		} else if ( null != index ) {
+			index.discard( result.source ); // indexed only where it landed
+		}
+		if ( null != shard ) {
+			try {
+				shard.journal( result );
+			} catch ( IOException e ) {
+				System.err.println( "   shard journal exception=" + e.getMessage() );
+			}
+		}
+	}
+
+	/** Tests if this process owns a path, always true without a shard. */
+	protected boolean owns( Path path ) {
+		return ( null == shard ) || shard.owns( Paths.get( config.sourcePath ), path );
+	}
+
+	/**
+	 * This is the file visitor called for each file on the path.
+	 * With I/O limits, files are handed to workers and results are delivered on the walking thread
+	 * as they finish, so counters, report, and consumer are never called concurrently.
+	 * When renaming directories, workers plan the files, and each directory is acted on
+	 * by the walking thread once all of its plans are back.
+	 */
+	public class MetaRenamerFileVisitor extends SimpleFileVisitor<Path> {
+		protected final Consumer<FileResult> results;
+		protected final CompletionService<FileResult> completion;
+		protected int inFlight = 0;
+		protected final List<Path> batch; // files waiting to be read in inode order, null for directory order
+		protected final Deque<DirectoryPlan> plans; // planned files of each open directory, null unless renaming directories
+		protected int planning = 0; // plans with workers, over all open directories
+		protected int batches = 0; // batches flushed, the first read in directory order
+		protected final Deque<Object[]> walks = new ArrayDeque<Object[]>(); // walk event and bytes visited at entry of each open directory
+
+		/** Planned files of one open directory, and its plans still with workers, oldest first. */
+		protected class DirectoryPlan {
+			protected final List<FileResult> planned = new ArrayList<FileResult>();
+			protected final Deque<Future<FileResult>> pending = new ArrayDeque<Future<FileResult>>();
+		}
+
+		public MetaRenamerFileVisitor( Consumer<FileResult> results ) {
+			this.results = results;
+			this.completion = ( null == workers ) ? null : new ExecutorCompletionService<FileResult>( workers );
+			this.batch = ( config.orderBatch > 0 ) ? new ArrayList<Path>( config.orderBatch ) : null;
+			this.plans = directoryMode ? new ArrayDeque<DirectoryPlan>() : null;
+		}
+
+		/** Visits one file, catching any exception as a failed result. */
+		protected FileResult work( Path path ) {
+			return work( path, false );
+		}
+
+		/** Visits or plans one file, catching any exception as a failed result. */
+		protected FileResult work( Path path, boolean plan ) {
+			return work( path, plan, readClocks[ DIRECTORY_ORDER ] );
+		}
+
+		/** Visits or plans one file, timing its reads on the clock of the order it was read in. */
+		protected FileResult work( Path path, boolean plan, ReadClock clock ) {
+			long start = System.nanoTime();
+			readClock.set( clock );
+        	try {
+				return fileVisitor( path.toFile(), plan );
+			} catch (Exception e) {
+				System.err.println( "   exception=" + e.getMessage());
+				e.printStackTrace();
+				return FileResult.failed( path, e );
+			} finally {
+				readClock.remove();
+				if ( null != controller )
+					controller.completed( System.nanoTime() - start );
+			}
+		}
+
+		/** Files allowed in flight, two per worker for a fixed count. */
+		protected int inFlightLimit() {
+			return ( null == controller ) ? 2 * workerCount : controller.getLimit();
+		}
+
+		protected void deliver( FileResult result ) {
+			record( result );
+        	if ( null != results )
+        		results.accept( result );
+		}
+
+		/** Visits the file now, or hands it to a worker, keeping files in flight within the limit. */
+		protected void submit( final Path path ) {
+			submit( path, readClocks[ DIRECTORY_ORDER ] );
+		}
+
+		protected void submit( final Path path, final ReadClock clock ) {
+			if ( null == completion ) {
+				deliver( work( path, false, clock ));
+				return;
+			}
+			while ( inFlight >= inFlightLimit() )
+				deliver( take() );
+			completion.submit( new Callable<FileResult>() {
+				@Override
+				public FileResult call() { return work( path, false, clock ); }
+			});
+			inFlight++;
+			Future<FileResult> done;
+			while ( null != ( done = completion.poll() )) {
+				inFlight--;
+				deliver( get( done ));
+			}
+		}
+
+		/**
+		 * Sorts the batch by inode, which cuts seeking on spinning disks, then visits it.
+		 * The first batch is read in directory order, as a baseline for the inode order read rate.
+		 */
+		protected void flush() {
+			if ( batch.isEmpty() )
+				return;
+			ReadClock clock = readClocks[ DIRECTORY_ORDER ];
+			if ( batches++ > 0 ) {
+				if ( MetaUtils.sortByInode( batch ))
+					clock = readClocks[ INODE_ORDER ];
+				else if ( config.debug )
+					System.out.println( "   no inode numbers, batch left in directory order." );
+			}
+			for ( Path path : batch ) {
+				if ( cancelled )
+					break;
+				if ( null != plans )
+					plan( path, clock );
+				else
+					submit( path, clock );
+			}
+			batch.clear();
+		}
+
+		/** Proposes a path for the file, now or on a worker, which is acted on with the rest of its directory. */
+		protected void plan( final Path path ) {
+			plan( path, readClocks[ DIRECTORY_ORDER ] );
+		}
+
+		protected void plan( final Path path, final ReadClock clock ) {
+			DirectoryPlan dir = plans.peek();
+			if ( null == workers ) {
+				planned( dir, work( path, true, clock ));
+				return;
+			}
+			while ( planning >= inFlightLimit() )
+				resolveOldest();
+			dir.pending.add( workers.submit( new Callable<FileResult>() {
+				@Override
+				public FileResult call() { return work( path, true, clock ); }
+			}));
+			planning++;
+		}
+
+		/** Waits for the oldest plan with a worker, of the innermost directory which has one. */
+		protected void resolveOldest() {
+			for ( DirectoryPlan dir : plans ) {
+				if ( !dir.pending.isEmpty() ) {
+					resolve( dir );
+					return;
+				}
+			}
+		}
+
+		/** Waits for the oldest plan with a worker of a directory. */
+		protected void resolve( DirectoryPlan dir ) {
+			Future<FileResult> done = dir.pending.poll();
+			planning--;
+			planned( dir, get( done ));
+		}
+
+		/** Keeps a proposed file for its directory, and delivers any other result now. */
+		protected void planned( DirectoryPlan dir, FileResult planned ) {
+			if ( Outcome.PROPOSED == planned.outcome )
+				dir.planned.add( planned );
+			else
+				deliver( planned );
+		}
+
+		/** Waits for the plans of a directory and returns its proposed files. */
+		protected List<FileResult> planned( DirectoryPlan dir ) {
+			while ( !dir.pending.isEmpty() )
+				resolve( dir );
+			return dir.planned;
+		}
+
+		/** Visits any batched or planned files, then waits for and delivers files still with workers. */
+		public void finish() {
+			if ( null != batch )
+				flush();
+			while (( null != plans ) && !plans.isEmpty() ) {
+				for ( FileResult result : fileActions( planned( plans.pop() )))
+					deliver( result ); // walk ended early, act file by file
+			}
+			while ( inFlight > 0 )
+				deliver( take() );
+		}
+
+		/** Visits any batched files, then waits for and delivers files still with workers. */
+		protected void drain() {
+			if (( null != batch ) && ( null == plans ))
+				flush();
+			while ( inFlight > 0 )
+				deliver( take() );
+		}
+
+		protected FileResult take() {
+			try {
+				Future<FileResult> done = completion.take();
+				inFlight--;
+				return get( done );
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				inFlight = 0; // give up on the rest
+				return FileResult.failed( Paths.get( config.sourcePath ), e );
+			}
+		}
+
+		protected FileResult get( Future<FileResult> done ) {
+			try {
+				return done.get();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				return FileResult.failed( Paths.get( config.sourcePath ), e );
+			} catch ( ExecutionException e ) {
+				return FileResult.failed( Paths.get( config.sourcePath ), new Exception( e.getCause() ));
+			}
+		}
+
 	    @Override
 	    public FileVisitResult visitFile(Path path, BasicFileAttributes attr) {
+	    	if ( cancelled )
+	    		return FileVisitResult.TERMINATE;
 	        if (attr.isRegularFile()) {
 				// System.out.println("   file=\"" + path.getFileName() + "\", isFile=" + attr.isRegularFile() + ", isDirectory=" + attr.isDirectory() );
 				if (!attr.isDirectory()) {
@@ -266,30 +1151,43 @@ public class MetaRenamer {
 							return FileVisitResult.CONTINUE;
 					} catch ( IOException e) {
 					}
+					if ( !owns( path ))
+						return FileVisitResult.CONTINUE; // another shard visits it
+					if ( config.archives && ArchiveSource.isArchive( path )) {
+						return visitArchive( path );
+					}
 					filesVisited++;
-					if (filesVisited >= filesLimit) {
-						if (verbose) {
-							System.out.println("   files visited limit reached \"" + filesLimit + "\".");
+					if (filesVisited >= config.filesLimit) {
+						if (config.verbose) {
+							System.out.println("   files visited limit reached \"" + config.filesLimit + "\".");
 						}
 						return FileVisitResult.TERMINATE;
 					}
 				}
 					
 				// Check lastModified
-				if ( null != MetaRenamer.dateTimeCompare ) {
+				if ( null != config.getDateTimeCompare() ) {
 					File file = path.toFile();
-					boolean useIt = MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, new Date( file.lastModified() ) ); 
+					boolean useIt = MetaRenamer.testDateTime( config.dateTimeComparator, config.getDateTimeCompare(), new Date( file.lastModified() ) );
     				// System.out.println("   file=\"" + file.getName() + "\"" + ", datetime \"" + DEFAULT_DATE_FORMAT.format( new Date( file.lastModified() )) + "\" " + 
-    				//    MetaRenamer.dateTimeComparator.toString() + DEFAULT_DATE_FORMAT.format( MetaRenamer.dateTimeCompare ) + ", continue=" + useIt);
+    				//    config.dateTimeComparator.toString() + DEFAULT_DATE_FORMAT.format( config.getDateTimeCompare() ) + ", continue=" + useIt);
 					if ( !useIt ) {
 	    		        return FileVisitResult.SKIP_SUBTREE;
 					}
 				}
-            	try {
-					MetaRenamer.fileVisitor( path.toFile() );
-				} catch (Exception e) {
-					System.err.println( "   exception=" + e.getMessage());
-					e.printStackTrace();
+				if (( null != filter ) && Boolean.FALSE.equals( filter.test( path, attr, null ))) {
+					filesFiltered++;
+					return FileVisitResult.CONTINUE;
+				}
+				filesBytes += attr.size();
+				if (( null == batch ) && ( null != plans )) {
+					plan( path );
+				} else if ( null == batch ) {
+					submit( path );
+				} else {
+					batch.add( path );
+					if ( batch.size() >= config.orderBatch )
+						flush();
 				}
 	        } else if (attr.isSymbolicLink()) {
 		        System.out.format( "   will not follow symbolic link: %s%n", path );
@@ -299,8 +1197,49 @@ public class MetaRenamer {
 	        return FileVisitResult.CONTINUE;
 	    }
 	    
+	    /** Visits the entries of an archive in order on the walking thread, as the archive streams by. */
+	    protected FileVisitResult visitArchive( Path archive ) {
+	    	final FileVisitResult [] result = { FileVisitResult.CONTINUE };
+	    	try {
+	    		ArchiveSource.read( archive, new ArchiveSource.EntryVisitor() {
+	    			@Override
+	    			public boolean visit( ArchiveSource.Entry entry ) {
+	    				if ( cancelled || ( ++filesVisited >= config.filesLimit )) {
+	    					result[ 0 ] = FileVisitResult.TERMINATE;
+	    					return false;
+	    				}
+	    				if (( null != filter ) && Boolean.FALSE.equals( filter.test( entry.path, entry, null ))) {
+	    					filesFiltered++;
+	    					return true;
+	    				}
+	    				filesBytes += entry.size();
+	    				deliver( entryVisitor( entry ));
+	    				return true;
+	    			}
+	    		});
+	    	} catch ( IOException e ) {
+	    		System.err.println( "   archive \"" + archive + "\" exception=" + e.getMessage() );
+	    		deliver( FileResult.failed( archive, e ));
+	    	}
+	    	return result[ 0 ];
+	    }
+
 	    @Override
 	    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+	    	if (( null != plans ) && ( null != batch ) && !plans.isEmpty() )
+	    		flush(); // batches of planned files stay within their directory
+	    	Object event = StageEvents.begin( StageEvents.Stage.WALK );
+	    	FileVisitResult result = enterDirectory( dir, attrs );
+	    	if ( FileVisitResult.CONTINUE == result )
+	    		walks.push( new Object [] { event, filesBytes } );
+	    	if (( null != plans ) && ( FileVisitResult.CONTINUE == result ))
+	    		plans.push( new DirectoryPlan() );
+	    	return result;
+	    }
+
+	    protected FileVisitResult enterDirectory(Path dir, BasicFileAttributes attrs) {
+	    	if ( cancelled )
+	    		return FileVisitResult.TERMINATE;
 	    	// Only run glob on direct children of sourcePath.
 	    	// System.out.println( "   parent=\"" + dir.getParent().toString() + "\", equals=" + dir.getParent().toString().equals( sourcePath ) + ", compareTo=" + dir.getParent().compareTo( Paths.get( sourcePath )));
 			if (attrs.isDirectory()) {
@@ -308,18 +1247,20 @@ public class MetaRenamer {
 				dirsVisited++;
 			}
 	    	
-	    	if ( dir.getParent().toString().equals( sourcePath )) {
+	    	if (( null != dir.getParent() ) && dir.getParent().toString().equals( config.sourcePath )) {
 	    		Path name = dir.getFileName();
 	    		if (name != null)  {
+	    			if ( !owns( dir ))
+	    				return FileVisitResult.SKIP_SUBTREE; // another shard walks it
 	    			if ( matcher.matches(name) ) {
 	    				// if (( verbose ) && !( "*".equals( fileGlob ))) 
 	    				//	System.out.println("   sourcePath child \"" + name + "\" matches glob." );
 	    				// Check lastModified
-	    				if ( null != MetaRenamer.dateTimeCompare ) {
+	    				if ( null != config.getDateTimeCompare() ) {
 	    					File file = dir.toFile();
-	    					boolean useIt = MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, new Date( file.lastModified() ) ); 
+	    					boolean useIt = MetaRenamer.testDateTime( config.dateTimeComparator, config.getDateTimeCompare(), new Date( file.lastModified() ) );
 		    				// System.out.println("   file=\"" + file.getName() + "\"" + ", datetime \"" + DEFAULT_DATE_FORMAT.format( new Date( file.lastModified() )) + "\" " + 
-			    			// MetaRenamer.dateTimeComparator.toString() + DEFAULT_DATE_FORMAT.format( MetaRenamer.dateTimeCompare ) + ", continue=" + useIt);
+			    			// config.dateTimeComparator.toString() + DEFAULT_DATE_FORMAT.format( config.getDateTimeCompare() ) + ", continue=" + useIt);
 	    					if ( useIt ) {
 	    						return FileVisitResult.CONTINUE;
 	    					} else {
@@ -338,11 +1279,25 @@ public class MetaRenamer {
         	return FileVisitResult.CONTINUE;		    		
 	    }
 	    
-	    // @Override
-	    // public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-	    // 	// System.out.println( "   done visiting \"" + dir.toString() + "\"" );
-	    // 	return super.postVisitDirectory(dir, exc);
-	    // }
+	    @Override
+	    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+	    	// System.out.println( "   done visiting \"" + dir.toString() + "\"" );
+	    	if (( null != plans ) && !plans.isEmpty() ) {
+	    		if ( null != batch )
+	    			flush();
+	    		for ( FileResult result : directoryAction( dir, planned( plans.pop() )))
+	    			deliver( result );
+	    	}
+	    	if ( Durability.Policy.DIRECTORY == durability.policy )
+	    		drain(); // so the sync covers every file of the directory
+	    	durability.directoryDone();
+	    	FileVisitResult result = cancelled ? FileVisitResult.TERMINATE : super.postVisitDirectory(dir, exc);
+	    	if ( !walks.isEmpty() ) {
+	    		Object [] walk = walks.pop();
+	    		StageEvents.end( walk[ 0 ], dir, null, null, filesBytes - (Long) walk[ 1 ], result );
+	    	}
+	    	return result;
+	    }
 		
 	}
 	
@@ -363,147 +1318,782 @@ public class MetaRenamer {
 		options.addOption( "h", "help", false, "print the command line options." );
 		options.addOption( "a", "action", false, "perform actions, otherwise just list what would happen." );
 		options.addOption( "b", "debug", false, "prints many more messages to the console than verbose." );
+		options.addOption( "n", "sample", true, "fully parses <arg> tracks per directory to settle album keys, then reads only the tags of the rest." );
 		options.addOption( "s", "sourcePath", true, "starting path for file search. The default is the local directory for the app." );
+		options.addOption( "c", "concurrency", true, "tunes parallel workers at runtime between \"min,max\" by measured files/s and latency, for example \"1,16\"." );
 		options.addOption( "d", "destinationPath", true, "desination path for file search. The default is the source directory." );
+		options.addOption( "e", "budget", true, "cancels a file's detect or parse stage over \"seconds,MB\" allocated and quarantines the file, for example \"30,256\"." );
+		options.addOption( "f", "filter", true, "only renames files which pass an expression such as \"size > 10MB and mtime >= 2015-01-01 and xmpDM:genre = Jazz\"." );
 		options.addOption( "g", "glob", true, "file name pattern matching glob (http://docs.oracle.com/javase/tutorial/essential/io/fileOps.html#glob)." );
-		options.addOption( "p", "pattern", true, "pattern for filename and parent directories." );
+		options.addOption( "z", "shard", true, "splits the tree with other processes as \"index/count\", for example \"0/4\", or \"merge\" merges the journals of finished shards." );
+		options.addOption( null, "archives", false, "reads zip, tar, and tar.gz archives as directories, writing their media straight to the destination." );
+		options.addOption( null, "fileSystem", true, "sanitize names for a target file system: default, windows, posix, macos (decomposed), or fat32 (255 character names)." );
+		options.addOption( null, "durability", true, "syncs copies and moves to storage by policy \"none\", \"file\", \"directory\", or \"run\". The default is none." );
+		options.addOption( null, "verify", false, "checks each copy against a checksum of its source taken during the copy, in the background, and reports mismatches." );
+		options.addOption( null, "index", true, "keeps the key fields of renamed files in an index file, updated on each run." );
+		options.addOption( null, "query", true, "queries the index rather than walking, for example \"xmpDM:album where xmpDM:artist=Miles Davis\" or \"xmpDM:trackNumber=\"." );
+		options.addOption( null, "journal", true, "directory the shards share for locks, claims, and journals. Use a shared mount for shards on several hosts." );
+		options.addOption( "o", "order", true, "reads files in batches of <arg> sorted by inode, which cuts seeking on spinning disks. The first batch is read in directory order, to compare read rates." );
+		options.addOption( "p", "pattern", true, "pattern for filename and parent directories. A key may be a fallback chain such as xmpDM:album,dirname." );
 		options.addOption( "m", "move", false, "move renamed files rather than copy them." );
 		options.addOption( "q", "quiet", false, "mute all logging including title and stats." );
+		options.addOption( "i", "io", true, "copies and moves in parallel with limits per device \"reads,writes,MB/s\", for example \"2,1,40\"." );
+		options.addOption( "j", "view", true, "also files each file into another view given as pattern=destination. May be repeated. Views share hard links where possible." );
+		options.addOption( "k", "keys", false, "stops each parse once all pattern keys are filled, skipping extraction of the body." );
 		options.addOption( "l", "limit", true, "end after visiting <limit> file count." );
+		options.addOption( "u", "duplicates", true, "tells duplicates from collisions and handles them by policy \"skip\", \"link\", or \"newest\"." );
+		options.addOption( "r", "report", true, "writes a line per file to the given report file, JSON lines if it ends in .json or .jsonl, otherwise CSV." );
 		options.addOption( "t", "time", true, "accepts if file compares to given datetime (for example \"GE2015-01-01\" or \"EQ2015-04-15\")." );
 		options.addOption( "v", "verbose", false, "prints many more messages to the console than normal." );
+		options.addOption( "y", "directories", false, "with move, renames an album directory in one step when all its files agree on the directory part of the pattern." );
+		options.addOption( "w", "watch", true, "keep running and rename new files as they land. Walks the whole tree every <arg> minutes to catch missed files." );
+		options.addOption( "x", "quarantine", true, "file listing quarantined files, which later runs skip until the files change." );
 		return options;
 	}
 
+	/** Tests if a path below sourcePath passes the glob, which is only run on direct children of sourcePath. */
+	public boolean matchesGlob( Path path, boolean isDirectory ) {
+		Path source = Paths.get( config.sourcePath );
+		if ( path.equals( source ))
+			return true;
+		Path relative = source.relativize( path );
+		if ( !isDirectory && ( relative.getNameCount() < 2 ))
+			return true; // files directly in sourcePath are not globbed
+		return matcher.matches( relative.getName( 0 ) );
+	}
+
+	/**
+	 * Visits one file outside of a tree walk, for example from a MetaWatcher.
+	 * Applies the same hidden, glob, and datetime checks as the tree walk.
+	 * @return the file result, or null if the file is filtered out
+	 */
+	public FileResult visit( Path path ) throws Exception {
+		if ( !Files.isRegularFile( path ) || Files.isHidden( path ) || !matchesGlob( path, false ) || !owns( path ))
+			return null;
+		filesVisited++;
+		if (( null != config.getDateTimeCompare() ) &&
+			!MetaRenamer.testDateTime( config.dateTimeComparator, config.getDateTimeCompare(), new Date( Files.getLastModifiedTime( path ).toMillis() ) ))
+			return null;
+		if (( null != filter ) && Boolean.FALSE.equals( filter.test( path, Files.readAttributes( path, BasicFileAttributes.class ), null ))) {
+			filesFiltered++;
+			return null;
+		}
+		FileResult result = fileVisitor( path.toFile() );
+		record( result );
+		durability.directoryDone(); // one file is the batch outside of a walk
+		return result;
+	}
+
 	/** A callback method from the file/directory visitor. */
-	public static void fileVisitor( File file ) throws Exception  {
+	public FileResult fileVisitor( File file ) throws Exception  {
+		return fileVisitor( file, false );
+	}
+
+	/** Detects and parses one file. When planning, only proposes a path without checking or acting on it. */
+	protected FileResult fileVisitor( File file, boolean plan ) throws Exception  {
 		if ( !file.exists() || !file.canRead()) {
             System.out.println( "   file does not exist,readable" + file.getName() );
-            return;
+            return new FileResult( file.toPath(), null, null, Outcome.FAILED, null );
+		}
+		
+		final Path path = file.toPath();
+		if ( quarantine.contains( path )) {
+			if ( config.verbose )
+				System.out.println( "   no action: quarantined \"" + path + "\"" );
+			return new FileResult( path, null, null, Outcome.QUARANTINED, null );
 		}
 		
-		// Add name and type to metadata.
-		Metadata metadata = new Metadata();	
+		// Add name and type to metadata. Debug lists all metadata, so it needs every key.
+		final Metadata metadata = config.debug ? new Metadata() : config.metaSchema.newRecord();
 	    metadata.add( Metadata.RESOURCE_NAME_KEY, file.toString() );   		    
-	    MediaType mediaType = tikaConfig.getDetector().detect( TikaInputStream.get(file), metadata );
-	    metadata.add( MEDIATYPE_KEY, mediaType.toString());
-    	fileNameAction( metadata );    	
+	    try {
+	    	final Detector detector = tikaConfig.getDetector(); // waits for Tika outside of the budget
+	    	Object event = StageEvents.begin( StageEvents.Stage.DETECT );
+	    	MediaType mediaType = null;
+	    	ReadClock clock = readClock();
+	    	clock.file( file.length() );
+	    	clock.start();
+	    	try {
+	    		mediaType = budget.run( path, "detect", new Callable<MediaType>() {
+	    			@Override
+	    			public MediaType call() throws IOException {
+	    				try ( TikaInputStream stream = TikaInputStream.get( path )) {
+	    					return detector.detect( stream, metadata );
+	    				}
+	    			}
+	    		});
+	    	} finally {
+	    		clock.stop();
+	    		StageEvents.end( event, path, null, mediaType, -1, ( null == mediaType ) ? null : "DETECTED" );
+	    	}
+	    	metadata.add( MEDIATYPE_KEY, mediaType.toString());
+	    	return fileNameAction( metadata, plan );
+	    } catch ( ParseBudget.ExceededException e ) {
+	    	System.err.println( "   quarantined \"" + path + "\", " + e.getMessage() );
+	    	quarantine.add( path, e.getMessage() );
+	    	return new FileResult( path, null, metadata.get( MEDIATYPE_KEY ), Outcome.QUARANTINED, null, e );
+	    }
+	}
+
+	/** Returns the read clock of the file this thread visits. */
+	protected ReadClock readClock() {
+		ReadClock clock = readClock.get();
+		return ( null == clock ) ? readClocks[ DIRECTORY_ORDER ] : clock;
+	}
+
+	/**
+	 * Times the detect and parse reads of files, apart from the rest of the walk.
+	 * Only wall time during which at least one read runs is counted, so reads on several workers are not counted twice.
+	 */
+	public static class ReadClock {
+		protected int active = 0;
+		protected long since;
+		protected long nanos = 0;
+		protected long bytes = 0;
+
+		/** Counts the bytes of a file read on this clock. */
+		public synchronized void file( long size ) {
+			bytes += size;
+		}
+
+		public synchronized void start() {
+			if ( 0 == active++ )
+				since = System.nanoTime();
+		}
+
+		public synchronized void stop() {
+			if ( 0 == --active )
+				nanos += System.nanoTime() - since;
+		}
+
+		public synchronized long millis() {
+			return TimeUnit.NANOSECONDS.toMillis( nanos );
+		}
+
+		/** Returns the read rate in MB/s. */
+		public synchronized double rate() {
+			return ( 0 == nanos ) ? 0 : ( bytes / ( 1024.0 * 1024.0 )) * TimeUnit.SECONDS.toNanos( 1 ) / nanos;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format( "%.1f MB in %s of detect and parse, %.2f MB/s", bytes / ( 1024.0 * 1024.0 ), format( millis() ), rate() );
+		}
+	}
+
+	/** Opens the contents of an archive entry for Tika, from memory or from its temporary file. */
+	protected static TikaInputStream stream( ArchiveSource.Entry entry ) throws IOException {
+		return ( null == entry.spool ) ? TikaInputStream.get( entry.content ) : TikaInputStream.get( entry.spool );
 	}
 		
+	/** Detects and parses one archive entry from memory or its temporary file, then writes it to its proposed path. */
+	protected FileResult entryVisitor( final ArchiveSource.Entry entry ) {
+		final Metadata metadata = config.debug ? new Metadata() : config.metaSchema.newRecord();
+	    metadata.add( Metadata.RESOURCE_NAME_KEY, entry.path.toString() );
+	    try {
+	    	final Detector detector = tikaConfig.getDetector(); // waits for Tika outside of the budget
+	    	Object event = StageEvents.begin( StageEvents.Stage.DETECT );
+	    	MediaType mediaType = null;
+	    	try {
+	    		mediaType = budget.run( entry.path, "detect", new Callable<MediaType>() {
+	    			@Override
+	    			public MediaType call() throws IOException {
+	    				try ( TikaInputStream stream = stream( entry )) {
+	    					return detector.detect( stream, metadata );
+	    				}
+	    			}
+	    		});
+	    	} finally {
+	    		StageEvents.end( event, entry.path, null, mediaType, entry.size(), ( null == mediaType ) ? null : "DETECTED" );
+	    	}
+	    	metadata.add( MEDIATYPE_KEY, mediaType.toString());
+	    	return fileNameAction( metadata, false, entry );
+	    } catch ( Exception e ) {
+	    	System.err.println( "   archive entry \"" + entry.path + "\" exception=" + e.getMessage() );
+	    	return new FileResult( entry.path, null, metadata.get( MEDIATYPE_KEY ), Outcome.FAILED, null, e ); // entries can not be quarantined
+	    }
+	}
+
 	/** Recommends or performs action on media file name. */
-	public static void fileNameAction( final Metadata metadata ) throws Exception {
+	public FileResult fileNameAction( final Metadata metadata ) throws Exception {
+		return fileNameAction( metadata, false );
+	}
+
+	/** Recommends or performs action on media file name. When planning, only proposes a path. */
+	protected FileResult fileNameAction( final Metadata metadata, boolean plan ) throws Exception {
+		return fileNameAction( metadata, plan, null );
+	}
+
+	/** Recommends or performs action on a file, or on an archive entry held in memory. */
+	protected FileResult fileNameAction( final Metadata metadata, boolean plan, final ArchiveSource.Entry entry ) throws Exception {
 		MediaType mediaType = MediaType.parse( metadata.get( MEDIATYPE_KEY ));
 	    String mediaTypeString = mediaType.toString();
+		String resourceName = metadata.get( Metadata.RESOURCE_NAME_KEY );
 		
 	    // Parse interesting media types.	
 		if ( "audio/mp4".equals( mediaTypeString ) || "audio/mpeg".equals( mediaTypeString )) {
 			// Add non-meta data items worth pursuing, e.g. filename, extension.
-			String resourceName = metadata.get( Metadata.RESOURCE_NAME_KEY );
 		    String fileName = resourceName.substring( resourceName.lastIndexOf( File.separator ) + 1 );
 		    metadata.add( ADDITIONAL_DATA_KEY_FILENAME, fileName ); 
 		    String extension = fileName.substring( fileName.lastIndexOf( "." ) + 1 );
 		    metadata.add( ADDITIONAL_DATA_KEY_EXTENSION, extension );
+		    if ( fileName.lastIndexOf( "." ) > 0 )
+		    	metadata.add( ADDITIONAL_DATA_KEY_BASENAME, fileName.substring( 0, fileName.lastIndexOf( "." )));
+		    Path parent = Paths.get( resourceName ).getParent();
+		    if (( null != parent ) && ( null != parent.getFileName() ))
+		    	metadata.add( ADDITIONAL_DATA_KEY_DIRNAME, parent.getFileName().toString() );
 	    	
 			// Add metadata items based on type - year, artists, mapping of names.
-		    Parser specificParser = defaultParser.getParsers().get( mediaType );
-		    File file = new File( resourceName );
-	    	specificParser.parse( TikaInputStream.get( file ), defaultHandler, metadata, parseContext );
+		    final Parser specificParser = tikaConfig.getParser().getParsers().get( mediaType );
+		    final Path file = Paths.get( resourceName );
+		    boolean resolved = !needsParse( metadata );
+		    if ( resolved )
+		    	parsesSkipped.incrementAndGet();
+		    AlbumConsensus.Album album = (( null == consensus ) || resolved || ( null != entry )) ? null : consensus.album( file.getParent() );
+		    Map<String,String> settled = ( null == album ) ? null : album.settled( consensus.sampleSize );
+		    boolean parsed = !resolved && (( null == settled ) || !"audio/mpeg".equals( mediaTypeString ) || !tagRead( file, metadata, settled, album ));
+		    if ( parsed ) {
+		    	Object event = StageEvents.begin( StageEvents.Stage.PARSE );
+		    	boolean done = false;
+		    	// The permit and stream are held by this worker, so a cancelled parse which runs on gives both back.
+		    	IoScheduler.Device device = (( null == scheduler ) || ( null != entry )) ? null : scheduler.acquireRead( file );
+		    	ReadClock clock = ( null == entry ) ? readClock() : null; // entries are read from the archive, not the disk
+		    	if ( null != clock )
+		    		clock.start();
+		    	try ( final TikaInputStream stream = ( null == entry ) ? TikaInputStream.get( file ) : stream( entry )) {
+		    		budget.run( file, "parse", new Callable<Void>() {
+		    			@Override
+		    			public Void call() throws Exception {
+		    				parse( specificParser, stream, metadata );
+		    				return null;
+		    			}
+		    		});
+		    		done = true;
+		    	} finally {
+		    		if ( null != clock )
+		    			clock.stop();
+		    		if ( null != device )
+		    			scheduler.releaseRead( device );
+		    		StageEvents.end( event, file, null, mediaTypeString, ( null == entry ) ? -1 : entry.size(), done ? "PARSED" : null );
+		    	}
+		    }
 			
 		    MetaUtils.updateMetadata( metadata ); // add or clean up metadata		    
-			if ( debug ) 
+		    if (( null != album ) && parsed )
+		    	album.sample( consensus.values( metadata )); // sample keys as they will be used
+			if ( config.debug )
 				MetaUtils.listAllMetadata( metadata );
+			if (( null != filter ) && filter.needsMetadata() &&
+				!(( null == entry ) ? filter.test( file, metadata ) : Boolean.TRUE.equals( filter.test( file, entry, metadata )))) {
+				filesFilteredParsed.incrementAndGet();
+				if ( config.verbose )
+					System.out.println( "   no action: filtered \"" + file + "\"" );
+				return new FileResult( file, null, mediaTypeString, Outcome.IGNORED, null );
+			}
 
 		    // Recall that pattern contains full path/filename, 
 			// patterns [] contains pattern broken up by path delimiters. [...,parent2,parent1,parent0,filename]
 			// patternKeyNames  contains list of all key names in pattern
-			String oldName =  metadata.get( Metadata.RESOURCE_NAME_KEY );
-			Path oldPath = Paths.get( oldName );
+			Path oldPath = Paths.get( resourceName );
 	    
 		    // Propose a new pattern.
-		    String proposedName = new String( pattern );
-		    int emptyCount = 0;
-		    StringBuffer emptyKeys = new StringBuffer( "" );
-			for ( String key: patternKeyNames ) {
-				String value = metadata.get( key );
-				// System.out.println( "   key=" + key + ", value=" + value);
-				if (( null == value ) || (value.length() == 0)) {
-					// System.err.println( "   missing key=" + key );
-					value = key; // replace empty value with key name, e.g. "title"="title"
-					// accounting
-					if ( emptyKeys.length() > 0 ) 
-						emptyKeys.append(",");
-					emptyKeys.append( key );
-					if ( !missingMetadata.contains( key ) )
-						missingMetadata.add( key );
-					emptyCount++;
-				}
-			    value = MetaUtils.escapeChars( value );
-				proposedName = proposedName.replaceAll( key , value );
-			}
-			if ( emptyCount > 0 ) {
-				// System.out.println( "   metadata missing " + emptyCount + "/" + patternKeyNames.length + " fields (" + emptyKeys.toString() + "), srcName=\"" + oldName + "\", proposedName=\"" + proposedName + "\"." );
-				filesMissingMetadata++;
-			}
+		    Object event = StageEvents.begin( StageEvents.Stage.PLAN );
+		    StringBuilder proposed = new StringBuilder( config.pattern.length() * 2 );
+		    List<String> emptyKeys = new ArrayList<String>( config.patternKeyNames.size() );
+		    int emptyCount = config.metaSchema.format( metadata, proposed, emptyKeys );
+		    String proposedName = proposed.toString();
+			// if ( emptyCount > 0 )
+			//	System.out.println( "   metadata missing " + emptyCount + "/" + patternKeyNames.length + " fields (" + emptyKeys.toString() + "), srcName=\"" + oldName + "\", proposedName=\"" + proposedName + "\"." );
 			
-		    Path proposedPath = Paths.get( destPath, proposedName );
-		    if ( !oldPath.equals( proposedPath )) {
-			    if ( Files.exists( proposedPath )) {
-			    	if ( verbose ) {
-			    		System.err.println( "   file \"" + proposedPath + "\" exists." );
-			    	}
-			    	filesCollided++;
-			    	return;
-			    }
-			    
-	    	    // Check parent directory
-    			checkPath( proposedPath.getParent(), EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( CREATE ) );
-		    	
-		    	if ( verbose ) {
-		    		if ( moveTrueCopyFalse ) 
-		    			System.out.println( msgPrefix + "rename \"" + oldPath + "\" to\n      \"" + proposedPath + "\"." );
-		    		else
-		    			System.out.println( msgPrefix + "copy \"" + oldPath + "\" to\n      \"" + proposedPath + "\"." );
-		    	}
-		    	
-		    	if ( actionMode ) {	    		
-		    		// Move file
-		    		if ( moveTrueCopyFalse ) {
-		    			// This System.gc() call is required in JDK 7_60 and JDK 8_05
-		    			// If not called the move throws java.nio.file.FileSystemException.
-		    			System.gc();
-		    			try { Thread.sleep( 1000 ); } catch (InterruptedException e) {	}
-		    			Files.move( oldPath, proposedPath ); // throws java.nio.file.FileSystemException "The process cannot access the file because it is being used by another process."
-		    			filesRenamed++;
-		    		} else {
-		    			Files.copy( oldPath, proposedPath, COPY_ATTRIBUTES ); // no REPLACE_EXISTING		    		
-		    			filesCreated++;
-		    		}
-		    	}
+		    Path proposedPath = Paths.get( config.destPath, proposedName );
+		    List<Path> viewPaths = new ArrayList<Path>( config.views.size() );
+		    for ( MetaRenamerConfig.View view : config.views ) {
+		    	StringBuilder viewName = new StringBuilder( view.pattern.length() * 2 );
+		    	view.schema.format( metadata, viewName, null );
+		    	viewPaths.add( Paths.get( view.destPath, viewName.toString() ));
 		    }
+		    StageEvents.end( event, oldPath, proposedPath, mediaTypeString, ( null == entry ) ? -1 : entry.size(), ( 0 == emptyCount ) ? "PLANNED" : "MISSING " + emptyKeys );
+		    if ( null != index )
+		    	index.plan( oldPath, mediaTypeString, metadata ); // added with the file once it lands
+		    if ( plan )
+		    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.PROPOSED, emptyKeys ).withViews( viewPaths );
+		    return viewAction( fileAction( oldPath, proposedPath, mediaTypeString, emptyKeys, entry ), viewPaths );
 		    
 		// } else if ( "audio/x-wav".equals( mediaType.toString() )) {			
 		} else {
-			if ( MetaRenamer.doNotParseStartsWith(doNotParse, mediaTypeString )) {
-			   if ( verbose ) {
-				  System.out.println( "   no action: ignored media type=\"" + mediaType.toString() + "\", resource=\"" + metadata.get( Metadata.RESOURCE_NAME_KEY ) + "\"" );
+			if ( MetaRenamer.doNotParseStartsWith( config.doNotParse, mediaTypeString )) {
+			   if ( config.verbose ) {
+				  System.out.println( "   no action: ignored media type=\"" + mediaType.toString() + "\", resource=\"" + resourceName + "\"" );
 			   }				
 			}
+			return new FileResult( Paths.get( resourceName ), null, mediaTypeString, Outcome.IGNORED, null );
 		}	
 	}
 	
+	/** Tests if the pattern, the views, or the filter need keys which only a parse can give. */
+	protected boolean needsParse( Metadata metadata ) {
+		if ( config.metaSchema.needsParse( metadata, CHEAP_KEYS ))
+			return true;
+		for ( MetaRenamerConfig.View view : config.views ) {
+			if ( view.schema.needsParse( metadata, CHEAP_KEYS ))
+				return true;
+		}
+		return ( null != filter ) && filter.needsMetadata() && !CHEAP_KEYS.containsAll( filter.getMetadataKeys() );
+	}
+
+	/** Parses metadata, stopping once the pattern keys are filled if asked to. */
+	protected void parse( Parser parser, TikaInputStream stream, Metadata metadata ) throws IOException, SAXException, TikaException {
+		if ( !config.stopAtKeys ) {
+			parser.parse( stream, defaultHandler, metadata, parseContext );
+			return;
+		}
+		PatternKeysHandler handler = new PatternKeysHandler( metadata, config.keyChainNames );
+		try {
+			parser.parse( stream, handler, metadata, parseContext );
+		} catch ( SAXException | TikaException e ) {
+			if ( !handler.isStopped() )
+				throw e;
+			parsesStopped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Fills the file keys of an MP3 from a cheap read of its ID3v2 tag, and the directory keys from the settled album.
+	 * @return false to fall back to a full parse, when there is no tag or the tag disagrees with the album
+	 */
+	protected boolean tagRead( final Path file, Metadata metadata, Map<String,String> settled, AlbumConsensus.Album album ) throws Exception {
+		ID3Tags tags;
+		IoScheduler.Device device = ( null == scheduler ) ? null : scheduler.acquireRead( file );
+		ReadClock clock = readClock();
+		clock.start();
+		try {
+			tags = budget.run( file, "tags", new Callable<ID3Tags>() {
+				@Override
+				public ID3Tags call() throws IOException {
+					return AlbumConsensus.readTags( file );
+				}
+			});
+		} finally {
+			clock.stop();
+			if ( null != device )
+				scheduler.releaseRead( device );
+		}
+		if ( null == tags )
+			return false;
+		if ( !AlbumConsensus.agrees( settled, XMPDM.ALBUM.getName(), tags.getAlbum() ) ||
+			!AlbumConsensus.agrees( settled, XMPDM.ALBUM_ARTIST.getName(), tags.getAlbumArtist() )) {
+			if ( config.verbose )
+				System.out.println( "   album tag of \"" + file + "\" disagrees with its directory, parsing." );
+			album.disagree();
+			consensus.fallbacks.incrementAndGet();
+			return false;
+		}
+		if ( null != tags.getTitle() )
+			metadata.set( TikaCoreProperties.TITLE, tags.getTitle() );
+		if ( null != tags.getArtist() )
+			metadata.set( XMPDM.ARTIST, tags.getArtist() );
+		if ( null != tags.getTrackNumber() )
+			metadata.set( XMPDM.TRACK_NUMBER, tags.getTrackNumber() );
+		for ( Map.Entry<String,String> entry : settled.entrySet() ) {
+			if ( null != entry.getValue() )
+				metadata.set( entry.getKey(), entry.getValue() );
+		}
+		consensus.tagReads.incrementAndGet();
+		return true;
+	}
+
+	/** Recommends or performs the copy or move of one file to its proposed path. */
+	public FileResult fileAction( Path oldPath, Path proposedPath, String mediaTypeString, List<String> emptyKeys ) throws IOException {
+		return fileAction( oldPath, proposedPath, mediaTypeString, emptyKeys, null );
+	}
+
+	/** Recommends or performs the copy or move of one file, or the write of an archive entry, to its proposed path. */
+	protected FileResult fileAction( Path oldPath, Path proposedPath, String mediaTypeString, List<String> emptyKeys, ArchiveSource.Entry entry ) throws IOException {
+	    if ( oldPath.equals( proposedPath ))
+	    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.UNCHANGED, emptyKeys );
+	    Object event = StageEvents.begin( StageEvents.Stage.COLLISION );
+	    FileResult collision = null;
+	    boolean checked = false;
+	    try {
+	    	collision = collision( oldPath, proposedPath, mediaTypeString, emptyKeys, entry );
+	    	checked = true;
+	    } finally {
+	    	StageEvents.end( event, oldPath, proposedPath, mediaTypeString, ( null == entry ) ? -1 : entry.size(),
+	    		( null != collision ) ? collision.outcome : checked ? "CLEAR" : null );
+	    }
+	    if ( null != collision )
+	    	return collision;
+		    
+	    // Check parent directory
+	    event = StageEvents.begin( StageEvents.Stage.DIRECTORY );
+	    Boolean usable = null;
+	    try {
+	    	usable = checkPath( proposedPath.getParent(), EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( CREATE ) );
+	    } finally {
+	    	StageEvents.end( event, proposedPath.getParent(), null, null, 0, ( null == usable ) ? null : usable ? "READY" : "UNUSABLE" );
+	    }
+	    	
+    	if ( config.verbose ) {
+    		if ( config.moveTrueCopyFalse && ( null == entry ))
+    			System.out.println( config.msgPrefix + "rename \"" + oldPath + "\" to\n      \"" + proposedPath + "\"." );
+    		else
+    			System.out.println( config.msgPrefix + "copy \"" + oldPath + "\" to\n      \"" + proposedPath + "\"." );
+    	}
+	    	
+    	if ( !config.actionMode )
+	    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.PROPOSED, emptyKeys );
+    	event = StageEvents.begin( StageEvents.Stage.TRANSFER );
+    	FileResult result = null;
+    	try {
+    		result = transfer( oldPath, proposedPath, mediaTypeString, emptyKeys, entry );
+    		return result;
+    	} finally {
+    		if (( null == result ) || ( Outcome.COLLIDED == result.outcome ))
+    			release( proposedPath, oldPath );
+    		StageEvents.end( event, oldPath, proposedPath, mediaTypeString, ( null == entry ) ? -1 : entry.size(), ( null == result ) ? null : result.outcome );
+    	}
+	}
+
+	/** Checks a proposed path for an existing file, a duplicate, or another shard's claim. @return the result, or null if the path is clear */
+	protected FileResult collision( Path oldPath, Path proposedPath, String mediaTypeString, List<String> emptyKeys, ArchiveSource.Entry entry ) throws IOException {
+	    if ( Files.exists( proposedPath )) {
+	    	if (( null == entry ) && Files.isSameFile( oldPath, proposedPath )) // a case only rename, or aliased roots
+	    		return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.UNCHANGED, emptyKeys );
+	    	if (( null != duplicates ) && ( null == entry ) && duplicates.isDuplicate( oldPath, proposedPath )) {
+	    		// Hashes may match by chance, so compare the bytes before a policy deletes or replaces a file.
+	    		if ( config.actionMode && ( DuplicateDetector.Policy.SKIP != duplicates.getPolicy() ) && !DuplicateDetector.sameBytes( oldPath, proposedPath )) {
+	    			System.err.println( "   file \"" + proposedPath + "\" hashes as \"" + oldPath + "\" but differs." );
+	    			return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.COLLIDED, emptyKeys );
+	    		}
+	    		duplicates.addDuplicate( proposedPath, oldPath );
+	    		duplicateAction( oldPath, proposedPath );
+	    		return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.DUPLICATE, emptyKeys );
+	    	}
+	    	if ( config.verbose ) {
+	    		System.err.println( "   file \"" + proposedPath + "\" exists." );
+	    	}
+	    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.COLLIDED, emptyKeys );
+	    }
+	    if (( null != shard ) && config.actionMode && !shard.claim( proposedPath, oldPath )) {
+	    	if ( config.verbose ) {
+	    		System.err.println( "   file \"" + proposedPath + "\" claimed by another shard." );
+	    	}
+	    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.COLLIDED, emptyKeys );
+	    }
+	    return null;
+	}
+
+	/** Releases the shard claim of a file which did not land. */
+	protected void release( Path proposedPath, Path oldPath ) {
+		if ( null == shard )
+			return;
+		try {
+			shard.release( proposedPath, oldPath );
+		} catch ( IOException e ) {
+			System.err.println( "   claim exception=" + e.getMessage());
+		}
+	}
+
+	/** Copies or moves a file, or writes an archive entry, to a proposed path which was clear. */
+	protected FileResult transfer( Path oldPath, Path proposedPath, String mediaTypeString, List<String> emptyKeys, ArchiveSource.Entry entry ) throws IOException {
+    	try {
+    		if ( null != entry ) {
+    			// Write the entry. It is copied even when moving, since the archive stays whole.
+    			entry.write( proposedPath );
+    			Files.setLastModifiedTime( proposedPath, entry.lastModifiedTime() );
+    			if ( null != verifier ) {
+    				long checksum;
+    				if ( null == entry.spool ) {
+    					CRC32 crc = new CRC32();
+    					crc.update( entry.content, 0, entry.content.length );
+    					checksum = crc.getValue();
+    				} else {
+    					checksum = CopyVerifier.checksum( entry.spool );
+    				}
+    				verifier.verify( oldPath, proposedPath, checksum );
+    			}
+		    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.COPIED, emptyKeys );
+    		}
+    		// Move file
+    		if ( config.moveTrueCopyFalse ) {
+    			if ( null != scheduler ) {
+    				scheduler.move( oldPath, proposedPath );
+    			} else if ( null != workers ) {
+    				// Workers move as the scheduler does, without the pause below, which would run on every worker
+    				// at once, stall the JVM with concurrent collections, and be timed by the controller as file latency.
+    				Files.move( oldPath, proposedPath );
+    			} else {
+    				// This System.gc() call is required in JDK 7_60 and JDK 8_05
+    				// If not called the move throws java.nio.file.FileSystemException.
+    				System.gc();
+    				try { Thread.sleep( 1000 ); } catch (InterruptedException e) {	}
+    				Files.move( oldPath, proposedPath ); // throws java.nio.file.FileSystemException "The process cannot access the file because it is being used by another process."
+    			}
+		    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.MOVED, emptyKeys );
+    		} else {
+    			if ( null != verifier ) {
+    				CRC32 checksum = new CRC32(); // of the source bytes as they are copied
+    				if ( null != scheduler )
+    					scheduler.copy( oldPath, proposedPath, checksum );
+    				else
+    					CopyVerifier.copy( oldPath, proposedPath, checksum );
+    				verifier.verify( oldPath, proposedPath, checksum.getValue() );
+    			} else if ( null != scheduler )
+    				scheduler.copy( oldPath, proposedPath );
+    			else
+    				Files.copy( oldPath, proposedPath, COPY_ATTRIBUTES ); // no REPLACE_EXISTING
+		    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.COPIED, emptyKeys );
+    		}
+    	} catch ( FileAlreadyExistsException e ) {
+    		// Another worker took the proposed name first.
+	    	if ( config.verbose ) {
+	    		System.err.println( "   file \"" + proposedPath + "\" exists." );
+	    	}
+	    	return new FileResult( oldPath, proposedPath, mediaTypeString, Outcome.COLLIDED, emptyKeys );
+    	}
+	}
+
+	/**
+	 * Adds a file to the other views after its primary action. Each view gets a hard link
+	 * to the file where it now is, so the views share one copy of the data, or a copy where
+	 * the file system can not link, for example between devices.
+	 * @return the primary result with the view destinations
+	 */
+	protected FileResult viewAction( FileResult primary, List<Path> viewPaths ) {
+		if ( viewPaths.isEmpty() )
+			return primary;
+		Path original;
+		switch ( primary.outcome ) {
+		case PROPOSED:
+		case COLLIDED: original = primary.source; break; // not moved, or the destination is another file
+		case UNCHANGED:
+		case COPIED:
+		case MOVED:
+		case DUPLICATE: original = primary.destination; break;
+		default: return primary;
+		}
+		for ( Path viewPath : viewPaths ) {
+			try {
+				if ( Files.exists( viewPath ) || Files.isSymbolicLink( viewPath )) {
+					if ( !Files.isSameFile( original, viewPath )) {
+						viewsCollided.incrementAndGet();
+						if ( config.verbose )
+							System.err.println( "   view file \"" + viewPath + "\" exists." );
+					}
+					continue;
+				}
+				checkPath( viewPath.getParent(), EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( CREATE ) );
+				if ( config.verbose )
+					System.out.println( config.msgPrefix + "link \"" + original + "\" to view\n      \"" + viewPath + "\"." );
+				if ( !config.actionMode )
+					continue;
+				try {
+					Files.createLink( viewPath, original );
+					viewsLinked.incrementAndGet();
+				} catch ( UnsupportedOperationException | FileSystemException e ) {
+					if ( e instanceof FileAlreadyExistsException )
+						throw (FileAlreadyExistsException) e;
+					Files.copy( original, viewPath, COPY_ATTRIBUTES );
+					viewsCopied.incrementAndGet();
+				}
+			} catch ( FileAlreadyExistsException e ) {
+				viewsCollided.incrementAndGet(); // another worker took the view name first
+			} catch ( IOException e ) {
+				System.err.println( "   view exception=" + e.getMessage());
+			}
+		}
+		return primary.withViews( viewPaths );
+	}
+
+	/**
+	 * Acts on the planned files of one directory. When every file in the directory
+	 * agrees on the directory part of the pattern, the directory is moved in one atomic rename
+	 * and its files are renamed in place. Otherwise each file is acted on by itself.
+	 * With shards, the destination of each file is claimed before the directory moves, as a file by itself would be.
+	 * In a dry run, dirsRenamed counts the proposed directory renames.
+	 */
+	protected List<FileResult> directoryAction( Path dir, List<FileResult> planned ) {
+		Path target = agreedDirectory( dir, planned );
+		if ( null == target )
+			return fileActions( planned );
+		try {
+			if (( null != shard ) && config.actionMode ) {
+				for ( FileResult file : planned ) {
+					if ( !shard.claim( file.destination, file.source )) {
+						if ( config.verbose )
+							System.out.println( "   directory \"" + dir + "\" has files claimed by another shard, moving files." );
+						return fileActions( planned );
+					}
+				}
+			}
+			checkPath( target.getParent(), EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( CREATE ) );
+			if ( config.verbose )
+				System.out.println( config.msgPrefix + "rename directory \"" + dir + "\" to\n      \"" + target + "\"." );
+			if ( config.actionMode )
+				Files.move( dir, target, ATOMIC_MOVE );
+			dirsRenamed++;
+		} catch ( AtomicMoveNotSupportedException | FileAlreadyExistsException e ) {
+			if ( config.verbose )
+				System.out.println( "   directory \"" + dir + "\" can not move in one rename, moving files." );
+			return fileActions( planned );
+		} catch ( IOException e ) {
+			System.err.println( "   exception=" + e.getMessage());
+			return fileActions( planned );
+		}
+
+		List<FileResult> results = new ArrayList<FileResult>( planned.size() );
+		for ( FileResult file : planned ) {
+			Path moved = target.resolve( file.source.getFileName() );
+			if ( !config.actionMode ) {
+				results.add( viewAction( file, file.views ));
+				continue;
+			}
+			try {
+				if ( !moved.equals( file.destination ))
+					Files.move( moved, file.destination );
+				results.add( viewAction( new FileResult( file.source, file.destination, file.mediaType, Outcome.MOVED, file.missingKeys ), file.views ));
+			} catch ( FileAlreadyExistsException e ) {
+				release( file.destination, file.source );
+				results.add( new FileResult( moved, file.destination, file.mediaType, Outcome.COLLIDED, file.missingKeys ));
+			} catch ( IOException e ) {
+				release( file.destination, file.source );
+				results.add( new FileResult( moved, file.destination, file.mediaType, Outcome.FAILED, file.missingKeys, e ));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the directory all planned files agree on, or null if the directory should not move whole.
+	 * The directory may hold nothing but the planned files, and the target must not exist.
+	 */
+	protected Path agreedDirectory( Path dir, List<FileResult> planned ) {
+		if ( planned.isEmpty() || dir.equals( Paths.get( config.sourcePath )))
+			return null;
+		Path target = planned.get( 0 ).destination.getParent();
+		Set<Path> sources = new HashSet<Path>();
+		boolean missing = false;
+		for ( FileResult file : planned ) {
+			if ( !target.equals( file.destination.getParent() ))
+				return null;
+			sources.add( file.source );
+			for ( String key : file.missingKeys )
+				missing |= dirKeyNames.contains( key );
+		}
+		if ( target.equals( dir ) || target.startsWith( dir ) || dir.startsWith( target ))
+			return null;
+		if ( missing ) {
+			dirsMissingMetadata++; // do not move a whole album under a placeholder name
+			return null;
+		}
+		try ( DirectoryStream<Path> entries = Files.newDirectoryStream( dir )) {
+			for ( Path entry : entries ) {
+				if ( !sources.contains( entry ))
+					return null;
+			}
+		} catch ( IOException e ) {
+			return null;
+		}
+		if ( Files.exists( target )) {
+			dirsCollided++;
+			return null;
+		}
+		return target;
+	}
+
+	/** Acts on each planned file by itself. */
+	protected List<FileResult> fileActions( List<FileResult> planned ) {
+		List<FileResult> results = new ArrayList<FileResult>( planned.size() );
+		for ( FileResult file : planned ) {
+			try {
+				results.add( viewAction( fileAction( file.source, file.destination, file.mediaType, file.missingKeys ), file.views ));
+			} catch ( IOException e ) {
+				System.err.println( "   exception=" + e.getMessage());
+				results.add( FileResult.failed( file.source, e ));
+			}
+		}
+		return results;
+	}
+
+	/** Applies the duplicate policy to a source which has the same contents as the existing destination. */
+	protected void duplicateAction( Path oldPath, Path proposedPath ) throws IOException {
+		switch ( duplicates.getPolicy() ) {
+		case LINK:
+			if ( Files.isSameFile( oldPath, proposedPath ))
+				return;
+			if ( config.verbose )
+				System.out.println( config.msgPrefix + "link duplicate \"" + oldPath + "\" to\n      \"" + proposedPath + "\"." );
+			if ( config.actionMode ) {
+				// Link beside the source, then swap it in, so the source is never missing.
+				Path link = oldPath.resolveSibling( oldPath.getFileName() + ".link" );
+				Files.createLink( link, proposedPath );
+				Files.move( link, oldPath, REPLACE_EXISTING, ATOMIC_MOVE );
+				durability.replaced( oldPath, null );
+			}
+			return;
+		case NEWEST:
+			if ( Files.getLastModifiedTime( oldPath ).compareTo( Files.getLastModifiedTime( proposedPath )) > 0 ) {
+				if ( config.verbose )
+					System.out.println( config.msgPrefix + "replace older duplicate \"" + proposedPath + "\" with\n      \"" + oldPath + "\"." );
+				if ( config.actionMode ) {
+					replaceWith( oldPath, proposedPath, config.moveTrueCopyFalse );
+					durability.replaced( proposedPath, config.moveTrueCopyFalse ? oldPath.getParent() : null );
+				}
+			} else if ( config.moveTrueCopyFalse ) {
+				if ( config.verbose )
+					System.out.println( config.msgPrefix + "delete older duplicate \"" + oldPath + "\"." );
+				if ( config.actionMode ) {
+					Files.delete( oldPath );
+					durability.removed( oldPath );
+				}
+			}
+			return;
+		default: // SKIP
+			if ( config.verbose )
+				System.out.println( "   no action: duplicate \"" + oldPath + "\" of\n      \"" + proposedPath + "\"." );
+		}
+	}
+
+	/**
+	 * Replaces a file by moving, or with a copy of, another, so the target is never missing.
+	 * A copy, or a move between devices, is made beside the target and then renamed over it, as a link is.
+	 */
+	protected static void replaceWith( Path source, Path target, boolean move ) throws IOException {
+		if ( move ) {
+			try {
+				Files.move( source, target, REPLACE_EXISTING, ATOMIC_MOVE );
+				return;
+			} catch ( AtomicMoveNotSupportedException e ) {
+				// Another device, so copy and delete.
+			}
+		}
+		Path copy = target.resolveSibling( target.getFileName() + ".copy" );
+		boolean done = false;
+		try {
+			Files.copy( source, copy, REPLACE_EXISTING, COPY_ATTRIBUTES );
+			Files.move( copy, target, REPLACE_EXISTING, ATOMIC_MOVE );
+			done = true;
+		} finally {
+			if ( !done )
+				Files.deleteIfExists( copy );
+		}
+		if ( move )
+			Files.delete( source );
+	}
+
 	/** One time check of a path for file attributes. Add them if requested. Examples: 
 	 *     check if a file exists and is readable: checkPath( "path/blah.txt", EnumSet.of( EXISTS, READABLE, FILE ), EnumSet.noneOf( FileActions.class) ); 
 	 *     check if a directory exists and is readable,writable: checkPath( "pathXYZ/foo", EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( ADD ) );
 	 *  Creating and deleting a directory is recursive and will work even if there are multiple levels with contents. 
 	 * @throws IOException 
 	 */
-	public static boolean checkPath( Path path, EnumSet<FileAttribute> attrs, EnumSet<FileAction> actions ) throws IOException {
+	public synchronized boolean checkPath( Path path, EnumSet<FileAttribute> attrs, EnumSet<FileAction> actions ) throws IOException {
 		boolean result = true;
 					
 		// Use cache unless requestd || actions || empty cache.
-		if ( !cachePaths || (actions.size() > 0) || !checkedPaths.contains( path.toString() ) ) {
+		if ( !config.cachePaths || (actions.size() > 0) || !isChecked( path ) ) {
 			File currentFile = path.toFile();
-			if ( MetaRenamer.debug )
+			if ( config.debug )
 			    System.out.println( "   checkPath currentFile=\"" + currentFile.getPath() + "\", absPath=\"" + currentFile.getAbsolutePath() + "\", attrs=" + MetaUtils.getAttributes( currentFile ) );
 			if (attrs.contains( EXISTS )) {
 				result &= currentFile.exists();
@@ -512,22 +2102,22 @@ public class MetaRenamer {
 			
 			if ( actions.contains( CREATE ) && !currentFile.exists() ) {
 		    	 if (attrs.contains( FileAttribute.FILE )) {
-  		            if ( verbose ) 
-				       System.out.println( msgPrefix + "create file=" + currentFile.toString() );
-		    		if ( actionMode ) {
+  		            if ( config.verbose )
+				       System.out.println( config.msgPrefix + "create file=" + currentFile.toString() );
+		    		if ( config.actionMode ) {
 			    		// currentFile.createNewFile();
 		    		   Files.createFile( path );
 		    		   filesCreated++;
 		    		}
 		    	 }
 		    	 if( attrs.contains( FileAttribute.DIRECTORY )) {
-					if (!checkedPaths.contains(path.toString())) {
-						if (verbose)
-							System.out.println(msgPrefix + "create directory=" + currentFile.toString());
-						if (actionMode) {
+					if (!isChecked(path)) {
+						if (config.verbose)
+							System.out.println(config.msgPrefix + "create directory=" + currentFile.toString());
+						if (config.actionMode) {
 							// currentFile.mkdir();
 							Files.createDirectories(path); // will create recursively
-							checkedPaths.add(path.toString());
+							checkedPaths.set(paths.id(path));
 							dirsCreated++;
 						}
 					}
@@ -535,9 +2125,9 @@ public class MetaRenamer {
 			     result = currentFile.exists(); // reset to true if created
 			}
 			if ( actions.contains( UPDATE ) ) {
-				if ( verbose )
-			    	System.out.println( msgPrefix + "update file=" + currentFile.toString() );
-		        if (actionMode) {
+				if ( config.verbose )
+			    	System.out.println( config.msgPrefix + "update file=" + currentFile.toString() );
+		        if (config.actionMode) {
 		        	// currentFile.setLastModified( (new Date()).getTime() );        	  
 		        	Files.setLastModifiedTime( path, FileTime.fromMillis(System.currentTimeMillis()) );
 		        }
@@ -553,9 +2143,9 @@ public class MetaRenamer {
 				if (attrs.contains( LINK )) result &= Files.isSymbolicLink( path );
 			}
 			if ( actions.contains( DELETE ) ) { // only delete bottom most one in path
-				if ( verbose )
-			    	System.out.println( msgPrefix + "delete file=" + currentFile.toString() );
-		        if (actionMode) {
+				if ( config.verbose )
+			    	System.out.println( config.msgPrefix + "delete file=" + currentFile.toString() );
+		        if (config.actionMode) {
 			    	 if (attrs.contains( FileAttribute.FILE )) 
 		        	    currentFile.delete();
 		        	// Files.delete( currentPath );
@@ -565,12 +2155,18 @@ public class MetaRenamer {
 		        	}
 		        }
 			} else {
-				if (cachePaths)
-					checkedPaths.add( path.toString() ); // do not add if just deleted.
+				if (config.cachePaths)
+					checkedPaths.set( paths.id( path )); // do not add if just deleted.
 			}
 		}
 		return result;
 	}
+
+	/** Tests if a path is in the cache of checked paths. */
+	protected boolean isChecked( Path path ) {
+		int id = paths.find( path );
+		return ( PathDictionary.NONE != id ) && checkedPaths.get( id );
+	}
 	
 	/** One time check of a path for file attributes. Add them if requested. Examples: 
 	 *     check if a file exists and is readable: checkPath( "path/blah.txt", EnumSet.of( EXISTS, READABLE, FILE ), EnumSet.noneOf( FileActions.class) ); 
@@ -578,7 +2174,7 @@ public class MetaRenamer {
 	 *  Creating and deleting a directory is recursive and will work even if there are multiple levels with contents. 
 	 * @throws IOException 
 	 */
-	public static boolean checkPath( String pattern, EnumSet<FileAttribute> attrs, EnumSet<FileAction> actions ) throws IOException {
+	public boolean checkPath( String pattern, EnumSet<FileAttribute> attrs, EnumSet<FileAction> actions ) throws IOException {
 		if ( (null == pattern) || ( pattern.length() ==0 ))
 			return false;
 					
@@ -614,35 +2210,6 @@ public class MetaRenamer {
 		return false;
 	}
 	
-	/** Reads datetime comparator and datetime from the given option. */
-	public static void readDateTime( String option  ) {
-		if ( null == option || option.length() < 1 ) return;
-		for ( Comparator comp : EnumSet.allOf( MetaRenamer.Comparator.class) ) {
-			int loc = -1;
-			loc = option.indexOf( comp.toString() );
-			if ( 0 == loc ) {
-				dateTimeComparator = comp;
-				// Strip comparator.
-				option = option.replace( comp.name().toString(), "" );
-				// Convert slashes to dashes
-				option = option.replaceAll( "[/]+", "-");
-				// option = option.replaceAll( "[\\]+", "-");
-
-				// Parse date
-				DateTimeFormatter f = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss");
-				// Try with long format first, short format second.
-				try {
-					LocalDateTime dateTime = f.parseLocalDateTime( option );
-					MetaRenamer.dateTimeCompare = dateTime.toDate();
-				} catch ( IllegalArgumentException e ) {
-					f = DateTimeFormat.forPattern("yyyy-MM-dd");
-					LocalDateTime dateTime = f.parseLocalDateTime( option );
-					MetaRenamer.dateTimeCompare = dateTime.toDate();				
-				}
-			}
-		}
-	}
-
 	/** Tests if the testString starts with any String in the given set. */
 	public static boolean testDateTime( MetaRenamer.Comparator comparator, Date compareDateTime, Date givenDateTime ) {
 		if ( null == comparator ) return false;
@@ -659,4 +2226,4 @@ public class MetaRenamer {
 		
 		return false;
 	}
-}
\ No newline at end of file
+}
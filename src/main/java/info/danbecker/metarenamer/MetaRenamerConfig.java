@@ -0,0 +1,348 @@
+package info.danbecker.metarenamer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import info.danbecker.metarenamer.MetaRenamer.Comparator;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Immutable options for one MetaRenamer job.
+ * <p>
+ * Build one with {@link MetaRenamerConfig.Builder}.
+ * Several jobs with different configs may run in the same JVM.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class MetaRenamerConfig {
+	public final boolean actionMode;
+	public final String msgPrefix;
+	public final boolean verbose;
+	public final boolean debug;
+	public final boolean quiet;
+	public final String sourcePath;
+	public final String destPath;
+	protected final String givenDestPath; // destPath as given, null when it defaults to sourcePath
+	public final String fileGlob;
+	public final String filter; // filter expression over attributes and metadata, null for none
+	public final boolean moveTrueCopyFalse;
+	public final int filesLimit;
+	public final Comparator dateTimeComparator;
+	private final Date dateTimeCompare;
+	public final boolean cachePaths;
+	public final Set<String> doNotParse;
+	public final boolean watch; // keep running and rename files as they land
+	public final long watchSettleMillis; // size and modified time must be stable this long
+	public final int watchReconcileMinutes; // minutes between walks which catch missed events
+	public final DuplicateDetector.Policy duplicatePolicy; // null for no duplicate detection
+	public final String reportPath; // CSV or JSON lines report of every file, null for none
+	public final long parseTimeoutMillis; // per detect or parse stage, 0 for no limit
+	public final int parseMaxMegabytes; // allocated per detect or parse stage, 0 for no limit
+	public final String quarantinePath; // files over budget, skipped until they change. Null for this run only
+	public final int slowestCount; // slowest detect or parse stages to report
+	public final boolean archives; // read zip and tar archives as directories
+	public final FileNameSanitizer.Rules fileSystem; // names sanitized for this target file system
+	public final Durability.Policy durability; // when copies and moves are synced to storage
+	public final boolean verify; // checksum copies against their sources in the background
+	public final String indexPath; // index of the key fields of renamed files, null for none
+	public final String query; // query to run on the index instead of a walk, null to walk
+	public final String shard; // "index/count" of a process splitting the tree with others, "merge" to merge their results, null for one process
+	public final String journalPath; // directory the shards share for locks, claims, journals, and counts
+	public final boolean stopAtKeys; // stop each parse once the pattern keys are filled, skipping body extraction
+	public final boolean directoryRename; // with move, rename album directories whole when their files agree
+	public final int albumSample; // tracks fully parsed per directory before the rest get a cheap tag read, 0 to parse all
+	public final int orderBatch; // files per batch read in inode order, 0 for directory order
+	public final String concurrency; // "min,max" workers tuned at runtime, null for a fixed count
+	public final String ioLimits; // "reads,writes,MB/s" per device for parallel workers, null for serial I/O
+
+	public final String pattern; // pattern in string form with N path delimiters
+	public final List<String> patterns; // pattern broken up by path delimiters. [...,parent2,parent1,parent0,filename]
+	public final List<String> patternKeyNames; // list of all key names in pattern
+	public final List<View> views; // more pattern and destination pairs, filled from the same parse
+	public final List<String> keyChainNames; // key tokens of the pattern and the views, some fallback chains, and the filter keys
+	public final List<String> recordKeyNames; // every key of keyChainNames
+	public final MetaRecord.Schema metaSchema; // fixed metadata slots and compiled pattern, built from recordKeyNames
+
+	/** Another pattern and destination, for example a library by genre beside the library by artist. */
+	public static class View {
+		public final String pattern;
+		public final String destPath;
+		public final MetaRecord.Schema schema;
+
+		public View( String pattern, String destPath ) {
+			this( pattern, destPath, FileNameSanitizer.DEFAULT );
+		}
+
+		public View( String pattern, String destPath, FileNameSanitizer sanitizer ) {
+			this.pattern = pattern;
+			this.destPath = destPath;
+			this.schema = new MetaRecord.Schema( pattern, MetaUtils.split( pattern, " -./" ), sanitizer );
+		}
+
+		/** Parses a view in the command line form "pattern=destination". */
+		public static View parse( String view ) {
+			int loc = view.indexOf( '=' );
+			if (( loc < 1 ) || ( loc == view.length() - 1 ))
+				throw new IllegalArgumentException( "view \"" + view + "\" is not of the form pattern=destination" );
+			return new View( view.substring( 0, loc ), view.substring( loc + 1 ));
+		}
+
+		@Override
+		public String toString() {
+			return pattern + "=" + destPath;
+		}
+	}
+
+	protected MetaRenamerConfig( Builder builder ) {
+		actionMode = builder.actionMode;
+		msgPrefix = actionMode ? "   action: " : "   proposed: ";
+		verbose = builder.verbose;
+		debug = builder.debug;
+		quiet = builder.quiet;
+		sourcePath = builder.sourcePath;
+		givenDestPath = builder.destPath;
+		destPath = ( null == builder.destPath ) ? builder.sourcePath : builder.destPath;
+		fileGlob = builder.fileGlob;
+		filter = builder.filter;
+		moveTrueCopyFalse = builder.moveTrueCopyFalse;
+		filesLimit = builder.filesLimit;
+		dateTimeComparator = builder.dateTimeComparator;
+		dateTimeCompare = ( null == builder.dateTimeCompare ) ? null : new Date( builder.dateTimeCompare.getTime() );
+		cachePaths = builder.cachePaths;
+		doNotParse = Collections.unmodifiableSet( new TreeSet<String>( builder.doNotParse ));
+		watch = builder.watch;
+		watchSettleMillis = builder.watchSettleMillis;
+		watchReconcileMinutes = builder.watchReconcileMinutes;
+		duplicatePolicy = builder.duplicatePolicy;
+		reportPath = builder.reportPath;
+		ioLimits = builder.ioLimits;
+		concurrency = builder.concurrency;
+		orderBatch = builder.orderBatch;
+		albumSample = builder.albumSample;
+		directoryRename = builder.directoryRename;
+		stopAtKeys = builder.stopAtKeys;
+		archives = builder.archives;
+		fileSystem = builder.fileSystem;
+		durability = builder.durability;
+		verify = builder.verify;
+		indexPath = builder.indexPath;
+		query = builder.query;
+		shard = builder.shard;
+		journalPath = builder.journalPath;
+		parseTimeoutMillis = builder.parseTimeoutMillis;
+		parseMaxMegabytes = builder.parseMaxMegabytes;
+		quarantinePath = builder.quarantinePath;
+		slowestCount = builder.slowestCount;
+
+		pattern = builder.pattern;
+		patterns = Collections.unmodifiableList( Arrays.asList( MetaUtils.split( pattern, MetaRenamer.PATTERN_DELIMITER )));  // Bugs in String [] keys = pattern.split( " -\\x2E" );  // x2E= point
+		patternKeyNames = Collections.unmodifiableList( Arrays.asList( MetaUtils.split( pattern, " -./" )));  // Bugs in String [] keys = pattern.split( " -\\x2E" );  // x2E= point
+		FileNameSanitizer sanitizer = ( FileNameSanitizer.Rules.DEFAULT == fileSystem ) ? FileNameSanitizer.DEFAULT : new FileNameSanitizer( fileSystem );
+		List<View> sanitizedViews = new ArrayList<View>( builder.views.size() );
+		for ( View view : builder.views )
+			sanitizedViews.add(( FileNameSanitizer.DEFAULT == sanitizer ) ? view : new View( view.pattern, view.destPath, sanitizer ));
+		views = Collections.unmodifiableList( sanitizedViews );
+		Set<String> keyChains = new LinkedHashSet<String>( patternKeyNames );
+		for ( View view : views )
+			keyChains.addAll( Arrays.asList( MetaUtils.split( view.pattern, " -./" )));
+		if ( null != filter )
+			keyChains.addAll( MetaFilter.compile( filter ).getMetadataKeys() ); // filtered keys must be kept too
+		keyChainNames = Collections.unmodifiableList( new ArrayList<String>( keyChains ));
+		Set<String> recordKeys = new LinkedHashSet<String>();
+		for ( String keyChain : keyChains )
+			recordKeys.addAll( Arrays.asList( MetaRecord.Schema.chain( keyChain )));
+		if ( null != indexPath ) {
+			for ( String field : MetaIndex.FIELDS ) {
+				if ( !MetaIndex.PATH.equals( field ) && !MetaIndex.MEDIA_TYPE.equals( field ))
+					recordKeys.add( field ); // indexed keys must be kept too
+			}
+		}
+		recordKeyNames = Collections.unmodifiableList( new ArrayList<String>( recordKeys ));
+		metaSchema = new MetaRecord.Schema( pattern, recordKeys.toArray( new String[ 0 ] ), sanitizer );
+	}
+
+	/** Returns the datetime for comparison, or null if there is none. */
+	public Date getDateTimeCompare() {
+		return ( null == dateTimeCompare ) ? null : new Date( dateTimeCompare.getTime() );
+	}
+
+	/** Returns a builder with the same options as this config. */
+	public Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.actionMode = actionMode;
+		builder.verbose = verbose;
+		builder.debug = debug;
+		builder.quiet = quiet;
+		builder.sourcePath = sourcePath;
+		builder.destPath = givenDestPath; // a new sourcePath moves a defaulted destination with it
+		builder.fileGlob = fileGlob;
+		builder.filter = filter;
+		builder.moveTrueCopyFalse = moveTrueCopyFalse;
+		builder.filesLimit = filesLimit;
+		builder.dateTimeComparator = dateTimeComparator;
+		builder.dateTimeCompare = getDateTimeCompare();
+		builder.cachePaths = cachePaths;
+		builder.doNotParse.addAll( doNotParse );
+		builder.views.addAll( views );
+		builder.watch = watch;
+		builder.watchSettleMillis = watchSettleMillis;
+		builder.watchReconcileMinutes = watchReconcileMinutes;
+		builder.duplicatePolicy = duplicatePolicy;
+		builder.reportPath = reportPath;
+		builder.ioLimits = ioLimits;
+		builder.concurrency = concurrency;
+		builder.orderBatch = orderBatch;
+		builder.albumSample = albumSample;
+		builder.directoryRename = directoryRename;
+		builder.stopAtKeys = stopAtKeys;
+		builder.archives = archives;
+		builder.fileSystem = fileSystem;
+		builder.durability = durability;
+		builder.verify = verify;
+		builder.indexPath = indexPath;
+		builder.query = query;
+		builder.shard = shard;
+		builder.journalPath = journalPath;
+		builder.parseTimeoutMillis = parseTimeoutMillis;
+		builder.parseMaxMegabytes = parseMaxMegabytes;
+		builder.quarantinePath = quarantinePath;
+		builder.slowestCount = slowestCount;
+		builder.pattern = pattern;
+		return builder;
+	}
+
+	/** Collects options for a MetaRenamerConfig. Defaults are the same as the command line. */
+	public static class Builder {
+		protected boolean actionMode = false;
+		protected boolean verbose = false;
+		protected boolean debug = false;
+		protected boolean quiet = false;
+		protected String sourcePath = ".";
+		protected String destPath = null; // default is sourcePath
+		protected String fileGlob = "*";
+		protected String filter = null;
+		protected boolean moveTrueCopyFalse = false;
+		protected int filesLimit = Integer.MAX_VALUE;
+		protected Comparator dateTimeComparator = Comparator.FALSE;
+		protected Date dateTimeCompare = null;
+		protected boolean cachePaths = true;
+		protected Set<String> doNotParse = new TreeSet<String>();
+		protected List<View> views = new ArrayList<View>();
+		protected boolean watch = false;
+		protected long watchSettleMillis = 2000;
+		protected int watchReconcileMinutes = 60;
+		protected DuplicateDetector.Policy duplicatePolicy = null;
+		protected String reportPath = null;
+		protected String ioLimits = null;
+		protected String concurrency = null;
+		protected int orderBatch = 0;
+		protected int albumSample = 0;
+		protected boolean directoryRename = false;
+		protected boolean stopAtKeys = false;
+		protected boolean archives = false;
+		protected FileNameSanitizer.Rules fileSystem = FileNameSanitizer.Rules.DEFAULT;
+		protected Durability.Policy durability = Durability.Policy.NONE;
+		protected boolean verify = false;
+		protected String indexPath = null;
+		protected String query = null;
+		protected String shard = null;
+		protected String journalPath = Shard.DEFAULT_JOURNAL.toString();
+		protected long parseTimeoutMillis = 0;
+		protected int parseMaxMegabytes = 0;
+		protected String quarantinePath = null;
+		protected int slowestCount = 5;
+		protected String pattern = MetaRenamer.PATTERN_DEFAULT;
+
+		public Builder actionMode( boolean actionMode ) { this.actionMode = actionMode; return this; }
+		public Builder verbose( boolean verbose ) { this.verbose = verbose; return this; }
+		public Builder debug( boolean debug ) { this.debug = debug; return this; }
+		public Builder quiet( boolean quiet ) { this.quiet = quiet; return this; }
+		public Builder sourcePath( String sourcePath ) { this.sourcePath = sourcePath; return this; }
+		public Builder destPath( String destPath ) { this.destPath = destPath; return this; }
+		public Builder fileGlob( String fileGlob ) { this.fileGlob = fileGlob; return this; }
+		public Builder filter( String filter ) { this.filter = filter; return this; }
+		public Builder moveTrueCopyFalse( boolean moveTrueCopyFalse ) { this.moveTrueCopyFalse = moveTrueCopyFalse; return this; }
+		public Builder filesLimit( int filesLimit ) { this.filesLimit = filesLimit; return this; }
+		public Builder cachePaths( boolean cachePaths ) { this.cachePaths = cachePaths; return this; }
+		public Builder doNotParse( Set<String> doNotParse ) { this.doNotParse.addAll( doNotParse ); return this; }
+		public Builder view( String pattern, String destPath ) { this.views.add( new View( pattern, destPath )); return this; }
+		public Builder view( View view ) { this.views.add( view ); return this; }
+		public Builder pattern( String pattern ) { this.pattern = pattern; return this; }
+		public Builder watch( boolean watch ) { this.watch = watch; return this; }
+		public Builder watchSettleMillis( long watchSettleMillis ) { this.watchSettleMillis = watchSettleMillis; return this; }
+		public Builder watchReconcileMinutes( int watchReconcileMinutes ) { this.watchReconcileMinutes = watchReconcileMinutes; return this; }
+		public Builder duplicatePolicy( DuplicateDetector.Policy duplicatePolicy ) { this.duplicatePolicy = duplicatePolicy; return this; }
+		public Builder reportPath( String reportPath ) { this.reportPath = reportPath; return this; }
+		public Builder ioLimits( String ioLimits ) { this.ioLimits = ioLimits; return this; }
+		public Builder concurrency( String concurrency ) { this.concurrency = concurrency; return this; }
+		public Builder orderBatch( int orderBatch ) { this.orderBatch = orderBatch; return this; }
+		public Builder albumSample( int albumSample ) { this.albumSample = albumSample; return this; }
+		public Builder directoryRename( boolean directoryRename ) { this.directoryRename = directoryRename; return this; }
+		public Builder stopAtKeys( boolean stopAtKeys ) { this.stopAtKeys = stopAtKeys; return this; }
+		public Builder archives( boolean archives ) { this.archives = archives; return this; }
+		public Builder fileSystem( FileNameSanitizer.Rules fileSystem ) { this.fileSystem = fileSystem; return this; }
+		public Builder durability( Durability.Policy durability ) { this.durability = durability; return this; }
+		public Builder verify( boolean verify ) { this.verify = verify; return this; }
+		public Builder indexPath( String indexPath ) { this.indexPath = indexPath; return this; }
+		public Builder query( String query ) { this.query = query; return this; }
+		public Builder shard( String shard ) { this.shard = shard; return this; }
+		public Builder journalPath( String journalPath ) { this.journalPath = journalPath; return this; }
+		public Builder parseTimeoutMillis( long parseTimeoutMillis ) { this.parseTimeoutMillis = parseTimeoutMillis; return this; }
+		public Builder parseMaxMegabytes( int parseMaxMegabytes ) { this.parseMaxMegabytes = parseMaxMegabytes; return this; }
+		public Builder quarantinePath( String quarantinePath ) { this.quarantinePath = quarantinePath; return this; }
+		public Builder slowestCount( int slowestCount ) { this.slowestCount = slowestCount; return this; }
+
+		public Builder dateTime( Comparator dateTimeComparator, Date dateTimeCompare ) {
+			this.dateTimeComparator = dateTimeComparator;
+			this.dateTimeCompare = dateTimeCompare;
+			return this;
+		}
+
+		public Comparator getDateTimeComparator() { return dateTimeComparator; }
+		public Date getDateTimeCompare() { return dateTimeCompare; }
+
+		/** Reads datetime comparator and datetime from the given option, e.g. "GE2015-01-01". */
+		public Builder readDateTime( String option  ) {
+			if ( null == option || option.length() < 1 ) return this;
+			for ( Comparator comp : EnumSet.allOf( MetaRenamer.Comparator.class) ) {
+				int loc = -1;
+				loc = option.indexOf( comp.toString() );
+				if ( 0 == loc ) {
+					dateTimeComparator = comp;
+					// Strip comparator.
+					option = option.replace( comp.name().toString(), "" );
+					// Convert slashes to dashes
+					option = option.replaceAll( "[/]+", "-");
+					// option = option.replaceAll( "[\\]+", "-");
+
+					// Parse date
+					DateTimeFormatter f = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss");
+					// Try with long format first, short format second.
+					try {
+						LocalDateTime dateTime = f.parseLocalDateTime( option );
+						dateTimeCompare = dateTime.toDate();
+					} catch ( IllegalArgumentException e ) {
+						f = DateTimeFormat.forPattern("yyyy-MM-dd");
+						LocalDateTime dateTime = f.parseLocalDateTime( option );
+						dateTimeCompare = dateTime.toDate();
+					}
+				}
+			}
+			return this;
+		}
+
+		public MetaRenamerConfig build() {
+			return new MetaRenamerConfig( this );
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package info.danbecker.metarenamer;
+
+import info.danbecker.metarenamer.FileResult.Outcome;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Streams one line per file result to a CSV or JSON lines report, and keeps a small summary.
+ * <p>
+ * Lines are written as results arrive, so nothing per file is held in memory.
+ * The summary only counts files per outcome, per media type, and per missing metadata key,
+ * so its size depends on the pattern and the media types found, not on the number of files.
+ * Without a writer, only the summary is kept.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class MetaReport implements Consumer<FileResult>, Closeable {
+	public enum Format {
+		CSV,  // header line, then outcome,mediaType,source,destination,missingKeys,exception
+		JSON, // one JSON object per line
+	};
+
+	public static final String CSV_HEADER = "outcome,mediaType,source,destination,missingKeys,exception";
+
+	protected final Writer writer; // null for summary only
+	protected final Format format;
+	protected IOException writeException; // first write failure, after which lines are dropped
+
+	// summary
+	protected final Map<Outcome,Integer> outcomes = new EnumMap<Outcome,Integer>( Outcome.class );
+	protected final Map<String,Integer> mediaTypes = new TreeMap<String,Integer>();
+	protected final Map<String,Integer> missingKeys = new LinkedHashMap<String,Integer>(); // in order first missed
+
+	/** Creates a report which keeps the summary only. */
+	public MetaReport() {
+		this.writer = null;
+		this.format = Format.CSV;
+	}
+
+	/** Creates a report which writes lines to the given writer. */
+	public MetaReport( Writer writer, Format format ) throws IOException {
+		this.writer = writer;
+		this.format = format;
+		if ( Format.CSV == format ) {
+			writer.write( CSV_HEADER );
+			writer.write( '\n' );
+		}
+	}
+
+	/** Opens a report file. Files ending in .json or .jsonl get JSON lines, others get CSV. */
+	public static MetaReport open( Path path ) throws IOException {
+		return new MetaReport( Files.newBufferedWriter( path, StandardCharsets.UTF_8 ), formatOf( path ));
+	}
+
+	/** Returns the report format for a file name. */
+	public static Format formatOf( Path path ) {
+		String name = path.getFileName().toString().toLowerCase();
+		return ( name.endsWith( ".json" ) || name.endsWith( ".jsonl" )) ? Format.JSON : Format.CSV;
+	}
+
+	/** Counts the result and writes its line. */
+	@Override
+	public synchronized void accept( FileResult result ) {
+		increment( outcomes, result.outcome );
+		if ( null != result.mediaType )
+			increment( mediaTypes, result.mediaType );
+		for ( String key : result.missingKeys )
+			increment( missingKeys, key );
+
+		if (( null == writer ) || ( null != writeException ))
+			return;
+		try {
+			if ( Format.JSON == format )
+				writeJson( result );
+			else
+				writeCsv( result );
+		} catch ( IOException e ) {
+			writeException = e;
+			System.err.println( "   report exception=" + e.getMessage() );
+		}
+	}
+
+	protected void writeCsv( FileResult result ) throws IOException {
+		StringBuilder sb = new StringBuilder( 256 );
+		sb.append( result.outcome ).append( ',' );
+		csv( sb, result.mediaType ).append( ',' );
+		csv( sb, ( null == result.source ) ? null : result.source.toString() ).append( ',' );
+		csv( sb, ( null == result.destination ) ? null : result.destination.toString() ).append( ',' );
+		csv( sb, join( result.missingKeys, ';' )).append( ',' );
+		csv( sb, ( null == result.exception ) ? null : String.valueOf( result.exception.getMessage() ));
+		sb.append( '\n' );
+		writer.write( sb.toString() );
+	}
+
+	protected void writeJson( FileResult result ) throws IOException {
+		StringBuilder sb = new StringBuilder( 256 );
+		sb.append( "{\"outcome\":\"" ).append( result.outcome ).append( '"' );
+		if ( null != result.mediaType )
+			json( sb.append( ",\"mediaType\":" ), result.mediaType );
+		if ( null != result.source )
+			json( sb.append( ",\"source\":" ), result.source.toString() );
+		if ( null != result.destination )
+			json( sb.append( ",\"destination\":" ), result.destination.toString() );
+		if ( !result.missingKeys.isEmpty() ) {
+			sb.append( ",\"missingKeys\":[" );
+			int i = 0;
+			for ( String key : result.missingKeys ) {
+				if ( i++ > 0 ) sb.append( ',' );
+				json( sb, key );
+			}
+			sb.append( ']' );
+		}
+		if ( null != result.exception )
+			json( sb.append( ",\"exception\":" ), String.valueOf( result.exception.getMessage() ));
+		sb.append( "}\n" );
+		writer.write( sb.toString() );
+	}
+
+	/** Returns file counts per outcome. */
+	public synchronized Map<Outcome,Integer> getOutcomes() {
+		return new EnumMap<Outcome,Integer>( outcomes );
+	}
+
+	/** Returns file counts per media type, sorted by media type. */
+	public synchronized Map<String,Integer> getMediaTypes() {
+		return new TreeMap<String,Integer>( mediaTypes );
+	}
+
+	/** Returns counts of files missing each metadata key, in the order the keys were first missed. */
+	public synchronized Map<String,Integer> getMissingKeys() {
+		return new LinkedHashMap<String,Integer>( missingKeys );
+	}
+
+	/** Flushes and closes the writer. Reports the first write failure, if any. */
+	@Override
+	public synchronized void close() throws IOException {
+		if ( null == writer )
+			return;
+		writer.close();
+		if ( null != writeException )
+			throw writeException;
+	}
+
+	protected static <K> void increment( Map<K,Integer> counts, K key ) {
+		Integer count = counts.get( key );
+		counts.put( key, ( null == count ) ? 1 : count + 1 );
+	}
+
+	protected static String join( Iterable<String> values, char delimiter ) {
+		StringBuilder sb = new StringBuilder();
+		for ( String value : values ) {
+			if ( sb.length() > 0 ) sb.append( delimiter );
+			sb.append( value );
+		}
+		return sb.toString();
+	}
+
+	/** Appends a CSV field, quoting it if it holds a comma, quote, or line break. */
+	protected static StringBuilder csv( StringBuilder sb, String value ) {
+		if ( null == value )
+			return sb;
+		boolean quote = false;
+		for ( int i = 0; i < value.length() && !quote; i++ ) {
+			char c = value.charAt( i );
+			quote = ( ',' == c ) || ( '"' == c ) || ( '\n' == c ) || ( '\r' == c );
+		}
+		if ( !quote )
+			return sb.append( value );
+		sb.append( '"' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			if ( '"' == c ) sb.append( '"' );
+			sb.append( c );
+		}
+		return sb.append( '"' );
+	}
+
+	/** Appends a quoted JSON string. */
+	protected static StringBuilder json( StringBuilder sb, String value ) {
+		sb.append( '"' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			switch ( c ) {
+			case '"': sb.append( "\\\"" ); break;
+			case '\\': sb.append( "\\\\" ); break;
+			case '\n': sb.append( "\\n" ); break;
+			case '\r': sb.append( "\\r" ); break;
+			case '\t': sb.append( "\\t" ); break;
+			default:
+				if ( c < 0x20 )
+					sb.append( String.format( "\\u%04x", (int) c ));
+				else
+					sb.append( c );
+			}
+		}
+		return sb.append( '"' );
+	}
+}
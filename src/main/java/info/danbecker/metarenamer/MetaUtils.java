@@ -2,15 +2,30 @@ package info.danbecker.metarenamer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.tika.metadata.Metadata;
 
@@ -62,30 +77,32 @@ public class MetaUtils {
 	    }
 	}
 		
+	/** Zero padded single digit tracks, so cleanTrack need not allocate for them. */
+	protected static final String [] PADDED_TRACKS = { "00", "01", "02", "03", "04", "05", "06", "07", "08", "09" };
+
 	/** 
 	 * Updates and cleans Metadata "xmpDM:trackNumber", if present.
-	 * Converts 1/6 to 1. 
+	 * Converts 1/6 to 01. 
 	 * If the track number does not exist, add String MetaRenamer.MISSING_TRACK_FILLER
 	 */
 	public static void cleanTrack( Metadata metadata ) {
 		String dirtyTrack = metadata.get( "xmpDM:trackNumber" );
-		boolean update = false;
+		String track = dirtyTrack;
 		if (( null != dirtyTrack ) && ( dirtyTrack.length() > 0 )){ 
-			int loc = dirtyTrack.indexOf( "/" );
-			if ( -1 != loc ) {
-				dirtyTrack = dirtyTrack.substring( 0, loc );
-				update = true;
-			}
-			if ( dirtyTrack.length() == 1 ) {
-				dirtyTrack = "0" + dirtyTrack;
-				update = true;
+			int end = dirtyTrack.indexOf( '/' );
+			if ( -1 == end )
+				end = dirtyTrack.length();
+			if ( end == 1 ) {
+				char digit = dirtyTrack.charAt( 0 );
+				track = (( digit >= '0' ) && ( digit <= '9' )) ? PADDED_TRACKS[ digit - '0' ] : "0" + digit;
+			} else if ( end < dirtyTrack.length() ) {
+				track = dirtyTrack.substring( 0, end );
 			}
 		} else {
-			dirtyTrack = MetaRenamer.MISSING_TRACK_FILLER;
-			update = true;
+			track = MetaRenamer.MISSING_TRACK_FILLER;
 		}
-		if ( update )
-			metadata.set( "xmpDM:trackNumber", dirtyTrack );
+		if ( track != dirtyTrack )
+			metadata.set( "xmpDM:trackNumber", track );
 	}
 
 	/** 
@@ -95,17 +112,10 @@ public class MetaUtils {
 		String releaseDate = metadata.get( "xmpDM:releaseDate" );
 		if ( null == releaseDate )
 			return;
-		int loc = releaseDate.indexOf( "-" );
-		if ( -1 != loc ) {
-			metadata.add("xmpDM:releaseYear" , releaseDate.substring( 0, loc ));
-			return;
-		}
-		loc = releaseDate.indexOf( "/" );
-		if ( -1 != loc ) {
-			metadata.add("xmpDM:releaseYear" , releaseDate.substring( 0, loc ));
-			return;
-		}
-		metadata.add("xmpDM:releaseYear" , releaseDate );
+		int loc = releaseDate.indexOf( '-' );
+		if ( -1 == loc )
+			loc = releaseDate.indexOf( '/' );
+		metadata.add( "xmpDM:releaseYear", ( -1 == loc ) ? releaseDate : releaseDate.substring( 0, loc ));
 	}
 	
 
@@ -135,76 +145,201 @@ public class MetaUtils {
 		return attr.toString();
 	}
 
-	/** Recursively delete folder, even if it has contents. */
-	public static void deleteFolder(File folder) throws IOException  {
-	    File [] files = folder.listFiles();
-	    if (files!=null) { //some JVMs return null for empty dirs
-	        for(File f: files) {
-	            if(f.isDirectory()) {
-	                deleteFolder(f);
-	            } else {
-	                f.delete();
-	                // Files.delete( Paths.get( f.getAbsolutePath() ));
-	            }
-	        }
-	    }
-	    folder.delete();
-        // Files.delete( Paths.get( folder.getAbsolutePath() ));
+	/** Recursively delete folder, even if it has contents. Subfolders are deleted in parallel. */
+	public static void deleteFolder( File folder ) throws IOException  {
+		Path root = folder.toPath();
+		if ( !Files.exists( root, LinkOption.NOFOLLOW_LINKS ))
+			return;
+		walkTree( root, new TreeVisitor() {
+			@Override
+			public void enter( Path dir ) {
+			}
+			@Override
+			public long file( Path file, BasicFileAttributes attrs ) throws IOException {
+				Files.deleteIfExists( file ); // a link, not what it links to
+				return 0;
+			}
+			@Override
+			public void leave( Path dir ) throws IOException {
+				Files.deleteIfExists( dir );
+			}
+		});
 	}	
 	
-	/** Recursively copy folder, even if it has contents. */
+	/** Recursively copy folder, even if it has contents. Subfolders are copied in parallel. */
 	public static void copyFolder( final Path sourcePath, final Path targetPath ) throws IOException  {
-	    Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
-	        @Override
-	        public FileVisitResult preVisitDirectory(final Path dir,
-	                final BasicFileAttributes attrs) throws IOException {
-	            Files.createDirectories(targetPath.resolve(sourcePath.relativize(dir)));
-	            return FileVisitResult.CONTINUE;
-	        }
-
-	        @Override
-	        public FileVisitResult visitFile(final Path file,
-	                final BasicFileAttributes attrs) throws IOException {
-	            Files.copy(file, targetPath.resolve(sourcePath.relativize(file)));
-	            return FileVisitResult.CONTINUE;
-	        }
-	    });
+		walkTree( sourcePath, new TreeVisitor() {
+			@Override
+			public void enter( Path dir ) throws IOException {
+				Files.createDirectories( targetPath.resolve( sourcePath.relativize( dir )));
+			}
+			@Override
+			public long file( Path file, BasicFileAttributes attrs ) throws IOException {
+				Files.copy( file, targetPath.resolve( sourcePath.relativize( file )));
+				return 0;
+			}
+			@Override
+			public void leave( Path dir ) {
+			}
+		});
 	}
 	
 	public static Path escapeChars( Path proposed ) {
 		return Paths.get( escapeChars( proposed.toString() ));
 	}
 	
-	/** Replace bad file name characters with similar looking characters. */
+	/** Replace bad file name characters with similar looking characters, by the default rules. */
 	public static String escapeChars( String proposedString ) {
 		// Cannot have the following characters in a Windows file system.
 		// < > : " / \ | ? *
-		proposedString = proposedString.replace( ':', ',' );
-		proposedString = proposedString.replace( '"', '\'' );
-		proposedString = proposedString.replace( '/', '!' );
-		proposedString = proposedString.replace( '\\', '!' );
-		proposedString = proposedString.replace( '|', '!' );
-		proposedString = proposedString.replace( '?', '!' );
-		proposedString = proposedString.replace( '*',  '+' );
-		return proposedString;
+		return FileNameSanitizer.DEFAULT.sanitize( proposedString );
 	}
 	
-	/** Recursively delete folder, even if it has contents. */
-	public static long recursiveSize(File folder) throws IOException {
-		long size = 0;
-	    File [] files = folder.listFiles();
-	    if(files!=null) { //some JVMs return null for empty dirs
-	        for(File f: files) {
-	            if(f.isDirectory()) {
-	                size += recursiveSize(f);
-	            } else {
-	                size += Files.size( Paths.get( f.getAbsolutePath() ) );
-	            }
-	        }
-	    }
-	    return size;
+	/** Recursively sum the sizes of the files in a folder. Subfolders are sized in parallel. */
+	public static long recursiveSize( File folder ) throws IOException {
+		Path root = folder.toPath();
+		if ( !Files.isDirectory( root ))
+			return 0;
+		return walkTree( root, new TreeVisitor() {
+			@Override
+			public void enter( Path dir ) {
+			}
+			@Override
+			public long file( Path file, BasicFileAttributes attrs ) {
+				return attrs.size();
+			}
+			@Override
+			public void leave( Path dir ) {
+			}
+		});
 	}	
+
+	/** What a parallel tree walk does in each directory and with each file. Calls come from many threads. */
+	public interface TreeVisitor {
+		/** Called for a directory before its entries. */
+		void enter( Path dir ) throws IOException;
+		/** Called for each file, or link, which is not followed. @return an amount summed over the tree */
+		long file( Path file, BasicFileAttributes attrs ) throws IOException;
+		/** Called for a directory after its files and subdirectories. */
+		void leave( Path dir ) throws IOException;
+	}
+
+	/**
+	 * Walks a tree with one fork/join task per directory, so subtrees are visited concurrently.
+	 * Each directory is listed once, and each entry's attributes are those read with the listing.
+	 * @return the sum of the visitor's file results
+	 */
+	public static long walkTree( Path root, TreeVisitor visitor ) throws IOException {
+		try {
+			return TREE_POOL.invoke( new TreeTask( root, visitor ));
+		} catch ( UncheckedIOException e ) {
+			throw e.getCause();
+		}
+	}
+
+	/** Threads for tree walks. They mostly wait on the disk, so there are more than processors. */
+	protected static final ForkJoinPool TREE_POOL = new ForkJoinPool( Math.max( 4, 2 * Runtime.getRuntime().availableProcessors() ));
+
+	/** Visits one directory, forking a task per subdirectory. */
+	protected static class TreeTask extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+		protected final Path dir;
+		protected final TreeVisitor visitor;
+
+		public TreeTask( Path dir, TreeVisitor visitor ) {
+			this.dir = dir;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected Long compute() {
+			try {
+				visitor.enter( dir );
+				final List<TreeTask> subtasks = new ArrayList<TreeTask>();
+				final long [] sum = { 0 };
+				// At depth 1 every entry, directory or not, comes to visitFile with the attributes of the listing.
+				Files.walkFileTree( dir, EnumSet.noneOf( FileVisitOption.class ), 1, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+						if ( attrs.isDirectory() ) {
+							TreeTask subtask = new TreeTask( file, visitor );
+							subtask.fork();
+							subtasks.add( subtask );
+						} else {
+							sum[ 0 ] += visitor.file( file, attrs );
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+				for ( TreeTask subtask : subtasks )
+					sum[ 0 ] += subtask.join();
+				visitor.leave( dir );
+				return sum[ 0 ];
+			} catch ( IOException e ) {
+				throw new UncheckedIOException( e );
+			}
+		}
+	}
 	
+	/**
+	 * Copies the attributes which Files.copy with COPY_ATTRIBUTES keeps, for copies made by hand:
+	 * the times, and the POSIX permissions or the DOS flags where both file systems have them.
+	 */
+	public static void copyAttributes( Path source, Path target ) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes( source, BasicFileAttributes.class );
+		Files.getFileAttributeView( target, BasicFileAttributeView.class ).setTimes( attrs.lastModifiedTime(), attrs.lastAccessTime(), attrs.creationTime() );
+		if ( Files.getFileStore( source ).supportsFileAttributeView( PosixFileAttributeView.class ) &&
+			Files.getFileStore( target ).supportsFileAttributeView( PosixFileAttributeView.class )) {
+			Files.setPosixFilePermissions( target, Files.getPosixFilePermissions( source ));
+		} else if ( Files.getFileStore( source ).supportsFileAttributeView( DosFileAttributeView.class ) &&
+			Files.getFileStore( target ).supportsFileAttributeView( DosFileAttributeView.class )) {
+			DosFileAttributes dos = Files.readAttributes( source, DosFileAttributes.class );
+			DosFileAttributeView view = Files.getFileAttributeView( target, DosFileAttributeView.class );
+			view.setArchive( dos.isArchive() );
+			view.setHidden( dos.isHidden() );
+			view.setSystem( dos.isSystem() );
+			view.setReadOnly( dos.isReadOnly() ); // last, since it stops later changes
+		}
+	}
+
+	/** Creates named daemon threads, so an unclosed pool does not keep the JVM alive. */
+	public static ThreadFactory daemonThreads( final String name ) {
+		return new ThreadFactory() {
+			int count = 0;
+			@Override
+			public synchronized Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, name + " " + ( ++count ));
+				thread.setDaemon( true );
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Sorts paths by inode number, which on most Unix file systems follows the order of placement on disk.
+	 * Paths which vanished go last.
+	 * @return false, leaving the order as is, if the file system has no inode numbers
+	 */
+	public static boolean sortByInode( List<Path> paths ) {
+		final Map<Path,Long> inodes = new HashMap<Path,Long>( paths.size() * 2 );
+		for ( Path path : paths ) {
+			try {
+				inodes.put( path, (Long) Files.getAttribute( path, "unix:ino" ));
+			} catch ( UnsupportedOperationException | IllegalArgumentException e ) {
+				return false; // no unix view, for example Windows
+			} catch ( IOException e ) {
+				inodes.put( path, Long.MAX_VALUE );
+			}
+		}
+		Collections.sort( paths, new Comparator<Path>() {
+			@Override
+			public int compare( Path a, Path b ) {
+				return inodes.get( a ).compareTo( inodes.get( b ));
+			}
+		});
+		return true;
+	}
+
 	/** Split since Java regex has trouble with "." */
 	public static String [] split( String pattern, String delimiters ) {
 		List<String> keys = new ArrayList<String>();
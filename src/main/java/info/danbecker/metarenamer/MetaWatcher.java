@@ -0,0 +1,266 @@
+package info.danbecker.metarenamer;
+
+import static info.danbecker.metarenamer.FileAttribute.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import info.danbecker.metarenamer.MetaRenamer.FileAction;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a MetaRenamer job running and renames files as they land in sourcePath.
+ * <p>
+ * The source tree is watched recursively with a {@link WatchService}.
+ * A new or changed file is only visited once its size and modified time
+ * have been stable for {@link MetaRenamerConfig#watchSettleMillis},
+ * so files which are still being written are left alone.
+ * A reconciliation walk every {@link MetaRenamerConfig#watchReconcileMinutes}
+ * catches events which were missed or overflowed.
+ * Files are remembered by size and modified time, so unchanged files are not visited twice.
+ * <p>
+ * The MetaRenamer and its Tika parsers stay warm for the life of the watcher.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class MetaWatcher implements Runnable {
+	protected final MetaRenamer renamer;
+	protected final MetaRenamerConfig config;
+	protected final Path sourcePath;
+	protected WatchService watchService;
+	protected final Map<WatchKey,Path> watchedDirs = new HashMap<WatchKey,Path>();
+	protected final Set<Path> registeredDirs = new HashSet<Path>();
+	// Files waiting to settle, in arrival order.
+	protected final Map<Path,FileState> pending = new LinkedHashMap<Path,FileState>();
+	// Size and modified time by path ID of files already visited, and any files they were copied or moved to.
+	protected final PathDictionary.LongColumn visitedSizes = new PathDictionary.LongColumn( -1 );
+	protected final PathDictionary.LongColumn visitedModified = new PathDictionary.LongColumn( -1 );
+	protected volatile boolean running = true;
+	protected volatile boolean reconcileRequested = false;
+
+	/** Size and modified time of a file, and when that state was first seen. */
+	public static class FileState {
+		public final long size;
+		public final long modified;
+		public final long seen;
+
+		public FileState( long size, long modified, long seen ) {
+			this.size = size;
+			this.modified = modified;
+			this.seen = seen;
+		}
+
+		/** Returns the current state of the path, or null if it is gone. */
+		public static FileState of( Path path, long now ) {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes( path, BasicFileAttributes.class );
+				return new FileState( attrs.size(), attrs.lastModifiedTime().toMillis(), now );
+			} catch ( IOException e ) {
+				return null;
+			}
+		}
+
+		public boolean sameAs( FileState other ) {
+			return ( null != other ) && ( size == other.size ) && ( modified == other.modified );
+		}
+	}
+
+	public MetaWatcher( MetaRenamer renamer ) {
+		this.renamer = renamer;
+		this.config = renamer.config;
+		this.sourcePath = Paths.get( config.sourcePath );
+	}
+
+	/** Asks for a reconciliation walk after the current poll. */
+	public void requestReconcile() {
+		reconcileRequested = true;
+	}
+
+	/** Stops the watcher after its current poll. */
+	public void stop() {
+		running = false;
+	}
+
+	/** Watches until stopped or interrupted. */
+	@Override
+	public void run() {
+		try {
+			watchService = sourcePath.getFileSystem().newWatchService();
+			try {
+				watch();
+			} finally {
+				watchService.close();
+			}
+		} catch ( IOException e ) {
+			System.err.println( "   watch exception=" + e );
+		}
+	}
+
+	protected void watch() throws IOException {
+		renamer.checkPath( config.sourcePath, EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class ) );
+		long reconcileMillis = TimeUnit.MINUTES.toMillis( Math.max( 1, config.watchReconcileMinutes ));
+		reconcile(); // registers the tree and queues existing files
+		long nextReconcile = System.currentTimeMillis() + reconcileMillis;
+		if ( config.verbose )
+			System.out.println( "   watching \"" + sourcePath + "\", " + watchedDirs.size() + " directories." );
+
+		while ( running ) {
+			WatchKey key;
+			try {
+				key = watchService.poll( Math.max( 100, config.watchSettleMillis / 2 ), TimeUnit.MILLISECONDS );
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			boolean overflow = false;
+			while ( null != key ) {
+				overflow |= events( key );
+				key = watchService.poll();
+			}
+			long now = System.currentTimeMillis();
+			if ( overflow || reconcileRequested || ( now >= nextReconcile )) {
+				reconcileRequested = false;
+				if ( config.verbose )
+					System.out.println( "   reconciling \"" + sourcePath + "\"" + ( overflow ? " after event overflow." : "." ));
+				reconcile();
+				nextReconcile = now + reconcileMillis;
+			}
+			visitSettled( now );
+		}
+	}
+
+	/** Handles the events of one key. @return true if events overflowed */
+	protected boolean events( WatchKey key ) {
+		boolean overflow = false;
+		Path dir = watchedDirs.get( key );
+		for ( WatchEvent<?> event : key.pollEvents() ) {
+			if ( OVERFLOW == event.kind() ) {
+				overflow = true;
+				continue;
+			}
+			if (( null == dir ) || ( ENTRY_DELETE == event.kind() ))
+				continue;
+			Path path = dir.resolve( (Path) event.context() );
+			if ( Files.isDirectory( path )) {
+				// Files may land before the new directory is registered, so walk it too.
+				try {
+					register( path );
+				} catch ( IOException e ) {
+					System.err.println( "   watch exception=" + e );
+				}
+			} else {
+				queue( path, System.currentTimeMillis() );
+			}
+		}
+		if ( !key.reset() )
+			registeredDirs.remove( watchedDirs.remove( key ));
+		return overflow;
+	}
+
+	/** Walks the whole source tree, registers new directories, and queues new or changed files. */
+	protected void reconcile() throws IOException {
+		register( sourcePath );
+	}
+
+	/** Registers the directory and its subdirectories, queueing any new or changed files. */
+	protected void register( Path start ) throws IOException {
+		final long now = System.currentTimeMillis();
+		Files.walkFileTree( start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) throws IOException {
+				if ( !renamer.matchesGlob( dir, true ))
+					return FileVisitResult.SKIP_SUBTREE;
+				if ( registeredDirs.add( dir ))
+					watchedDirs.put( dir.register( watchService, ENTRY_CREATE, ENTRY_MODIFY ), dir );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) {
+				if ( attrs.isRegularFile() )
+					queue( file, now );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed( Path file, IOException e ) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/** Queues a file unless it was already visited in its current state. */
+	protected void queue( Path path, long now ) {
+		FileState state = FileState.of( path, now );
+		if (( null == state ) || state.sameAs( visited( path )))
+			return;
+		FileState previous = pending.get( path );
+		if ( !state.sameAs( previous ))
+			pending.put( path, state ); // new or still changing, restart the settle time
+	}
+
+	/** Visits pending files whose size and modified time have not changed for the settle time. */
+	protected void visitSettled( long now ) {
+		Iterator<Map.Entry<Path,FileState>> entries = pending.entrySet().iterator();
+		while ( entries.hasNext() ) {
+			Map.Entry<Path,FileState> entry = entries.next();
+			Path path = entry.getKey();
+			FileState current = FileState.of( path, now );
+			if ( null == current ) {
+				entries.remove(); // deleted or moved away
+			} else if ( !current.sameAs( entry.getValue() )) {
+				entry.setValue( current ); // still being written
+			} else if ( now - entry.getValue().seen >= config.watchSettleMillis ) {
+				entries.remove();
+				visited( path, current );
+				visit( path, now );
+			}
+		}
+	}
+
+	/** Returns the state of a file when it was visited, or null if it was not. */
+	protected FileState visited( Path path ) {
+		int id = renamer.paths.find( path );
+		long size = visitedSizes.get( id );
+		return ( -1 == size ) ? null : new FileState( size, visitedModified.get( id ), 0 );
+	}
+
+	protected void visited( Path path, FileState state ) {
+		int id = renamer.paths.id( path );
+		visitedModified.put( id, state.modified );
+		visitedSizes.put( id, state.size );
+	}
+
+	/** Visits one settled file with the renamer. */
+	protected void visit( Path path, long now ) {
+		try {
+			FileResult result = renamer.visit( path );
+			if (( null != result ) && ( null != result.destination )) {
+				// Do not visit our own copies and renames again.
+				FileState destination = FileState.of( result.destination, now );
+				if ( null != destination )
+					visited( result.destination, destination );
+			}
+			if (( null != result ) && config.verbose && !config.quiet )
+				System.out.println( "   watch " + result );
+		} catch ( Exception e ) {
+			System.err.println( "   exception=" + e.getMessage() );
+		}
+	}
+}
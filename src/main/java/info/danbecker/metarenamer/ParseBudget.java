@@ -0,0 +1,198 @@
+package info.danbecker.metarenamer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times detection and parsing of each file, and cancels a stage which goes over its budget.
+ * <p>
+ * With a time or memory limit, each stage runs on a parse thread while the calling worker waits.
+ * A stage over its time, or over its bytes allocated where the JVM can count them,
+ * is interrupted and an {@link ExceededException} is thrown, which frees the worker
+ * even if the parser does not stop at once.
+ * The parse threads are bounded to the callers plus {@link #RUNAWAYS} cancelled stages which have not stopped yet.
+ * When that many runaways hold threads, further stages fail rather than start more threads.
+ * The slowest stages are kept for the stats.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class ParseBudget {
+	public static final long POLL_MILLIS = 50;
+	public static final int RUNAWAYS = 4; // cancelled stages which may keep a parse thread
+
+	public final long timeoutMillis; // 0 for no limit
+	public final long maxBytes; // allocated per stage, 0 for no limit
+	public final int slowestCount;
+	public final int maxThreads; // parse threads, callers plus runaways
+
+	protected ExecutorService executor; // created on first limited stage
+	protected final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	protected final PriorityQueue<Timing> slowest = new PriorityQueue<Timing>(); // fastest of the slowest first
+
+	/** A stage went over its time or memory budget. */
+	public static class ExceededException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ExceededException( String message ) {
+			super( message );
+		}
+	}
+
+	/** Time taken by one stage of one file. */
+	public static class Timing implements Comparable<Timing> {
+		public final Path path;
+		public final String stage;
+		public final long millis;
+
+		public Timing( Path path, String stage, long millis ) {
+			this.path = path;
+			this.stage = stage;
+			this.millis = millis;
+		}
+
+		@Override
+		public int compareTo( Timing other ) {
+			return Long.compare( millis, other.millis );
+		}
+
+		@Override
+		public String toString() {
+			return stage + " " + millis + " ms \"" + path + "\"";
+		}
+	}
+
+	/**
+	 * @param timeoutMillis time per stage, 0 for no limit
+	 * @param maxBytes bytes allocated per stage, 0 for no limit
+	 * @param slowestCount number of slowest stages to keep
+	 */
+	public ParseBudget( long timeoutMillis, long maxBytes, int slowestCount ) {
+		this( timeoutMillis, maxBytes, slowestCount, 1 );
+	}
+
+	/**
+	 * @param callers number of threads which may run stages at once
+	 */
+	public ParseBudget( long timeoutMillis, long maxBytes, int slowestCount, int callers ) {
+		this.timeoutMillis = Math.max( 0, timeoutMillis );
+		this.maxBytes = Math.max( 0, maxBytes );
+		this.slowestCount = Math.max( 0, slowestCount );
+		this.maxThreads = Math.max( 1, callers ) + RUNAWAYS;
+	}
+
+	public boolean isLimited() {
+		return ( timeoutMillis > 0 ) || ( maxBytes > 0 );
+	}
+
+	/** Runs and times one stage of one file, within the budget if there is one. */
+	public <T> T run( Path path, String stage, Callable<T> task ) throws Exception {
+		long start = System.nanoTime();
+		try {
+			if ( !isLimited() )
+				return task.call();
+			return guarded( stage, task );
+		} finally {
+			time( path, stage, TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ));
+		}
+	}
+
+	protected <T> T guarded( String stage, final Callable<T> task ) throws Exception {
+		final AtomicLong threadId = new AtomicLong( -1 );
+		final AtomicLong baseline = new AtomicLong();
+		Future<T> future;
+		try {
+			future = executor().submit( new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					long id = Thread.currentThread().getId();
+					baseline.set( allocatedBytes( id ));
+					threadId.set( id );
+					return task.call();
+				}
+			});
+		} catch ( RejectedExecutionException e ) {
+			throw new IOException( stage + " has no parse thread, " + RUNAWAYS + " cancelled stages have not stopped" );
+		}
+		long deadline = ( timeoutMillis > 0 ) ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+		try {
+			while ( true ) {
+				long wait = Math.min( POLL_MILLIS, deadline - System.currentTimeMillis() );
+				if ( wait <= 0 ) {
+					future.cancel( true );
+					throw new ExceededException( stage + " took over " + timeoutMillis + " ms" );
+				}
+				try {
+					return future.get( wait, TimeUnit.MILLISECONDS );
+				} catch ( TimeoutException e ) {
+				}
+				long id = threadId.get();
+				if (( maxBytes > 0 ) && ( id >= 0 ) && ( allocatedBytes( id ) - baseline.get() > maxBytes )) {
+					future.cancel( true );
+					throw new ExceededException( stage + " allocated over " + ( maxBytes >> 20 ) + " MB" );
+				}
+			}
+		} catch ( ExecutionException e ) {
+			if ( e.getCause() instanceof Exception )
+				throw (Exception) e.getCause();
+			throw e;
+		} catch ( InterruptedException e ) {
+			future.cancel( true );
+			throw e;
+		}
+	}
+
+	protected synchronized ExecutorService executor() {
+		if ( null == executor )
+			executor = new ThreadPoolExecutor( 0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), MetaUtils.daemonThreads( "MetaRenamer parse" ));
+		return executor;
+	}
+
+	/** Returns bytes allocated by a thread, or 0 if the JVM does not count them. */
+	protected long allocatedBytes( long threadId ) {
+		if ( threads instanceof com.sun.management.ThreadMXBean ) {
+			long bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes( threadId );
+			return Math.max( 0, bytes );
+		}
+		return 0;
+	}
+
+	protected synchronized void time( Path path, String stage, long millis ) {
+		if ( 0 == slowestCount )
+			return;
+		if ( slowest.size() < slowestCount ) {
+			slowest.add( new Timing( path, stage, millis ));
+		} else if ( millis > slowest.peek().millis ) {
+			slowest.poll();
+			slowest.add( new Timing( path, stage, millis ));
+		}
+	}
+
+	/** Returns the slowest stages, slowest first. */
+	public synchronized List<Timing> getSlowest() {
+		List<Timing> list = new ArrayList<Timing>( slowest );
+		Collections.sort( list, Collections.reverseOrder() );
+		return list;
+	}
+
+	/** Stops idle parse threads. */
+	public synchronized void close() {
+		if ( null != executor )
+			executor.shutdownNow();
+	}
+}
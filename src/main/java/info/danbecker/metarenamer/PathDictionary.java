@@ -0,0 +1,206 @@
+package info.danbecker.metarenamer;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Gives each path a compact int ID, keeping the paths off the heap.
+ * <p>
+ * A path is stored as its parent's ID and its own name, so a directory of a thousand tracks
+ * stores the directory names once. Names are UTF-8 bytes in a direct buffer, and parents, name offsets,
+ * and the hash table are direct int buffers, about 16 bytes plus the name per path and nothing on the heap,
+ * where a path String costs hundreds of bytes. IDs are dense from 0, so callers can keep state per path
+ * in a {@link java.util.BitSet} or a {@link LongColumn} rather than a map of paths.
+ * <p>
+ * Paths are kept as given, not normalized, and are never removed.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class PathDictionary {
+	public static final int NONE = -1;
+	public static final int INITIAL_CAPACITY = 1024;
+
+	protected ByteBuffer names = ByteBuffer.allocateDirect( 16 * INITIAL_CAPACITY );
+	protected IntBuffer parents = ints( INITIAL_CAPACITY ); // parent ID, NONE for a root or first name
+	protected IntBuffer offsets = ints( INITIAL_CAPACITY + 1 ); // name of ID i is offsets[i] to offsets[i+1]
+	protected IntBuffer table = ints( 2 * INITIAL_CAPACITY ); // ID + 1 per slot, 0 for empty, at most half full
+	protected int size = 0;
+
+	/** Returns the ID of a path, adding the path and any parents not yet in the dictionary. */
+	public synchronized int id( Path path ) {
+		return lookup( path, true );
+	}
+
+	/** Returns the ID of a path, or {@link #NONE} if it is not in the dictionary. */
+	public synchronized int find( Path path ) {
+		return lookup( path, false );
+	}
+
+	/** Returns the path of an ID. */
+	public synchronized Path path( int id ) {
+		if (( id < 0 ) || ( id >= size ))
+			throw new IllegalArgumentException( "path id " + id + " is not in 0.." + ( size - 1 ));
+		Deque<String> elements = new ArrayDeque<String>();
+		for ( int i = id; NONE != i; i = parents.get( i ))
+			elements.push( name( i ));
+		String first = elements.pop();
+		return Paths.get( first, elements.toArray( new String [ elements.size() ] ));
+	}
+
+	/** Returns the number of IDs, which includes the parents of every path added. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** Returns the bytes held in direct buffers. */
+	public synchronized long offHeapBytes() {
+		return names.capacity() + 4L * ( parents.capacity() + offsets.capacity() + table.capacity() );
+	}
+
+	protected int lookup( Path path, boolean add ) {
+		int id = NONE;
+		Path root = path.getRoot();
+		if ( null != root ) {
+			id = child( id, root.toString(), add );
+			if ( NONE == id )
+				return NONE;
+		}
+		for ( Path element : path ) {
+			id = child( id, element.toString(), add );
+			if ( NONE == id )
+				return NONE;
+		}
+		return id;
+	}
+
+	/** Finds, or adds, the name under a parent. */
+	protected int child( int parent, String name, boolean add ) {
+		byte [] bytes = name.getBytes( StandardCharsets.UTF_8 );
+		int mask = table.capacity() - 1;
+		for ( int slot = hash( parent, bytes ) & mask; ; slot = ( slot + 1 ) & mask ) {
+			int entry = table.get( slot );
+			if ( 0 == entry )
+				return add ? add( slot, parent, bytes ) : NONE;
+			if ( matches( entry - 1, parent, bytes ))
+				return entry - 1;
+		}
+	}
+
+	protected int add( int slot, int parent, byte [] bytes ) {
+		int id = size;
+		if ( id + 1 >= parents.capacity() ) {
+			parents = grow( parents, 2 * parents.capacity() );
+			offsets = grow( offsets, 2 * offsets.capacity() );
+		}
+		int start = offsets.get( id );
+		if ( start + bytes.length > names.capacity() ) {
+			ByteBuffer larger = ByteBuffer.allocateDirect( Math.max( 2 * names.capacity(), start + bytes.length ));
+			ByteBuffer old = names.duplicate();
+			old.clear();
+			larger.put( old );
+			names = larger;
+		}
+		for ( int i = 0; i < bytes.length; i++ )
+			names.put( start + i, bytes[ i ] );
+		parents.put( id, parent );
+		offsets.put( id + 1, start + bytes.length );
+		table.put( slot, id + 1 );
+		size++;
+		if ( 2 * size > table.capacity() )
+			rehash( 2 * table.capacity() );
+		return id;
+	}
+
+	protected boolean matches( int id, int parent, byte [] bytes ) {
+		int start = offsets.get( id );
+		if (( parents.get( id ) != parent ) || ( offsets.get( id + 1 ) - start != bytes.length ))
+			return false;
+		for ( int i = 0; i < bytes.length; i++ ) {
+			if ( names.get( start + i ) != bytes[ i ] )
+				return false;
+		}
+		return true;
+	}
+
+	protected String name( int id ) {
+		int start = offsets.get( id );
+		byte [] bytes = new byte [ offsets.get( id + 1 ) - start ];
+		for ( int i = 0; i < bytes.length; i++ )
+			bytes[ i ] = names.get( start + i );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	protected void rehash( int capacity ) {
+		table = ints( capacity );
+		int mask = capacity - 1;
+		for ( int id = 0; id < size; id++ ) {
+			int slot = hash( parents.get( id ), offsets.get( id ), offsets.get( id + 1 )) & mask;
+			while ( 0 != table.get( slot ))
+				slot = ( slot + 1 ) & mask;
+			table.put( slot, id + 1 );
+		}
+	}
+
+	protected static int hash( int parent, byte [] bytes ) {
+		return spread( 31 * parent + Arrays.hashCode( bytes ));
+	}
+
+	/** Hashes a stored name in place, as {@link #hash(int, byte[])} hashes its bytes, so a rehash makes no garbage. */
+	protected int hash( int parent, int start, int end ) {
+		int h = 1;
+		for ( int i = start; i < end; i++ )
+			h = 31 * h + names.get( i );
+		return spread( 31 * parent + h );
+	}
+
+	protected static int spread( int h ) {
+		return h ^ ( h >>> 16 ); // spread high bits into the masked low bits
+	}
+
+	protected static IntBuffer ints( int capacity ) {
+		return ByteBuffer.allocateDirect( 4 * capacity ).asIntBuffer();
+	}
+
+	protected static IntBuffer grow( IntBuffer buffer, int capacity ) {
+		IntBuffer larger = ints( capacity );
+		IntBuffer old = buffer.duplicate();
+		old.clear();
+		larger.put( old );
+		return larger;
+	}
+
+	/** A long per path ID, off the heap. IDs never set read as the missing value. */
+	public static class LongColumn {
+		public final long missing;
+		protected LongBuffer values = ByteBuffer.allocateDirect( 0 ).asLongBuffer();
+
+		public LongColumn( long missing ) {
+			this.missing = missing;
+		}
+
+		public synchronized long get( int id ) {
+			return (( id < 0 ) || ( id >= values.capacity() )) ? missing : values.get( id );
+		}
+
+		public synchronized void put( int id, long value ) {
+			if ( id >= values.capacity() ) {
+				int capacity = Math.max( Math.max( 2 * values.capacity(), id + 1 ), INITIAL_CAPACITY );
+				LongBuffer larger = ByteBuffer.allocateDirect( 8 * capacity ).asLongBuffer();
+				LongBuffer old = values.duplicate();
+				old.clear();
+				larger.put( old );
+				while ( larger.hasRemaining() )
+					larger.put( missing );
+				values = larger;
+			}
+			values.put( id, value );
+		}
+	}
+}
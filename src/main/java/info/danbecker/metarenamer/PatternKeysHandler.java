@@ -0,0 +1,102 @@
+package info.danbecker.metarenamer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tika.metadata.Metadata;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A content handler which stops the parse once every pattern key is filled.
+ * <p>
+ * Parsers set metadata before, or while, they emit the body. The body itself is never used,
+ * so at the first body event with all keys filled, the handler throws a {@link StopException}
+ * and the rest of the stream is not read or extracted. The caller tells this planned stop
+ * from a failure with {@link #isStopped()}, since some parsers wrap handler exceptions.
+ * <p>
+ * A handler keeps state, so use one per parse.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class PatternKeysHandler extends DefaultHandler {
+	/** Keys which MetaUtils.updateMetadata derives from other keys, and their sources. */
+	public static final Map<String,String []> SOURCES = new HashMap<String,String []>();
+	static {
+		SOURCES.put( "xmpDM:releaseYear", new String [] { "xmpDM:releaseDate" } );
+		SOURCES.put( "xmpDM:albumArtist", new String [] { "Author", "creator" } );
+	}
+
+	protected final Metadata metadata;
+	protected final String [] keys;
+	protected boolean stopped = false;
+
+	/** Thrown to stop a parse which has filled all keys. */
+	public static class StopException extends SAXException {
+		private static final long serialVersionUID = 1L;
+
+		public StopException() {
+			super( "pattern keys filled" );
+		}
+	}
+
+	public PatternKeysHandler( Metadata metadata, String [] keys ) {
+		this.metadata = metadata;
+		this.keys = keys;
+	}
+
+	public PatternKeysHandler( Metadata metadata, List<String> keys ) {
+		this( metadata, keys.toArray( new String[ 0 ] ));
+	}
+
+	/** Tests if every key, or a source it is derived from, has a value. A fallback chain needs any one of its keys. */
+	public boolean isFilled() {
+		for ( String key : keys ) {
+			if ( !filled( key ))
+				return false;
+		}
+		return true;
+	}
+
+	protected boolean filled( String keyChain ) {
+		for ( String key : MetaRecord.Schema.chain( keyChain )) {
+			if ( has( key ))
+				return true;
+			String [] sources = SOURCES.get( key );
+			for ( int i = 0; ( null != sources ) && ( i < sources.length ); i++ ) {
+				if ( has( sources[ i ] ))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	protected boolean has( String key ) {
+		String value = metadata.get( key );
+		return ( null != value ) && ( value.length() > 0 );
+	}
+
+	/** Tests if this handler stopped the parse. */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	protected void check() throws StopException {
+		if ( isFilled() ) {
+			stopped = true;
+			throw new StopException();
+		}
+	}
+
+	@Override
+	public void startElement( String uri, String localName, String qName, Attributes attributes ) throws SAXException {
+		check();
+	}
+
+	@Override
+	public void characters( char [] ch, int start, int length ) throws SAXException {
+		check();
+	}
+}
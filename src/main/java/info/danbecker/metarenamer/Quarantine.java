@@ -0,0 +1,109 @@
+package info.danbecker.metarenamer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Files which went over their parse budget, kept in a tab separated file between runs.
+ * <p>
+ * A file is remembered with its size and modified time, and stays quarantined
+ * until either changes, so a fixed or replaced file is parsed again.
+ * Lines are "size, modified millis, path, reason".
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class Quarantine {
+	protected final Path file; // null to keep the list for this run only
+	protected final Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+	protected boolean changed = false;
+
+	/** One quarantined file. */
+	public static class Entry {
+		public final long size;
+		public final long modified;
+		public final String path;
+		public final String reason;
+
+		public Entry( long size, long modified, String path, String reason ) {
+			this.size = size;
+			this.modified = modified;
+			this.path = path;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return size + "\t" + modified + "\t" + path + "\t" + reason;
+		}
+	}
+
+	/** Loads the list from the given file, if it exists. */
+	public Quarantine( Path file ) throws IOException {
+		this.file = file;
+		if (( null == file ) || !Files.isRegularFile( file ))
+			return;
+		for ( String line : Files.readAllLines( file, StandardCharsets.UTF_8 )) {
+			String [] fields = line.split( "\t", 4 );
+			if ( fields.length < 3 )
+				continue;
+			try {
+				Entry entry = new Entry( Long.parseLong( fields[ 0 ] ), Long.parseLong( fields[ 1 ] ), fields[ 2 ], ( fields.length > 3 ) ? fields[ 3 ] : "" );
+				entries.put( entry.path, entry );
+			} catch ( NumberFormatException e ) {
+				System.err.println( "   quarantine skipped line \"" + line + "\"" );
+			}
+		}
+	}
+
+	protected static String key( Path path ) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+
+	/** Tests if the file is quarantined. A file which changed since it was quarantined is released. */
+	public synchronized boolean contains( Path path ) {
+		Entry entry = entries.get( key( path ));
+		if ( null == entry )
+			return false;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes( path, BasicFileAttributes.class );
+			if (( attrs.size() == entry.size ) && ( attrs.lastModifiedTime().toMillis() == entry.modified ))
+				return true;
+		} catch ( IOException e ) {
+		}
+		entries.remove( entry.path );
+		changed = true;
+		return false;
+	}
+
+	/** Quarantines the file in its current state. */
+	public synchronized void add( Path path, String reason ) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes( path, BasicFileAttributes.class );
+		Entry entry = new Entry( attrs.size(), attrs.lastModifiedTime().toMillis(), key( path ), reason.replace( '\t', ' ' ).replace( '\n', ' ' ));
+		entries.put( entry.path, entry );
+		changed = true;
+	}
+
+	/** Returns the quarantined files. */
+	public synchronized Map<String,Entry> getEntries() {
+		return new LinkedHashMap<String,Entry>( entries );
+	}
+
+	/** Writes the list back to its file if anything changed. */
+	public synchronized void save() throws IOException {
+		if (( null == file ) || !changed )
+			return;
+		try ( BufferedWriter writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8 )) {
+			for ( Entry entry : entries.values() ) {
+				writer.write( entry.toString() );
+				writer.write( '\n' );
+			}
+		}
+		changed = false;
+	}
+}
@@ -0,0 +1,264 @@
+package info.danbecker.metarenamer;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import info.danbecker.metarenamer.FileResult.Outcome;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * One of N processes which split a library tree between them.
+ * <p>
+ * Each child of sourcePath belongs to the shard given by the hash of its name, so every
+ * process, on any host, makes the same split without talking to the others.
+ * The processes coordinate through a journal directory, which all of them must see:
+ * local disk for processes on one host, the shared mount for processes on several hosts.
+ * <ul>
+ * <li>shard-i-of-n.lock is held while shard i runs, so it runs only once.
+ * <li>claims/ holds one file per destination, created atomically by the first shard to move or copy there,
+ * so a collision between shards is found even before either file lands. Claims are taken only in action mode,
+ * are released by a file which does not land, and are cleared by a merge of every shard.
+ * <li>shard-i-of-n.journal has a line per file, "outcome, source, destination, media type, missing keys"
+ * with the missing keys separated by semicolons, since a fallback chain has commas.
+ * <li>shard-i-of-n.counts has the counters of the shard when it ends.
+ * </ul>
+ * {@link #merge} sums the counters of all shards and replays their journals into one report.
+ * Counts and journals of an earlier run with another shard count are left out.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class Shard implements Closeable {
+	public static final String MERGE = "merge";
+	public static final Path DEFAULT_JOURNAL = Paths.get( System.getProperty( "java.io.tmpdir" ), "metarenamer-shards" );
+
+	public final int index;
+	public final int count;
+	public final Path journalDir;
+
+	protected final FileChannel lockChannel;
+	protected final FileLock lock;
+	protected final BufferedWriter journal;
+
+	/** Takes the lock of this shard and starts its journal. @throws IOException if the shard is already running */
+	public Shard( int index, int count, Path journalDir ) throws IOException {
+		if (( count < 1 ) || ( index < 0 ) || ( index >= count ))
+			throw new IllegalArgumentException( "shard " + index + "/" + count + " is not in 0/" + count + " to " + ( count - 1 ) + "/" + count );
+		this.index = index;
+		this.count = count;
+		this.journalDir = journalDir;
+		Files.createDirectories( journalDir.resolve( "claims" ));
+		lockChannel = FileChannel.open( file( ".lock" ), CREATE, WRITE );
+		FileLock acquired;
+		try {
+			acquired = lockChannel.tryLock();
+		} catch ( OverlappingFileLockException e ) {
+			acquired = null;
+		}
+		if ( null == acquired ) {
+			lockChannel.close();
+			throw new IOException( "shard " + this + " is already running, lock \"" + file( ".lock" ) + "\"" );
+		}
+		lock = acquired;
+		Files.deleteIfExists( file( ".counts" )); // written again when this run ends
+		journal = Files.newBufferedWriter( file( ".journal" ), StandardCharsets.UTF_8, CREATE, TRUNCATE_EXISTING, WRITE );
+	}
+
+	/** Parses a shard in the command line form "index/count", for example "0/4". */
+	public static Shard parse( String shard, Path journalDir ) throws IOException {
+		String [] values = shard.split( "/" );
+		if ( 2 != values.length )
+			throw new IllegalArgumentException( "shard \"" + shard + "\" is not of the form index/count" );
+		return new Shard( Integer.parseInt( values[ 0 ].trim() ), Integer.parseInt( values[ 1 ].trim() ), journalDir );
+	}
+
+	protected Path file( String extension ) {
+		return journalDir.resolve( "shard-" + index + "-of-" + count + extension );
+	}
+
+	/** Returns the shard of a child of sourcePath. */
+	public static int shardOf( String childName, int count ) {
+		return Math.floorMod( childName.hashCode(), count );
+	}
+
+	/** Tests if this shard owns a path, by the child of sourcePath it is in. */
+	public boolean owns( Path sourcePath, Path path ) {
+		Path relative = sourcePath.relativize( path );
+		if (( 0 == relative.getNameCount() ) || relative.toString().isEmpty() )
+			return true; // sourcePath itself
+		return index == shardOf( relative.getName( 0 ).toString(), count );
+	}
+
+	/**
+	 * Claims a destination for a source.
+	 * @return false if another source already claimed it, in this shard or another
+	 */
+	public boolean claim( Path destination, Path source ) throws IOException {
+		Path claim = claimFile( destination );
+		String sourceName = source.toAbsolutePath().normalize().toString();
+		try ( OutputStream out = Files.newOutputStream( claim, CREATE_NEW, WRITE )) {
+			out.write( sourceName.getBytes( StandardCharsets.UTF_8 ));
+			return true;
+		} catch ( FileAlreadyExistsException e ) {
+			return sourceName.equals( new String( Files.readAllBytes( claim ), StandardCharsets.UTF_8 )); // a rerun of the same file
+		}
+	}
+
+	/** Releases the claim of a source on a destination it did not reach, so another source may claim it. */
+	public void release( Path destination, Path source ) throws IOException {
+		Path claim = claimFile( destination );
+		try {
+			if ( source.toAbsolutePath().normalize().toString().equals( new String( Files.readAllBytes( claim ), StandardCharsets.UTF_8 )))
+				Files.deleteIfExists( claim );
+		} catch ( NoSuchFileException e ) {
+		}
+	}
+
+	protected Path claimFile( Path destination ) {
+		return journalDir.resolve( "claims" ).resolve( digest( destination.toAbsolutePath().normalize().toString() ));
+	}
+
+	protected static String digest( String text ) {
+		try {
+			byte [] hash = MessageDigest.getInstance( "SHA-1" ).digest( text.getBytes( StandardCharsets.UTF_8 ));
+			StringBuilder hex = new StringBuilder( hash.length * 2 );
+			for ( byte b : hash )
+				hex.append( String.format( "%02x", b ));
+			return hex.toString();
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( e ); // every JVM has SHA-1
+		}
+	}
+
+	/** Adds a result to the journal. */
+	public synchronized void journal( FileResult result ) throws IOException {
+		journal.write( result.outcome + "\t" + result.source + "\t" + (( null == result.destination ) ? "" : result.destination ) + "\t" +
+			(( null == result.mediaType ) ? "" : result.mediaType ) + "\t" + String.join( ";", result.missingKeys ));
+		journal.write( '\n' );
+		journal.flush(); // a crashed shard still leaves what it did
+	}
+
+	/** Reads a journal line back into a result. */
+	protected static FileResult parseJournal( String line ) {
+		String [] fields = line.split( "\t", -1 );
+		if ( fields.length < 5 )
+			return null;
+		List<String> missingKeys = fields[ 4 ].isEmpty() ? null : new ArrayList<String>( Arrays.asList( fields[ 4 ].split( ";" )));
+		return new FileResult( Paths.get( fields[ 1 ] ), fields[ 2 ].isEmpty() ? null : Paths.get( fields[ 2 ] ),
+			fields[ 3 ].isEmpty() ? null : fields[ 3 ], Outcome.valueOf( fields[ 0 ] ), missingKeys );
+	}
+
+	/** Writes the counters of this shard, then ends its journal and releases its lock. */
+	public void close( Properties counters ) throws IOException {
+		try ( OutputStream out = Files.newOutputStream( file( ".counts" ))) {
+			counters.store( out, "shard " + this );
+		}
+		close();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			journal.close();
+		} finally {
+			lock.release();
+			lockChannel.close();
+		}
+	}
+
+	/**
+	 * Sums the counters of every shard in the journal directory and replays their journals to the report.
+	 * Walk times are the longest of any shard rather than the sum. Warns if some shards have not written their counts.
+	 * The shard count is that of the newest counts file, and files of other shard counts are left out.
+	 * When every shard has written its counts, the claims are cleared for the next run.
+	 */
+	public static Properties merge( Path journalDir, Consumer<FileResult> report ) throws IOException {
+		Properties totals = new Properties();
+		int shards = 0;
+		int expected = 0;
+		long newest = Long.MIN_VALUE;
+		try ( DirectoryStream<Path> files = Files.newDirectoryStream( journalDir, "shard-*-of-*.counts" )) {
+			for ( Path file : files ) {
+				long modified = Files.getLastModifiedTime( file ).toMillis();
+				if ( modified > newest ) {
+					newest = modified;
+					expected = countOf( file );
+				}
+			}
+		}
+		int stale = 0;
+		try ( DirectoryStream<Path> files = Files.newDirectoryStream( journalDir, "shard-*-of-*.counts" )) {
+			for ( Path file : files ) {
+				if ( expected != countOf( file )) {
+					stale++;
+					continue;
+				}
+				Properties counters = new Properties();
+				try ( InputStream in = Files.newInputStream( file )) {
+					counters.load( in );
+				}
+				for ( String key : counters.stringPropertyNames() ) {
+					long value = Long.parseLong( counters.getProperty( key ));
+					long total = Long.parseLong( totals.getProperty( key, "0" ));
+					totals.setProperty( key, Long.toString( key.endsWith( "Millis" ) ? Math.max( total, value ) : total + value ));
+				}
+				shards++;
+			}
+		}
+		if ( stale > 0 )
+			System.err.println( "   left out " + stale + " counts of another shard count than " + expected + "." );
+		if ( shards < expected )
+			System.err.println( "   merged " + shards + " of " + expected + " shards, the others have not finished." );
+		try ( DirectoryStream<Path> files = Files.newDirectoryStream( journalDir, "shard-*-of-*.journal" )) {
+			for ( Path file : files ) {
+				if ( expected != countOf( file ))
+					continue;
+				for ( String line : Files.readAllLines( file, StandardCharsets.UTF_8 )) {
+					FileResult result = parseJournal( line );
+					if ( null != result )
+						report.accept( result );
+				}
+			}
+		}
+		if (( shards > 0 ) && ( shards == expected )) {
+			try ( DirectoryStream<Path> claims = Files.newDirectoryStream( journalDir.resolve( "claims" ))) {
+				for ( Path claim : claims )
+					Files.deleteIfExists( claim );
+			} catch ( NoSuchFileException e ) {
+			}
+		}
+		totals.setProperty( "shards", Integer.toString( shards ));
+		return totals;
+	}
+
+	/** Returns the shard count in the name of a counts or journal file. */
+	protected static int countOf( Path file ) {
+		String name = file.getFileName().toString();
+		return Integer.parseInt( name.substring( name.indexOf( "-of-" ) + 4, name.lastIndexOf( '.' )));
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+}
@@ -0,0 +1,90 @@
+package info.danbecker.metarenamer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events for the stages of the pipeline, one event type per stage.
+ * <p>
+ * Each type has a default threshold, so a recording keeps only the slow files of a stage.
+ * Thresholds are changed in the recording settings, for example
+ * <code>info.danbecker.metarenamer.Parse#threshold=0 ms</code> to keep every parse.
+ * These classes are only loaded through {@link StageEvents}, which leaves them alone on JVMs without Flight Recorder.
+ * Compiling them needs a JDK with jdk.jfr, 8u262 or later, or 11 or later, and not <code>--release 8</code>.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+@Category( "MetaRenamer" )
+@StackTrace( false )
+public abstract class StageEvent extends Event {
+	@Label( "Path" )
+	public String path;
+
+	@Label( "Destination" )
+	public String destination;
+
+	@Label( "Media Type" )
+	public String mediaType;
+
+	@Label( "Bytes" )
+	@DataAmount
+	public long bytes;
+
+	@Label( "Outcome" )
+	public String outcome;
+
+	@Name( "info.danbecker.metarenamer.Walk" )
+	@Label( "Walk Directory" )
+	@Description( "Visit of a source directory and its subdirectories. Bytes are those of the files visited." )
+	@Threshold( "20 ms" )
+	public static class Walk extends StageEvent {
+	}
+
+	@Name( "info.danbecker.metarenamer.Detect" )
+	@Label( "Detect" )
+	@Description( "Media type detection of a file." )
+	@Threshold( "10 ms" )
+	public static class Detect extends StageEvent {
+	}
+
+	@Name( "info.danbecker.metarenamer.Parse" )
+	@Label( "Parse" )
+	@Description( "Metadata parse of a file." )
+	@Threshold( "20 ms" )
+	public static class Parse extends StageEvent {
+	}
+
+	@Name( "info.danbecker.metarenamer.Plan" )
+	@Label( "Plan" )
+	@Description( "Formatting of the proposed path and view paths from metadata." )
+	@Threshold( "1 ms" )
+	public static class Plan extends StageEvent {
+	}
+
+	@Name( "info.danbecker.metarenamer.Collision" )
+	@Label( "Collision Check" )
+	@Description( "Check of a destination for an existing file, a duplicate, or another shard's claim." )
+	@Threshold( "5 ms" )
+	public static class Collision extends StageEvent {
+	}
+
+	@Name( "info.danbecker.metarenamer.Directory" )
+	@Label( "Directory Create" )
+	@Description( "Check, and creation if missing, of a destination directory. Includes waiting for other workers." )
+	@Threshold( "5 ms" )
+	public static class Directory extends StageEvent {
+	}
+
+	@Name( "info.danbecker.metarenamer.Transfer" )
+	@Label( "Copy or Move" )
+	@Description( "Copy, move, or archive entry write of a file to its destination." )
+	@Threshold( "20 ms" )
+	public static class Transfer extends StageEvent {
+	}
+}
@@ -0,0 +1,88 @@
+package info.danbecker.metarenamer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Times pipeline stages as Flight Recorder events, when this JVM has Flight Recorder.
+ * <p>
+ * A stage is timed with {@link #begin(Stage)} and {@link #end(Object, Path, Path, Object, long, Object)}.
+ * Fields are filled only for events over their threshold, so the cost of a fast stage is two clock reads,
+ * and nothing when no recording is running. On a JVM without jdk.jfr, begin returns null and end does nothing.
+ * <p>
+ * Record a run with, for example,
+ * <code>java -XX:StartFlightRecording=filename=run.jfr -jar MetaRenamer.jar ...</code>
+ * then list the slow files with <code>jfr print --categories MetaRenamer run.jfr</code>.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class StageEvents {
+	public enum Stage { WALK, DETECT, PARSE, PLAN, COLLISION, DIRECTORY, TRANSFER };
+
+	public static final boolean AVAILABLE = available();
+
+	/** Begins timing a stage. @return the event to end, or null when the stage is not recorded */
+	public static Object begin( Stage stage ) {
+		return AVAILABLE ? Jfr.begin( stage ) : null;
+	}
+
+	/**
+	 * Ends a stage, recording it if it ran over its threshold.
+	 * @param bytes size of the file, or -1 to look it up, from the destination if there is one, only when recorded
+	 * @param outcome outcome of the stage, null if it failed
+	 */
+	public static void end( Object event, Path path, Path destination, Object mediaType, long bytes, Object outcome ) {
+		if ( null != event )
+			Jfr.end( event, path, destination, mediaType, bytes, outcome );
+	}
+
+	protected static boolean available() {
+		try {
+			Class.forName( "jdk.jfr.Event" );
+			return true;
+		} catch ( ClassNotFoundException | LinkageError e ) {
+			return false;
+		}
+	}
+
+	/** The only class which touches jdk.jfr types, loaded only when they are there. */
+	protected static class Jfr {
+		static Object begin( Stage stage ) {
+			StageEvent event;
+			switch ( stage ) {
+			case WALK: event = new StageEvent.Walk(); break;
+			case DETECT: event = new StageEvent.Detect(); break;
+			case PARSE: event = new StageEvent.Parse(); break;
+			case PLAN: event = new StageEvent.Plan(); break;
+			case COLLISION: event = new StageEvent.Collision(); break;
+			case DIRECTORY: event = new StageEvent.Directory(); break;
+			default: event = new StageEvent.Transfer(); break;
+			}
+			if ( !event.isEnabled() )
+				return null;
+			event.begin();
+			return event;
+		}
+
+		static void end( Object token, Path path, Path destination, Object mediaType, long bytes, Object outcome ) {
+			StageEvent event = (StageEvent) token;
+			event.end();
+			if ( !event.shouldCommit() )
+				return;
+			event.path = ( null == path ) ? null : path.toString();
+			event.destination = ( null == destination ) ? null : destination.toString();
+			event.mediaType = ( null == mediaType ) ? null : mediaType.toString();
+			if ( bytes < 0 ) {
+				try {
+					bytes = Files.size(( null == destination ) ? path : destination );
+				} catch ( IOException | RuntimeException e ) {
+					bytes = -1; // gone, or not a file
+				}
+			}
+			event.bytes = bytes;
+			event.outcome = ( null == outcome ) ? "FAILED" : outcome.toString();
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package info.danbecker.metarenamer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.parser.DefaultParser;
+
+/**
+ * Loads the Tika configuration on a background thread.
+ * <p>
+ * Building a TikaConfig loads the whole parser graph, which for a small run is most of the start up time.
+ * Loading starts when the loader is made, so the walker enumerates files meanwhile,
+ * and the first detect waits only for what is left. Jobs may share one loader.
+ *
+ * @author <a href="mailto://dan@danbecker.info>Dan Becker</a>
+ */
+public class TikaLoader {
+	protected final FutureTask<TikaConfig> task;
+
+	/** Starts loading the default configuration. */
+	public TikaLoader() {
+		task = new FutureTask<TikaConfig>( new Callable<TikaConfig>() {
+			@Override
+			public TikaConfig call() throws Exception {
+				return new TikaConfig();
+			}
+		});
+		MetaUtils.daemonThreads( "MetaRenamer Tika loader" ).newThread( task ).start();
+	}
+
+	/** Wraps a configuration which is loaded already. */
+	public TikaLoader( TikaConfig config ) {
+		task = new FutureTask<TikaConfig>( new Callable<TikaConfig>() {
+			@Override
+			public TikaConfig call() {
+				return config;
+			}
+		});
+		task.run();
+	}
+
+	/** Tests if loading is done, without waiting. */
+	public boolean isLoaded() {
+		return task.isDone();
+	}
+
+	/** Returns the configuration, waiting for it to load. */
+	public TikaConfig get() throws IOException {
+		try {
+			return task.get();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "waiting for Tika to load" );
+		} catch ( ExecutionException e ) {
+			throw new IOException( "Tika did not load, " + e.getCause().getMessage(), e.getCause() );
+		}
+	}
+
+	public Detector getDetector() throws IOException {
+		return get().getDetector();
+	}
+
+	public DefaultParser getParser() throws IOException {
+		return (DefaultParser) get().getParser();
+	}
+}
@@ -0,0 +1,103 @@
+package info.danbecker.metarenamer;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.metadata.XMPDM;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.mp3.ID3Tags;
+import org.apache.tika.parser.mp3.Mp3Parser;
+import org.junit.Test;
+import org.xml.sax.helpers.DefaultHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AlbumConsensusTest {
+	public static final String MP3 = "src/test/resources/info/danbecker/metarenamer/intervals/034-Interval Studies.mp3";
+
+	@Test
+    public void testReadTags() throws Exception {
+		Path mp3 = Paths.get( MP3 );
+		ID3Tags tags = AlbumConsensus.readTags( mp3 );
+		assertNotNull( "tags", tags );
+
+		Metadata metadata = new Metadata();
+		try ( InputStream stream = Files.newInputStream( mp3 )) {
+			new Mp3Parser().parse( stream, new DefaultHandler(), metadata, new ParseContext() );
+		}
+		assertEquals( "album", metadata.get( XMPDM.ALBUM ), tags.getAlbum() );
+		assertEquals( "artist", metadata.get( XMPDM.ARTIST ), tags.getArtist() );
+		assertEquals( "title", metadata.get( TikaCoreProperties.TITLE ), ( null == tags.getTitle() ) ? "" : tags.getTitle() ); // fixture has no title
+
+		assertNull( "no tags", AlbumConsensus.readTags( Paths.get( "src/test/resources/info/danbecker/metarenamer/pathA/testA.txt" )));
+	}
+
+	@Test
+    public void testSettle() {
+		AlbumConsensus consensus = new AlbumConsensus( 2, Arrays.asList( "xmpDM:album" ));
+		Map<String,String> values = new HashMap<String,String>();
+		values.put( "xmpDM:album", "Rhythm Patterns" );
+
+		AlbumConsensus.Album album = consensus.album( Paths.get( "a" ));
+		assertNull( "unsampled", album.settled( consensus.sampleSize ));
+		album.sample( values );
+		assertNull( "sampling", album.settled( consensus.sampleSize ));
+		album.sample( new HashMap<String,String>( values ));
+		assertEquals( "settled", values, album.settled( consensus.sampleSize ));
+		assertTrue( "agrees", AlbumConsensus.agrees( values, "xmpDM:album", "Rhythm Patterns " ));
+		assertTrue( "no tag agrees", AlbumConsensus.agrees( values, "xmpDM:album", null ));
+		assertFalse( "disagrees", AlbumConsensus.agrees( values, "xmpDM:album", "Interval Studies" ));
+		album.disagree();
+		assertNull( "disagreed", album.settled( consensus.sampleSize ));
+
+		AlbumConsensus.Album other = consensus.album( Paths.get( "b" ));
+		other.sample( values );
+		Map<String,String> differs = new HashMap<String,String>();
+		differs.put( "xmpDM:album", "Interval Studies" );
+		other.sample( differs );
+		assertNull( "sample disagreed", other.settled( consensus.sampleSize ));
+	}
+
+	@Test
+    public void testSample() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaSamplePath" );
+		Path albumPath = Files.createDirectories( tempPath.resolve( "album" ));
+		for ( int i = 1; i <= 4; i++ )
+			Files.copy( Paths.get( MP3 ), albumPath.resolve( "0" + i + "-Interval Studies.mp3" ));
+
+		String [] args = new String [] { "-s", albumPath.toString(), "-d", tempPath.resolve( "dest" ).toString() };
+		MetaRenamer parsed = MetaRenamer.execute( args );
+		String [] sampleArgs = Arrays.copyOf( args, args.length + 2 );
+		sampleArgs[ args.length ] = "-n";
+		sampleArgs[ args.length + 1 ] = "1";
+		MetaRenamer sampled = MetaRenamer.execute( sampleArgs );
+
+		// One track settles the album, the other three read only their tags, to the same results.
+		assertEquals( "tag reads", 3, sampled.consensus.tagReads.get() );
+		assertEquals( "fallbacks", 0, sampled.consensus.fallbacks.get() );
+		assertEquals( "outcomes", parsed.report.getOutcomes(), sampled.report.getOutcomes() );
+		assertEquals( "missing keys", parsed.report.getMissingKeys(), sampled.report.getMissingKeys() );
+
+		// A per file key in the pattern is not part of the album, so the album still settles.
+		String [] basenameArgs = new String [] { "-s", albumPath.toString(), "-d", tempPath.resolve( "dest" ).toString(), "-n", "2",
+			"-p", "xmpDM:albumArtist/xmpDM:album,dirname/basename - title.extension" };
+		sampled = MetaRenamer.execute( basenameArgs );
+		assertFalse( "basename not sampled", sampled.consensus.dirKeyNames.contains( MetaRenamer.ADDITIONAL_DATA_KEY_BASENAME ));
+		assertFalse( "dirname not sampled", sampled.consensus.dirKeyNames.contains( MetaRenamer.ADDITIONAL_DATA_KEY_DIRNAME ));
+		assertEquals( "tag reads", 2, sampled.consensus.tagReads.get() );
+		assertEquals( "fallbacks", 0, sampled.consensus.fallbacks.get() );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,131 @@
+package info.danbecker.metarenamer;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveSourceTest {
+	public static final String MP3 = "src/test/resources/info/danbecker/metarenamer/intervals/034-Interval Studies.mp3";
+
+	@Test
+    public void testRead() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaArchive" );
+		byte [] content = Files.readAllBytes( Paths.get( MP3 ));
+		Path zip = zip( tempPath.resolve( "album.zip" ), content );
+		Path tar = tempPath.resolve( "album.tar" );
+		try ( TarArchiveOutputStream out = new TarArchiveOutputStream( Files.newOutputStream( tar ))) {
+			TarArchiveEntry entry = new TarArchiveEntry( "disc/034.mp3" );
+			entry.setSize( content.length );
+			out.putArchiveEntry( entry );
+			out.write( content );
+			out.closeArchiveEntry();
+			out.finish();
+		}
+		assertTrue( "zip", ArchiveSource.isArchive( zip ));
+		assertTrue( "tgz", ArchiveSource.isArchive( Paths.get( "a.TGZ" )));
+		assertFalse( "mp3", ArchiveSource.isArchive( Paths.get( MP3 )));
+
+		final List<ArchiveSource.Entry> entries = new ArrayList<ArchiveSource.Entry>();
+		ArchiveSource.EntryVisitor visitor = new ArchiveSource.EntryVisitor() {
+			@Override
+			public boolean visit( ArchiveSource.Entry entry ) {
+				entries.add( entry );
+				return true;
+			}
+		};
+		assertEquals( "zip entries", 1, ArchiveSource.read( zip, visitor ));
+		assertEquals( "zip entry path", zip.resolve( "034.mp3" ), entries.get( 0 ).path );
+		assertEquals( "zip entry size", content.length, entries.get( 0 ).size() );
+		assertEquals( "tar entries", 1, ArchiveSource.read( tar, visitor ));
+		assertEquals( "tar entry path", tar.resolve( "disc/034.mp3" ), entries.get( 1 ).path );
+		assertEquals( "tar entry size", content.length, entries.get( 1 ).size() );
+
+		assertTrue( "hidden", ArchiveSource.skipped( "disc/.034.mp3", 10 ));
+		assertTrue( "resource fork", ArchiveSource.skipped( "__MACOSX/034.mp3", 10 ));
+		assertTrue( "climbs out", ArchiveSource.skipped( "../034.mp3", 10 ));
+		assertTrue( "absolute", ArchiveSource.skipped( "/034.mp3", 10 ));
+		assertTrue( "too big", ArchiveSource.skipped( "034.mp3", ArchiveSource.MAX_ENTRY_BYTES + 1 ));
+		assertFalse( "unknown size", ArchiveSource.skipped( "034.mp3", -1 ));
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+    public void testSpool() throws Exception {
+		// An entry of known size is read in place. One of unknown size over the memory limit goes to a temporary file.
+		byte [] small = new byte [ 1000 ];
+		ArchiveSource.Entry entry = ArchiveSource.readEntry( new ByteArrayInputStream( small ), Paths.get( "a.zip/small.mp3" ), small.length, 0 );
+		assertNull( "in memory", entry.spool );
+		assertEquals( "small size", small.length, entry.size() );
+
+		byte [] large = new byte [ ArchiveSource.MEMORY_ENTRY_BYTES + 1 ];
+		large[ large.length - 1 ] = 7;
+		entry = ArchiveSource.readEntry( new ByteArrayInputStream( large ), Paths.get( "a.zip/large.mp3" ), -1, 0 );
+		assertNotNull( "spooled", entry.spool );
+		assertEquals( "large size", large.length, entry.size() );
+		Path target = Files.createTempFile( "metaSpool", ".mp3" );
+		Files.delete( target );
+		entry.write( target );
+		assertTrue( "written", Arrays.equals( large, Files.readAllBytes( target )));
+		Files.delete( target );
+
+		final Path [] spool = new Path [ 1 ];
+		ArchiveSource.visit( new ArchiveSource.EntryVisitor() {
+			@Override
+			public boolean visit( ArchiveSource.Entry visited ) {
+				spool[ 0 ] = visited.spool;
+				return true;
+			}
+		}, entry );
+		assertFalse( "spool deleted", Files.exists( spool[ 0 ] ));
+
+		// An entry of unknown size which grows over the limit is read to its end and skipped.
+		ByteArrayInputStream in = new ByteArrayInputStream( large );
+		assertNull( "too large", ArchiveSource.readEntry( in, Paths.get( "a.zip/large.mp3" ), -1, 0, ArchiveSource.MEMORY_ENTRY_BYTES ));
+		assertEquals( "drained", 0, in.available() );
+	}
+
+	@Test
+	public synchronized void testArchiveRun() throws Exception {
+		Path sourcePath = Files.createTempDirectory( "metaArchive" );
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path zip = zip( sourcePath.resolve( "album.zip" ), Files.readAllBytes( Paths.get( MP3 )));
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-q", "-m", "-s", sourcePath.toString(),
+			"-d", tempPath.toString(), "--archives" } );
+		assertEquals( "entries copied", 1, renamer.filesCreated );
+		assertTrue( "archive kept", Files.exists( zip ));
+		assertTrue( "album directory", Files.isDirectory( tempPath.resolve( "Barrett Tagliarino/2012 - Interval Studies and Lead Guitar Technique" )));
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+		MetaUtils.deleteFolder( sourcePath.toFile() );
+	}
+
+	/** Writes a zip with the given entry content as 034.mp3 and a hidden entry. */
+	protected static Path zip( Path zip, byte [] content ) throws Exception {
+		try ( OutputStream file = Files.newOutputStream( zip ); ZipOutputStream out = new ZipOutputStream( file )) {
+			out.putNextEntry( new ZipEntry( "034.mp3" ));
+			out.write( content );
+			out.closeEntry();
+			out.putNextEntry( new ZipEntry( "._034.mp3" ));
+			out.write( new byte [] { 0, 5, 22, 7 } );
+			out.closeEntry();
+		}
+		return zip;
+	}
+}
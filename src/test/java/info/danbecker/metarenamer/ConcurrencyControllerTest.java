@@ -0,0 +1,68 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyControllerTest {
+
+	@Test
+    public void testParse() {
+		ConcurrencyController controller = ConcurrencyController.parse( "files", "2,8", false );
+		assertEquals( "min", 2, controller.min );
+		assertEquals( "max", 8, controller.max );
+		assertEquals( "starts at min", 2, controller.getLimit() );
+		assertEquals( "max only", 16, ConcurrencyController.parse( "files", "16", false ).max );
+	}
+
+	@Test
+    public void testAimd() {
+		ConcurrencyController controller = new ConcurrencyController( "files", 1, 6, false );
+		// Throughput grows while latency holds, so the limit climbs to max.
+		for ( int i = 1; i <= 8; i++ )
+			controller.decide( 10.0 * Math.min( i, 6 ), 100 );
+		assertEquals( "climbed to max", 6, controller.getLimit() );
+
+		// The device thrashes: latency doubles without more throughput.
+		controller.decide( 60, 200 );
+		assertEquals( "multiplicative decrease", 4, controller.getLimit() );
+		controller.decide( 50, 400 );
+		assertEquals( "decrease again", 3, controller.getLimit() );
+
+		List<ConcurrencyController.Decision> decisions = controller.getDecisions();
+		assertEquals( "decisions", 10, decisions.size() );
+		assertEquals( "last before", 4, decisions.get( 9 ).before );
+		assertTrue( "reason", decisions.get( 9 ).reason.startsWith( "latency" ));
+	}
+
+	@Test
+    public void testWindow() {
+		ConcurrencyController controller = new ConcurrencyController( "files", 1, 4, false );
+		long start = controller.windowStart;
+		long latency = TimeUnit.MILLISECONDS.toNanos( 10 );
+		for ( int i = 1; i <= 10; i++ )
+			controller.completed( latency, start + TimeUnit.MILLISECONDS.toNanos( 100 * i ));
+		assertEquals( "one window", 1, controller.getDecisionCount() );
+		assertEquals( "increased", 2, controller.getLimit() );
+	}
+
+	@Test
+    public void testWorkers() throws Exception {
+		Path sourcePath = Paths.get( "src/test/resources/info/danbecker/metarenamer/"  );
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-c", "1,4", "-s", sourcePath.toString(), "-d", tempPath.toString() } );
+
+		// Same counts as a serial copy.
+		assertEquals( "files created", 2, renamer.filesCreated );
+		assertEquals( "files collided", 2, renamer.filesCollided );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,60 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CopyVerifierTest {
+	public static final String MP3 = "src/test/resources/info/danbecker/metarenamer/intervals/034-Interval Studies.mp3";
+
+	@Test
+    public void testCopyAndVerify() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaVerify" );
+		Path source = Files.copy( Paths.get( MP3 ), tempPath.resolve( "source.mp3" ));
+		boolean posix = source.getFileSystem().supportedFileAttributeViews().contains( "posix" );
+		if ( posix )
+			Files.setPosixFilePermissions( source, PosixFilePermissions.fromString( "r--r-----" ));
+		Path target = tempPath.resolve( "copy.mp3" );
+		CRC32 checksum = new CRC32();
+		CopyVerifier.copy( source, target, checksum );
+		assertEquals( "source checksum", CopyVerifier.checksum( source ), checksum.getValue() );
+		assertEquals( "modified", Files.getLastModifiedTime( source ), Files.getLastModifiedTime( target ));
+		if ( posix )
+			assertEquals( "permissions", Files.getPosixFilePermissions( source ), Files.getPosixFilePermissions( target ));
+
+		try ( CopyVerifier verifier = new CopyVerifier( 2 )) {
+			verifier.verify( source, target, checksum.getValue() );
+			verifier.verify( source, target, checksum.getValue() + 1 ); // as if the copy were corrupt
+			verifier.verify( source, tempPath.resolve( "gone.mp3" ), checksum.getValue() );
+			verifier.finish();
+			assertEquals( "verified", 1, verifier.verified.get() );
+			assertEquals( "mismatched", 2, verifier.getMismatches().size() );
+			int unreadable = 0;
+			for ( CopyVerifier.Mismatch mismatch : verifier.getMismatches() ) {
+				if ( -1 == mismatch.actual )
+					unreadable++;
+			}
+			assertEquals( "unreadable", 1, unreadable );
+		}
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+	public synchronized void testVerifiedRun() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-q", "-s", "src/test/resources/info/danbecker/metarenamer/intervals",
+			"-d", tempPath.toString(), "--verify" } );
+		assertEquals( "files copied", 1, renamer.filesCreated );
+		assertEquals( "verified", 1, renamer.verifier.verified.get() );
+		assertTrue( "no mismatches", renamer.verifier.getMismatches().isEmpty() );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,100 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateDetectorTest {
+
+	@Test
+    public void testIsDuplicate() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaDuplicatePath" );
+		byte [] bytes = new byte[ 5 * DuplicateDetector.PARTIAL_BYTES ];
+		new Random( 42 ).nextBytes( bytes );
+		Path original = Files.write( tempPath.resolve( "original.mp3" ), bytes );
+		Path copy = Files.write( tempPath.resolve( "copy.mp3" ), bytes );
+		bytes[ bytes.length / 2 ]++; // differs only where the partial hash does not look
+		Path middle = Files.write( tempPath.resolve( "middle.mp3" ), bytes );
+		Path shorter = Files.write( tempPath.resolve( "shorter.mp3" ), new byte[ 100 ] );
+
+		DuplicateDetector detector = new DuplicateDetector( DuplicateDetector.Policy.SKIP );
+		try {
+			assertFalse( "same file is not its own duplicate", detector.isDuplicate( original, original ));
+			assertTrue( "copy", detector.isDuplicate( original, copy ));
+			assertFalse( "middle differs", detector.isDuplicate( original, middle ));
+			assertFalse( "size differs", detector.isDuplicate( original, shorter ));
+			assertEquals( "digest cached by path id", bytes.length, detector.sizes.get( detector.paths.find( original )));
+			assertTrue( "full hash cached", detector.hasFull.get( detector.paths.find( original )));
+			assertTrue( "same bytes", DuplicateDetector.sameBytes( original, copy ));
+			assertFalse( "bytes differ", DuplicateDetector.sameBytes( original, middle ));
+			assertFalse( "length differs", DuplicateDetector.sameBytes( original, shorter ));
+		} finally {
+			detector.close();
+			MetaUtils.deleteFolder( tempPath.toFile() );
+		}
+	}
+
+	@Test
+    public void testDuplicateGroups() throws Exception {
+		// The fixture tree holds two copies of each song under different names.
+		Path sourcePath = Paths.get( "src/test/resources/info/danbecker/metarenamer/"  );
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-u", "skip", "-s", sourcePath.toString(), "-d", tempPath.toString() } );
+
+		assertEquals( "files created", 2, renamer.filesCreated );
+		assertEquals( "files duplicated", 2, renamer.filesDuplicated );
+		assertEquals( "files collided", 0, renamer.filesCollided );
+		assertEquals( "duplicate groups", 2, renamer.duplicates.getGroups().size() );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+	public synchronized void testAliasedRoots() throws Exception {
+		// The destination is the source through a link, so each file proposes itself.
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path library = tempPath.resolve( "library" );
+		MetaRenamer.execute( new String [] { "-a", "-q", "-s", "src/test/resources/info/danbecker/metarenamer/intervals", "-d", library.toString() } );
+		Path alias = Files.createSymbolicLink( tempPath.resolve( "alias" ), library.getFileName() );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-q", "-m", "-u", "newest", "-s", library.toString(), "-d", alias.toString() } );
+
+		assertEquals( "files duplicated", 0, renamer.filesDuplicated );
+		assertEquals( "library kept", Integer.valueOf( 1 ), renamer.report.getOutcomes().get( FileResult.Outcome.UNCHANGED ));
+		assertTrue( "file kept", MetaUtils.recursiveSize( library.toFile() ) > 0 );
+
+		Files.delete( alias );
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+	public synchronized void testNewestCopy() throws Exception {
+		// A newer source replaces its older duplicate through a copy beside it, which leaves nothing behind.
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path library = tempPath.resolve( "library" );
+		Path source = Files.createDirectories( tempPath.resolve( "source" ));
+		Files.copy( Paths.get( "src/test/resources/info/danbecker/metarenamer/intervals/034-Interval Studies.mp3" ), source.resolve( "034.mp3" ));
+		MetaRenamer.execute( new String [] { "-a", "-q", "-s", source.toString(), "-d", library.toString() } );
+		Path older;
+		try ( Stream<Path> walk = Files.walk( library )) {
+			older = walk.filter( Files::isRegularFile ).findFirst().get();
+		}
+		Files.setLastModifiedTime( older, FileTime.fromMillis( 946684800000L ));
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-q", "-u", "newest", "-s", source.toString(), "-d", library.toString() } );
+
+		assertEquals( "files duplicated", 1, renamer.filesDuplicated );
+		assertEquals( "replaced with the newer", Files.getLastModifiedTime( source.resolve( "034.mp3" )).toMillis(), Files.getLastModifiedTime( older ).toMillis() );
+		assertTrue( "source kept", Files.exists( source.resolve( "034.mp3" )));
+		assertFalse( "no copy left", Files.exists( older.resolveSibling( older.getFileName() + ".copy" )));
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,69 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DurabilityTest {
+	@Test
+    public void testPolicies() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaDurability" );
+		Path album = Files.createDirectories( tempPath.resolve( "Artist/Album" ));
+		Path track = Files.write( album.resolve( "01 Track.mp3" ), new byte [] { 1, 2, 3 } );
+		Path left = Files.createDirectories( tempPath.resolve( "source" ));
+
+		Durability none = new Durability( Durability.Policy.NONE, 2 );
+		none.landed( track, left );
+		none.flush();
+		assertEquals( "none", 0, none.filesSynced.get() + none.dirsSynced.get() );
+
+		Durability file = new Durability( Durability.Policy.FILE, 2 );
+		file.landed( track, left );
+		assertEquals( "file at once", 1, file.filesSynced.get() );
+		assertEquals( "album, artist, and left", 3, file.dirsSynced.get() );
+
+		Durability directory = new Durability( Durability.Policy.DIRECTORY, 1 );
+		directory.landed( track, null );
+		directory.landed( track, null );
+		assertEquals( "queued", 0, directory.filesSynced.get() );
+		directory.directoryDone();
+		assertEquals( "synced once", 1, directory.filesSynced.get() );
+		assertEquals( "album only", 1, directory.dirsSynced.get() );
+
+		Durability run = new Durability( Durability.Policy.RUN, 2 );
+		run.landed( track, null );
+		run.directoryDone();
+		assertEquals( "waits for the run", 0, run.filesSynced.get() );
+		run.flush();
+		assertEquals( "at the end", 1, run.filesSynced.get() );
+
+		// A duplicate replaced in place syncs its own directory, and the one a move left.
+		Durability replaced = new Durability( Durability.Policy.FILE, 2 );
+		replaced.replaced( track, left );
+		assertEquals( "replaced file", 1, replaced.filesSynced.get() );
+		assertEquals( "album and left", 2, replaced.dirsSynced.get() );
+		replaced.removed( left.resolve( "older.mp3" ));
+		assertEquals( "removed from left", 3, replaced.dirsSynced.get() );
+
+		assertTrue( "sync file", Durability.syncFile( track ));
+		assertFalse( "gone", Durability.syncFile( album.resolve( "gone.mp3" )));
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+	public synchronized void testDurableRun() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-q", "-s", "src/test/resources/info/danbecker/metarenamer/intervals",
+			"-d", tempPath.toString(), "--durability", "run" } );
+		assertEquals( "files copied", 1, renamer.filesCreated );
+		assertEquals( "synced", 1, renamer.durability.filesSynced.get() );
+		assertTrue( "directories synced", renamer.durability.dirsSynced.get() >= 2 );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
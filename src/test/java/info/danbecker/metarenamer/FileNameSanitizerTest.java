@@ -0,0 +1,97 @@
+package info.danbecker.metarenamer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FileNameSanitizerTest {
+	@Test
+    public void testRules() throws Exception {
+		String bad = "AC/DC: Who? \"Me\" *|\\ <1>";
+		assertEquals( "default", "AC!DC, Who! 'Me' +!! <1>", FileNameSanitizer.DEFAULT.sanitize( bad ));
+		assertEquals( "escapeChars", FileNameSanitizer.DEFAULT.sanitize( bad ), MetaUtils.escapeChars( bad ));
+		assertEquals( "windows", "AC!DC, Who! 'Me' +!! (1)", new FileNameSanitizer( FileNameSanitizer.Rules.WINDOWS ).sanitize( bad + "\t" ));
+		assertEquals( "posix", "AC!DC: Who? \"Me\" *|\\ <1>", new FileNameSanitizer( FileNameSanitizer.Rules.POSIX ).sanitize( bad ));
+		assertEquals( "macos", "AC!DC, Cafe\u0301", new FileNameSanitizer( FileNameSanitizer.Rules.MACOS ).sanitize( "AC/DC: Caf\u00e9" ));
+
+	}
+
+	@Test
+    public void testSegments() throws Exception {
+		FileNameSanitizer windows = new FileNameSanitizer( FileNameSanitizer.Rules.WINDOWS );
+		assertEquals( "reserved", "CON_", finish( windows, "CON" ));
+		assertEquals( "reserved with extension", "nul_.mp3", finish( windows, "nul.mp3" ));
+		assertEquals( "not reserved", "CONSOLE.mp3", finish( windows, "CONSOLE.mp3" ));
+		assertEquals( "trailing dots and spaces", "Who Me", finish( windows, "Who Me. ." ));
+		assertEquals( "nothing left", "_", finish( windows, ". " ));
+		assertEquals( "posix keeps", "CON.", finish( new FileNameSanitizer( FileNameSanitizer.Rules.POSIX ), "CON." ));
+
+		FileNameSanitizer fat32 = new FileNameSanitizer( FileNameSanitizer.Rules.FAT32 );
+		StringBuilder longName = new StringBuilder();
+		for ( int i = 0; i < 300; i++ )
+			longName.append( 'x' );
+		assertEquals( "value not cut", 300, fat32.sanitize( longName.toString() ).length() );
+		String cut = finish( fat32, longName + ".mp3" );
+		assertEquals( "fat32 length", FileNameSanitizer.FAT32_NAME_LENGTH, cut.length() );
+		assertTrue( "extension kept", cut.endsWith( "x.mp3" ));
+		longName.setLength( FileNameSanitizer.FAT32_NAME_LENGTH - 1 );
+		longName.append( "\ud83c\udfb8" ); // a pair over the limit
+		assertEquals( "fat32 pair", FileNameSanitizer.FAT32_NAME_LENGTH - 1, finish( fat32, longName.toString() ).length() );
+
+		// Values which fit alone are cut once assembled, segment by segment.
+		String pattern = "xmpDM:artist/xmpDM:album - title.extension";
+		MetaRecord.Schema schema = new MetaRecord.Schema( pattern, MetaUtils.split( pattern, " -./" ), fat32 );
+		MetaRecord record = schema.newRecord();
+		longName.setLength( 200 );
+		record.set( "xmpDM:artist", "AUX" );
+		record.set( "xmpDM:album", longName.toString() );
+		record.set( "title", longName.toString() );
+		record.set( "extension", "mp3" );
+		StringBuilder name = new StringBuilder();
+		schema.format( record, name, null );
+		String [] segments = name.toString().split( "/" );
+		assertEquals( "artist", "AUX_", segments[ 0 ] );
+		assertEquals( "file name", FileNameSanitizer.FAT32_NAME_LENGTH, segments[ 1 ].length() );
+		assertTrue( "file extension", segments[ 1 ].endsWith( ".mp3" ));
+	}
+
+	protected static String finish( FileNameSanitizer sanitizer, String segment ) {
+		StringBuilder name = new StringBuilder( "dir/" ).append( segment );
+		sanitizer.finishSegment( name, 4 );
+		return name.substring( 4 );
+	}
+
+	@Test
+    public void testAppendAndCache() throws Exception {
+		FileNameSanitizer sanitizer = new FileNameSanitizer( FileNameSanitizer.Rules.DEFAULT );
+		String clean = "Interval Studies";
+		assertSame( "clean as is", clean, sanitizer.sanitize( clean ));
+		String first = sanitizer.sanitize( new String( "Who?" ));
+		assertSame( "cached", first, sanitizer.sanitize( new String( "Who?" )));
+
+		StringBuilder name = new StringBuilder( "Artist/" );
+		sanitizer.append( "AC/DC", name );
+		name.append( " - " );
+		sanitizer.append( clean, name );
+		assertEquals( "appended", "Artist/AC!DC - Interval Studies", name.toString() );
+	}
+
+	@Test
+    public void testSchema() throws Exception {
+		String pattern = "xmpDM:artist/xmpDM:album";
+		MetaRecord.Schema schema = new MetaRecord.Schema( pattern, MetaUtils.split( pattern, " -./" ),
+			new FileNameSanitizer( FileNameSanitizer.Rules.POSIX ));
+		MetaRecord record = schema.newRecord();
+		record.set( "xmpDM:artist", "AC/DC" );
+		record.set( "xmpDM:album", "Who? Me:" );
+		StringBuilder name = new StringBuilder();
+		List<String> missing = Arrays.asList();
+		schema.format( record, name, missing );
+		assertEquals( "posix schema", "AC!DC/Who? Me:", name.toString() );
+	}
+}
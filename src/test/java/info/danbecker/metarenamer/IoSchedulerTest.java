@@ -0,0 +1,90 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoSchedulerTest {
+
+	@Test
+    public void testParse() {
+		IoScheduler scheduler = IoScheduler.parse( "2,1,40" );
+		assertEquals( "reads", 2, scheduler.reads );
+		assertEquals( "writes", 1, scheduler.writes );
+		assertEquals( "bytes per second", 40L * 1024 * 1024, scheduler.bytesPerSecond );
+
+		scheduler = IoScheduler.parse( "3" );
+		assertEquals( "reads", 3, scheduler.reads );
+		assertEquals( "default writes", 1, scheduler.writes );
+		assertEquals( "default unlimited", 0, scheduler.bytesPerSecond );
+	}
+
+	@Test
+    public void testCopyMove() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaIoPath" );
+		byte [] bytes = new byte[ 1024 * 1024 ];
+		new Random( 7 ).nextBytes( bytes );
+		Path source = Files.write( tempPath.resolve( "source.mp3" ), bytes );
+		Files.setLastModifiedTime( source, FileTime.fromMillis( 1420070400000L ));
+		boolean posix = source.getFileSystem().supportedFileAttributeViews().contains( "posix" );
+		if ( posix )
+			Files.setPosixFilePermissions( source, PosixFilePermissions.fromString( "rw-r-----" ));
+
+		// Same device reads and writes, 2 MB paced at 4 MB/s.
+		IoScheduler scheduler = new IoScheduler( 1, 1, 4 );
+		try {
+			long start = System.currentTimeMillis();
+			Path copy = tempPath.resolve( "copy.mp3" );
+			scheduler.copy( source, copy );
+			assertTrue( "paced", System.currentTimeMillis() - start >= 400 );
+			assertTrue( "contents", Arrays.equals( bytes, Files.readAllBytes( copy )));
+			assertEquals( "modified", Files.getLastModifiedTime( source ), Files.getLastModifiedTime( copy ));
+			if ( posix )
+				assertEquals( "permissions", Files.getPosixFilePermissions( source ), Files.getPosixFilePermissions( copy ));
+			assertEquals( "bytes written", bytes.length, scheduler.device( copy ).bytesWritten.get() );
+			assertEquals( "one directory cached", 1, scheduler.directories.size() );
+			assertSame( "cached device", scheduler.device( source ), scheduler.device( copy ));
+
+			try {
+				scheduler.copy( source, copy );
+				fail( "copy replaced an existing file" );
+			} catch ( FileAlreadyExistsException e ) {
+			}
+
+			Path moved = tempPath.resolve( "dir/moved.mp3" );
+			Files.createDirectories( moved.getParent() );
+			scheduler.move( copy, moved );
+			assertFalse( "moved from", Files.exists( copy ));
+			assertTrue( "moved to", Arrays.equals( bytes, Files.readAllBytes( moved )));
+		} finally {
+			MetaUtils.deleteFolder( tempPath.toFile() );
+		}
+	}
+
+	@Test
+    public void testWorkers() throws Exception {
+		Path sourcePath = Paths.get( "src/test/resources/info/danbecker/metarenamer/"  );
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-i", "2,2", "-s", sourcePath.toString(), "-d", tempPath.toString() } );
+
+		// Same counts as a serial copy.
+		assertEquals( "files created", 2, renamer.filesCreated );
+		assertEquals( "files collided", 2, renamer.filesCollided );
+		assertEquals( "dirs created", 2, renamer.dirsCreated );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,82 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import org.apache.tika.metadata.Metadata;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetaFilterTest {
+
+	@Test
+    public void testAttributes() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaFilterPath" );
+		Path file = Files.write( tempPath.resolve( "Song.mp3" ), new byte[ 3000 ] );
+		Files.setLastModifiedTime( file, FileTime.fromMillis( MetaFilter.parseDate( "2015-06-01" )));
+		BasicFileAttributes attrs = Files.readAttributes( file, BasicFileAttributes.class );
+
+		assertEquals( "size", Boolean.TRUE, MetaFilter.compile( "size > 2KB" ).test( file, attrs, null ));
+		assertEquals( "unspaced", Boolean.FALSE, MetaFilter.compile( "size>=1MB" ).test( file, attrs, null ));
+		assertEquals( "mtime", Boolean.TRUE, MetaFilter.compile( "mtime >= 2015-01-01 and mtime < 2015/07/01" ).test( file, attrs, null ));
+		assertEquals( "ext", Boolean.TRUE, MetaFilter.compile( "ext = MP3 and name != 'Other Song.mp3'" ).test( file, attrs, null ));
+		assertEquals( "not", Boolean.FALSE, MetaFilter.compile( "not ( size < 1MB or ext = m4a )" ).test( file, attrs, null ));
+		assertFalse( "attributes only", MetaFilter.compile( "size < 1MB" ).needsMetadata() );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+    public void testMetadata() throws Exception {
+		Path file = Paths.get( "src/test/resources/info/danbecker/metarenamer/pathA/testA.txt" );
+		BasicFileAttributes attrs = Files.readAttributes( file, BasicFileAttributes.class );
+		MetaFilter filter = MetaFilter.compile( "size < 1MB and xmpDM:genre = \"Jazz Fusion\"" );
+		assertTrue( "metadata", filter.needsMetadata() );
+
+		// Unknown until parsed, unless attributes alone decide.
+		assertNull( "unparsed", filter.test( file, attrs, null ));
+		assertEquals( "decided", Boolean.FALSE, MetaFilter.compile( "size > 1MB and xmpDM:genre = Jazz" ).test( file, attrs, null ));
+		assertEquals( "decided", Boolean.TRUE, MetaFilter.compile( "size < 1MB or xmpDM:genre = Jazz" ).test( file, attrs, null ));
+
+		Metadata metadata = new Metadata();
+		assertFalse( "missing", filter.test( file, metadata ));
+		assertTrue( "missing not equal", MetaFilter.compile( "xmpDM:genre != Jazz" ).test( file, metadata ));
+		metadata.set( "xmpDM:genre", "jazz fusion" );
+		assertTrue( "ignores case", filter.test( file, metadata ));
+		metadata.set( "xmpDM:trackNumber", "9" );
+		assertTrue( "numeric", MetaFilter.compile( "xmpDM:trackNumber < 10" ).test( file, metadata ));
+	}
+
+	@Test
+    public void testMalformed() {
+		for ( String expression : new String [] { "size >", "size ~ 3", "( size > 3", "size > 3 size", "size > ten", "mtime > July", "name = 'open" } ) {
+			try {
+				MetaFilter.compile( expression );
+				fail( "compiled \"" + expression + "\"" );
+			} catch ( IllegalArgumentException e ) {
+			}
+		}
+	}
+
+	@Test
+    public void testWalk() throws Exception {
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-s", "src/test/resources/info/danbecker/metarenamer",
+			"-f", "ext != txt and xmpDM:album = 'Interval Studies and Lead Guitar Technique'" } );
+
+		// Text files are dropped before they are opened, MP4s without an album after parsing.
+		assertEquals( "filtered on attributes", 2, renamer.filesFiltered );
+		assertEquals( "filtered on metadata", 2, renamer.filesFilteredParsed.get() );
+
+		// Filtered keys outside the pattern are kept in the record.
+		MetaRenamerConfig config = new MetaRenamerConfig.Builder().filter( "xmpDM:genre = Jazz" ).build();
+		assertTrue( "genre kept", config.metaSchema.slot( "xmpDM:genre" ) >= 0 );
+	}
+}
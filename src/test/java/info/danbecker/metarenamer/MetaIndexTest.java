@@ -0,0 +1,123 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.tika.metadata.Metadata;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetaIndexTest {
+	protected static Metadata track( String artist, String album, String year, String track ) {
+		Metadata metadata = new Metadata();
+		metadata.set( "xmpDM:artist", artist );
+		metadata.set( "xmpDM:album", album );
+		metadata.set( "xmpDM:releaseYear", year );
+		if ( null != track )
+			metadata.set( "xmpDM:trackNumber", track );
+		return metadata;
+	}
+
+	@Test
+    public void testQuery() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaIndex" );
+		Path indexPath = tempPath.resolve( "library.index" );
+		MetaIndex index = new MetaIndex( indexPath );
+		index.put( Paths.get( "a/So What.mp3" ), "audio/mpeg", track( "Miles Davis", "Kind of Blue", "1959", "01" ));
+		index.put( Paths.get( "a/Blue in Green.mp3" ), "audio/mpeg", track( "Miles Davis", "Kind of Blue", "1959", "#" ));
+		index.put( Paths.get( "b/Nefertiti.mp3" ), "audio/mpeg", track( "Miles Davis", "Nefertiti", "1968", "01" ));
+		index.put( Paths.get( "c/Blue Monk.mp3" ), "audio/mpeg", track( "Thelonious Monk", "Monk", "1954", null ));
+		index.close();
+
+		Map<String,Integer> albums = MetaIndex.query( indexPath, "xmpDM:album where xmpDM:artist=Miles Davis" );
+		assertEquals( "albums", Arrays.asList( "Kind of Blue", "Nefertiti" ), Arrays.asList( albums.keySet().toArray() ));
+		assertEquals( "tracks", Integer.valueOf( 2 ), albums.get( "Kind of Blue" ));
+		Map<String,Integer> missing = MetaIndex.query( indexPath, "xmpDM:trackNumber=" );
+		assertEquals( "missing track numbers", Arrays.asList( "a/Blue in Green.mp3", "c/Blue Monk.mp3" ), Arrays.asList( missing.keySet().toArray() ));
+		assertEquals( "and", 1, MetaIndex.query( indexPath, "xmpDM:artist=Miles Davis and xmpDM:releaseYear=1968" ).size() );
+		assertEquals( "no match", 0, MetaIndex.query( indexPath, "xmpDM:artist=Bill Evans" ).size() );
+
+		// A later run moves one row and adds one. The others are kept.
+		index = new MetaIndex( indexPath );
+		index.move( Paths.get( "b/Nefertiti.mp3" ), Paths.get( "library/Nefertiti.mp3" ));
+		index.put( Paths.get( "d/Peace Piece.mp3" ), "audio/mpeg", track( "Bill Evans", "Everybody Digs Bill Evans", "1959", "05" ));
+		assertEquals( "row before close", "Nefertiti", index.get( "library/Nefertiti.mp3" )[ 3 ] );
+		index.close();
+		try ( MetaIndex.Reader reader = new MetaIndex.Reader( indexPath )) {
+			assertEquals( "rows", 5, reader.rows );
+			assertEquals( "moved", MetaIndex.MISSING, reader.row( "b/Nefertiti.mp3" ));
+			assertEquals( "moved to", "1968", reader.value( reader.row( "library/Nefertiti.mp3" ), reader.field( "xmpDM:releaseYear" )));
+			assertNull( "no genre", reader.value( 0, reader.field( "xmpDM:genre" )));
+		}
+		assertEquals( "1959", 3, MetaIndex.query( indexPath, "xmpDM:releaseYear=1959" ).size() );
+		assertFalse( "journal merged", Files.exists( index.journalPath ));
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+    public void testJournal() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaIndex" );
+		Path indexPath = tempPath.resolve( "library.index" );
+		// A run which does not close leaves its rows in the journal, with the last record cut short.
+		MetaIndex crashed = new MetaIndex( indexPath );
+		crashed.put( Paths.get( "a/So What.mp3" ), "audio/mpeg", track( "Miles Davis", "Kind of Blue", "1959", "01" ));
+		crashed.move( Paths.get( "a/So What.mp3" ), Paths.get( "library/So What.mp3" ));
+		crashed.put( Paths.get( "b/Nefertiti.mp3" ), "audio/mpeg", track( "Miles Davis", "Nefertiti", "1968", "01" ));
+		crashed.journal.close();
+		assertFalse( "no index before close", Files.exists( indexPath ));
+		long whole = Files.size( crashed.journalPath );
+		Files.write( crashed.journalPath, new byte [] { MetaIndex.PUT, 0, 0 }, StandardOpenOption.APPEND );
+
+		// The next run cuts the partial record, appends after it, and merges both runs.
+		MetaIndex index = new MetaIndex( indexPath );
+		assertEquals( "partial record cut", whole, Files.size( index.journalPath ));
+		index.put( Paths.get( "c/Blue Monk.mp3" ), "audio/mpeg", track( "Thelonious Monk", "Monk", "1954", null ));
+		assertEquals( "journaled row", "Nefertiti", index.get( "b/Nefertiti.mp3" )[ 3 ] );
+		index.close();
+		try ( MetaIndex.Reader reader = new MetaIndex.Reader( indexPath )) {
+			assertEquals( "rows", 3, reader.rows );
+			assertEquals( "moved", MetaIndex.MISSING, reader.row( "a/So What.mp3" ));
+			assertEquals( "moved to", "1959", reader.value( reader.row( "library/So What.mp3" ), reader.field( "xmpDM:releaseYear" )));
+		}
+		assertFalse( "journal merged", Files.exists( index.journalPath ));
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+	public synchronized void testRunAndQuery() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path indexPath = tempPath.resolve( "library.index" );
+		String [] args = new String [] { "-q", "-s", "src/test/resources/info/danbecker/metarenamer/intervals", "-d", tempPath.resolve( "dest" ).toString(),
+			"--index", indexPath.toString() };
+		MetaRenamer.execute( args );
+		assertFalse( "dry run not indexed", Files.exists( indexPath ));
+
+		String [] copyArgs = Arrays.copyOf( args, args.length + 1 );
+		copyArgs[ args.length ] = "-a";
+		MetaRenamer.execute( copyArgs );
+		assertTrue( "index written", Files.isRegularFile( indexPath ));
+		// A second run collides with the copy, which keeps its row, and adds none for the source.
+		MetaRenamer.execute( copyArgs );
+		try ( MetaIndex.Reader reader = new MetaIndex.Reader( indexPath )) {
+			assertEquals( "rows", 1, reader.rows );
+		}
+
+		Map<String,Integer> albums = MetaIndex.query( indexPath, "xmpDM:album where xmpDM:releaseYear=2012" );
+		assertEquals( "album", Integer.valueOf( 1 ), albums.get( "Interval Studies and Lead Guitar Technique" ));
+		Map<String,Integer> untitled = MetaIndex.query( indexPath, "title=" );
+		assertEquals( "fixture has no title", 1, untitled.size() );
+		assertTrue( "destination path", untitled.keySet().iterator().next().startsWith( tempPath.resolve( "dest" ).toString() ));
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,127 @@
+package info.danbecker.metarenamer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.metadata.XMPDM;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetaRecordTest {
+
+	@Test
+    public void testSlots() {
+		String pattern = MetaRenamer.PATTERN_DEFAULT;
+		MetaRecord.Schema schema = new MetaRecord.Schema( pattern, MetaUtils.split( pattern, " -./" ));
+		MetaRecord record = schema.newRecord();
+
+		assertTrue( "schema has pattern key", -1 != schema.slot( "xmpDM:album" ));
+		assertTrue( "schema has support key", -1 != schema.slot( "xmpDM:releaseDate" ));
+		assertEquals( "schema lacks other key", -1, schema.slot( "xmpDM:genre" ));
+
+		record.set( "xmpDM:album", "Rhythm Patterns" );
+		record.set( "xmpDM:genre", "Jazz" );
+		assertEquals( "slot value", "Rhythm Patterns", record.get( "xmpDM:album" ));
+		assertEquals( "slot value by index", "Rhythm Patterns", record.get( schema.slot( "xmpDM:album" )));
+		assertNull( "dropped key", record.get( "xmpDM:genre" ));
+		assertEquals( "record size", 1, record.size() );
+
+		// First value wins, like Metadata.get
+		record.add( "xmpDM:album", "Other" );
+		assertEquals( "add keeps first", "Rhythm Patterns", record.get( "xmpDM:album" ));
+
+		// Composite properties fill their secondary keys, e.g. dc:title and title
+		record.set( TikaCoreProperties.TITLE, "Clave Son" );
+		assertEquals( "composite secondary", "Clave Son", record.get( "title" ));
+		record.set( XMPDM.TRACK_NUMBER, "3/12" );
+		assertEquals( "property value", "3/12", record.get( "xmpDM:trackNumber" ));
+
+		record.clear();
+		assertEquals( "cleared size", 0, record.size() );
+	}
+
+	@Test
+    public void testFormat() {
+		String pattern = "xmpDM:albumArtist/xmpDM:releaseYear - xmpDM:album/xmpDM:trackNumber - title.extension";
+		MetaRecord.Schema schema = new MetaRecord.Schema( pattern, MetaUtils.split( pattern, " -./" ));
+		MetaRecord record = schema.newRecord();
+		record.set( "xmpDM:albumArtist", "AC/DC" );
+		record.set( "xmpDM:releaseDate", "1980-07-25" );
+		record.set( "xmpDM:album", "Back in Black" );
+		record.set( "xmpDM:trackNumber", "1/10" );
+		record.set( "extension", "mp3" );
+		MetaUtils.updateMetadata( record );
+
+		StringBuilder name = new StringBuilder();
+		List<String> missingKeys = new ArrayList<String>();
+		int emptyCount = schema.format( record, name, missingKeys );
+		assertEquals( "formatted name", "AC!DC/1980 - Back in Black/01 - title.mp3", name.toString() );
+		assertEquals( "empty count", 1, emptyCount );
+		assertEquals( "missing key", "title", missingKeys.get( 0 ));
+
+		// Plain Metadata formats the same.
+		Metadata metadata = new Metadata();
+		for ( String key : record.names() )
+			metadata.set( key, record.get( key ));
+		StringBuilder plainName = new StringBuilder();
+		schema.format( metadata, plainName, null );
+		assertEquals( "formatted plain name", name.toString(), plainName.toString() );
+	}
+
+	@Test
+    public void testChains() throws Exception {
+		String pattern = "xmpDM:albumArtist,dirname/xmpDM:album,title,dc:title - basename.extension";
+		MetaRecord.Schema schema = new MetaRecord.Schema( pattern, MetaUtils.split( pattern, " -./" ));
+		MetaRecord record = schema.newRecord();
+		assertTrue( "chain key", -1 != schema.slot( "dc:title" ));
+		record.set( "dirname", "Barrett Tagliarino" );
+		record.set( "basename", "034-Interval Studies" );
+		record.set( "extension", "mp3" );
+
+		// A parse key ahead of a cheap key may still fill, so the parse is needed.
+		assertTrue( "needs parse", schema.needsParse( record, MetaRenamer.CHEAP_KEYS ));
+		String cheap = "dirname/basename,xmpDM:album.extension";
+		MetaRecord.Schema cheapSchema = new MetaRecord.Schema( cheap, MetaUtils.split( cheap, " -./" ));
+		assertFalse( "resolved by names", cheapSchema.needsParse( record, MetaRenamer.CHEAP_KEYS ));
+
+		// Without a parse, each chain falls back to its first key with a value.
+		record.set( "dc:title", "Interval Studies" );
+		StringBuilder name = new StringBuilder();
+		List<String> missingKeys = new ArrayList<String>();
+		schema.format( record, name, missingKeys );
+		assertEquals( "fallback name", "Barrett Tagliarino/Interval Studies - 034-Interval Studies.mp3", name.toString() );
+		assertTrue( "nothing missing", missingKeys.isEmpty() );
+		record.set( "xmpDM:album", "Interval Studies and Lead Guitar Technique" );
+		record.set( "dc:title", null );
+		name.setLength( 0 );
+		schema.format( record, name, missingKeys );
+		assertEquals( "first of chain", "Barrett Tagliarino/Interval Studies and Lead Guitar Technique - 034-Interval Studies.mp3", name.toString() );
+
+		// A pattern of names alone never parses.
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-s", "src/test/resources/info/danbecker/metarenamer", "-p", cheap } );
+		assertEquals( "parses skipped", 4, renamer.parsesSkipped.get() );
+		assertEquals( "nothing missing", 0, renamer.filesMissingMetadata );
+	}
+
+	@Test
+    public void testCleanTrack() {
+		Metadata metadata = new Metadata();
+		MetaUtils.cleanTrack( metadata );
+		assertEquals( "missing track", MetaRenamer.MISSING_TRACK_FILLER, metadata.get( "xmpDM:trackNumber" ));
+		metadata.set( "xmpDM:trackNumber", "7/12" );
+		MetaUtils.cleanTrack( metadata );
+		assertEquals( "padded track", "07", metadata.get( "xmpDM:trackNumber" ));
+		metadata.set( "xmpDM:trackNumber", "11/12" );
+		MetaUtils.cleanTrack( metadata );
+		assertEquals( "track of total", "11", metadata.get( "xmpDM:trackNumber" ));
+		metadata.set( "xmpDM:trackNumber", "112" );
+		MetaUtils.cleanTrack( metadata );
+		assertEquals( "long track", "112", metadata.get( "xmpDM:trackNumber" ));
+	}
+}
@@ -10,8 +10,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.joda.time.LocalDateTime;
 import org.joda.time.format.DateTimeFormat;
@@ -33,61 +36,60 @@ public class MetaRenamerTest {
 	}
 	
 	@Test
-    public void testCheckPath() throws IOException {
-		MetaRenamer.verbose = true;
+    public void testCheckPath() throws Exception {
+		MetaRenamer renamer = new MetaRenamer( new MetaRenamerConfig.Builder().verbose( true ).build() );
 		boolean result = false;
 
-		result = MetaRenamer.checkPath( ".", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
+		result = renamer.checkPath( ".", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
 		assertTrue( ". exists readable", result );
 		
-		result = MetaRenamer.checkPath( ".", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
+		result = renamer.checkPath( ".", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
 		assertTrue( ". exists readable cached", result );
 		
-		result = MetaRenamer.checkPath( "..", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
+		result = renamer.checkPath( "..", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
 		assertTrue( ".. exists readable", result );
 
 		// Do it twice to see if cache works
-	    result = MetaRenamer.checkPath( "..", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
+	    result = renamer.checkPath( "..", EnumSet.of( EXISTS, READABLE, DIRECTORY ), EnumSet.noneOf( FileAction.class )  );	
 		assertTrue( ".. exists readable cached", result );
 
 		// Text file
-		result = MetaRenamer.checkPath( "src/test/resources/info/danbecker/metarenamer/PathA/testA.txt", 
+		result = renamer.checkPath( "src/test/resources/info/danbecker/metarenamer/PathA/testA.txt", 
 			EnumSet.of( EXISTS, READABLE, WRITABLE, FILE), EnumSet.noneOf( FileAction.class )  );	
 		assertTrue( "testA.txt exists readable writeable file", result );
 
 		// Text file (recall that these results cached)
-		result = MetaRenamer.checkPath( "src/test/resources/info/danbecker/metarenamer/PathB/testB.txt", 
+		result = renamer.checkPath( "src/test/resources/info/danbecker/metarenamer/PathB/testB.txt", 
 			EnumSet.of( EXISTS, READABLE, WRITABLE, HIDDEN, FILE ), EnumSet.noneOf( FileAction.class )  );	
 		assertTrue( "testB.txt not exists readable writeable hidden", !result );
 
 		// Non-existent file
-		result = MetaRenamer.checkPath( "blah", 
+		result = renamer.checkPath( "blah", 
 			EnumSet.of( EXISTS, HIDDEN ), EnumSet.noneOf( FileAction.class )  );	
 		assertTrue( "blah not exists readable writeable", !result );
 	}
 
 	@Test
-    public void testCheckPathActions() throws IOException {
-		MetaRenamer.verbose = false;
+    public void testCheckPathActions() throws Exception {
+		MetaRenamer renamer = new MetaRenamer( new MetaRenamerConfig.Builder().verbose( false ).build() );
 		boolean result = false;
 		
 		// This really needs a clean-up to ensire stats are correct (e.g. collision count.)
 
 		// Text file create test mode
-		result = MetaRenamer.checkPath( "src/test/resources/info/danbecker/metarenamer/pathA/blah.txt", 
+		result = renamer.checkPath( "src/test/resources/info/danbecker/metarenamer/pathA/blah.txt", 
 			EnumSet.of( EXISTS, READABLE, WRITABLE, FILE ), EnumSet.of( CREATE )  );	
 		assertTrue( "blah.txt test mode not created", !result );
 
-		MetaRenamer.actionMode = true;
-		MetaRenamer.verbose = true;
+		renamer = new MetaRenamer( renamer.config.toBuilder().actionMode( true ).verbose( true ).build() );
 		
 		// Text file create
 		String tempFileName = "src/test/resources/info/danbecker/metarenamer/pathX/pathY/pathZ/blah.txt";
 		String parentName = (new File( tempFileName )).getParent();
-		result = MetaRenamer.checkPath( parentName, 
+		result = renamer.checkPath( parentName, 
 				EnumSet.of( EXISTS, READABLE, WRITABLE, DIRECTORY ), EnumSet.of( CREATE )  );	
 			assertTrue( "blah.txt created exists", result );
-		result = MetaRenamer.checkPath( tempFileName, 
+		result = renamer.checkPath( tempFileName, 
 			EnumSet.of( EXISTS, READABLE, WRITABLE, FILE ), EnumSet.of( CREATE )  );	
 		assertTrue( "blah.txt created exists", result );
 
@@ -95,66 +97,47 @@ public class MetaRenamerTest {
 		File file = new File( tempFileName );
 		long lastModified = file.lastModified();		
 		try { Thread.sleep( 1000 ); } catch (InterruptedException e) {	}		
-		result = MetaRenamer.checkPath( tempFileName, 
+		result = renamer.checkPath( tempFileName, 
 			EnumSet.of( EXISTS, READABLE, WRITABLE, FILE ), EnumSet.of( UPDATE )  );	
 		assertTrue( "blah.txt updated exists", result );
 		assertTrue( "blah.txt updated timestamp", file.lastModified() > lastModified );
 
 		// Text file delete
-		result = MetaRenamer.checkPath( tempFileName, EnumSet.of( FILE ), EnumSet.of( DELETE )  );	
+		result = renamer.checkPath( tempFileName, EnumSet.of( FILE ), EnumSet.of( DELETE )  );	
 		assertTrue( "blah.txt deleted", result );
 
 		// Dir delete
-		result = MetaRenamer.checkPath( "src/test/resources/info/danbecker/metarenamer/pathX", 
+		result = renamer.checkPath( "src/test/resources/info/danbecker/metarenamer/pathX", 
 			EnumSet.of( DIRECTORY ), EnumSet.of( DELETE )  );	
 		assertTrue( "pathX deleted", result );
-		MetaRenamer.verbose = false;
 	}
 
 	@Test
     public synchronized void testStats() throws Exception {
 		// Test visiting in test mode. No clean up necessary.
-		MetaRenamer.filesVisited = 0;
-		MetaRenamer.filesCollided = 0;
-		MetaRenamer.filesRenamed = 0;
-		MetaRenamer.filesCreated = 0;
-		MetaRenamer.dirsVisited = 0;
-		MetaRenamer.dirsCollided = 0;
-		MetaRenamer.dirsRenamed = 0;
-		MetaRenamer.dirsCreated = 0;
-
-		MetaRenamer.main( new String [] { "-v", "-s", "src/test/resources/info/danbecker/metarenamer/" } );
-
-		assertTrue( "dirs visited", MetaRenamer.dirsVisited >= 9 );
-		assertEquals( "dirs collided", 0, MetaRenamer.dirsRenamed );
-		assertEquals( "dirs created", 0, MetaRenamer.dirsCreated );
-		assertEquals( "dirs collided", 0, MetaRenamer.dirsCollided );
-		assertEquals( "dirs missing", 0, MetaRenamer.dirsMissingMetadata );
-		assertTrue( "files visited", MetaRenamer.filesVisited >= 6 );
-		assertEquals( "files renamed", 0, MetaRenamer.filesRenamed );
-		assertEquals( "files created", 0, MetaRenamer.filesCreated );
-		// assertEquals( "files collided", 0, MetaRenamer.filesCollided );
-		// assertEquals( "files missing", 0, MetaRenamer.filesMissingMetadata );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-v", "-s", "src/test/resources/info/danbecker/metarenamer/" } );
+
+		assertTrue( "dirs visited", renamer.dirsVisited >= 9 );
+		assertEquals( "dirs collided", 0, renamer.dirsRenamed );
+		assertEquals( "dirs created", 0, renamer.dirsCreated );
+		assertEquals( "dirs collided", 0, renamer.dirsCollided );
+		assertEquals( "dirs missing", 0, renamer.dirsMissingMetadata );
+		assertTrue( "files visited", renamer.filesVisited >= 6 );
+		assertEquals( "files renamed", 0, renamer.filesRenamed );
+		assertEquals( "files created", 0, renamer.filesCreated );
+		// assertEquals( "files collided", 0, renamer.filesCollided );
+		// assertEquals( "files missing", 0, renamer.filesMissingMetadata );
 	}
 	
 	@Test
     public synchronized void testCopy() throws Exception {
-		MetaRenamer.filesVisited = 0;
-		MetaRenamer.filesCollided = 0;
-		MetaRenamer.filesRenamed = 0;
-		MetaRenamer.filesCreated = 0;
-		MetaRenamer.dirsVisited = 0;
-		MetaRenamer.dirsCollided = 0;
-		MetaRenamer.dirsRenamed = 0;
-		MetaRenamer.dirsCreated = 0;
-		
 		// Test copy/rename to a temp directory
 		Path sourcePath = Paths.get( "src/test/resources/info/danbecker/metarenamer/"  );
 		long sourceSize = MetaUtils.recursiveSize( sourcePath.toFile() );
 		
 		Path tempPath = Files.createTempDirectory( "metaTestPath" );
 		// System.out.println( "   path old size=" + oldSize );
-		MetaRenamer.main( new String [] { "-a", "-v", "-s", sourcePath.toString(), "-d", tempPath.toString() } );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-v", "-s", sourcePath.toString(), "-d", tempPath.toString() } );
 		try { Thread.sleep( 2000 ); } catch (InterruptedException e) {	}
 		long newSize = MetaUtils.recursiveSize( tempPath.toFile() );
 
@@ -166,16 +149,16 @@ public class MetaRenamerTest {
 		long sourceSizeNew = MetaUtils.recursiveSize( sourcePath.toFile() );
 		assertEquals( "source directory exact size",  sourceSize, sourceSizeNew );
 
-		assertTrue( "dirs visited", MetaRenamer.dirsVisited >= 9 );
-		assertEquals( "dirs collided", 0, MetaRenamer.dirsRenamed );
-		assertEquals( "dirs created", 2, MetaRenamer.dirsCreated );
-		assertEquals( "dirs collided", 0, MetaRenamer.dirsCollided );
-		assertEquals( "dirs missing", 0, MetaRenamer.dirsMissingMetadata );
-		assertTrue( "files visited", MetaRenamer.filesVisited >= 6 );
-		assertEquals( "files renamed", 0, MetaRenamer.filesRenamed );
-		assertEquals( "files created", 2, MetaRenamer.filesCreated );
-		assertTrue( "files collided", MetaRenamer.filesCollided >= 1 );
-		// assertEquals( "files missing", 0, MetaRenamer.filesMissingMetadata );
+		assertTrue( "dirs visited", renamer.dirsVisited >= 9 );
+		assertEquals( "dirs collided", 0, renamer.dirsRenamed );
+		assertEquals( "dirs created", 2, renamer.dirsCreated );
+		assertEquals( "dirs collided", 0, renamer.dirsCollided );
+		assertEquals( "dirs missing", 0, renamer.dirsMissingMetadata );
+		assertTrue( "files visited", renamer.filesVisited >= 6 );
+		assertEquals( "files renamed", 0, renamer.filesRenamed );
+		assertEquals( "files created", 2, renamer.filesCreated );
+		assertTrue( "files collided", renamer.filesCollided >= 1 );
+		// assertEquals( "files missing", 0, renamer.filesMissingMetadata );
 		
 		// Clean up
 		try { Thread.sleep( 1000 ); } catch (InterruptedException e) {	}
@@ -187,15 +170,6 @@ public class MetaRenamerTest {
 	
 	@Test
     public synchronized void testMove() throws Exception {
-		MetaRenamer.filesVisited = 0;
-		MetaRenamer.filesCollided = 0;
-		MetaRenamer.filesRenamed = 0;
-		MetaRenamer.filesCreated = 0;
-		MetaRenamer.dirsVisited = 0;
-		MetaRenamer.dirsCollided = 0;
-		MetaRenamer.dirsRenamed = 0;
-		MetaRenamer.dirsCreated = 0;
-
 		// Test copy/rename to a temp directory
 		Path sourcePath = Paths.get( "src/test/resources/info/danbecker/metarenamer/"  );
 		long sourceSize = MetaUtils.recursiveSize( sourcePath.toFile() );
@@ -213,7 +187,7 @@ public class MetaRenamerTest {
 		// Move from temp copy directory to move directory
 		Path movePath = Files.createTempDirectory( "metaTestPath" );
 		long oldMoveSize = MetaUtils.recursiveSize( movePath.toFile() );
-		MetaRenamer.main( new String [] { "-a", "-v", "-m", "-s", copyPath.toString(), "-d", movePath.toString() } );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-v", "-m", "-s", copyPath.toString(), "-d", movePath.toString() } );
 		long newMoveSize = MetaUtils.recursiveSize( movePath.toFile() );
 
 		// Exact size is not platform independent
@@ -231,16 +205,16 @@ public class MetaRenamerTest {
 		long sourceSizeNew = MetaUtils.recursiveSize( sourcePath.toFile() );
 		assertEquals( "source directory exact size",  sourceSize, sourceSizeNew );
 
-		assertTrue( "dirs visited", MetaRenamer.dirsVisited >= 9 );
-		assertEquals( "dirs collided", 0, MetaRenamer.dirsRenamed );
-		assertEquals( "dirs created", 2, MetaRenamer.dirsCreated );
-		assertEquals( "dirs collided", 0, MetaRenamer.dirsCollided );
-		assertEquals( "dirs missing", 0, MetaRenamer.dirsMissingMetadata );
-		assertTrue( "files visited", MetaRenamer.filesVisited >= 6 );
-		assertEquals( "files renamed", 2, MetaRenamer.filesRenamed );
-		assertEquals( "files created", 0, MetaRenamer.filesCreated );
-		assertTrue( "files collided", MetaRenamer.filesCollided >= 1 );
-		// assertEquals( "files missing", 0, MetaRenamer.filesMissingMetadata );
+		assertTrue( "dirs visited", renamer.dirsVisited >= 9 );
+		assertEquals( "dirs collided", 0, renamer.dirsRenamed );
+		assertEquals( "dirs created", 2, renamer.dirsCreated );
+		assertEquals( "dirs collided", 0, renamer.dirsCollided );
+		assertEquals( "dirs missing", 0, renamer.dirsMissingMetadata );
+		assertTrue( "files visited", renamer.filesVisited >= 6 );
+		assertEquals( "files renamed", 2, renamer.filesRenamed );
+		assertEquals( "files created", 0, renamer.filesCreated );
+		assertTrue( "files collided", renamer.filesCollided >= 1 );
+		// assertEquals( "files missing", 0, renamer.filesMissingMetadata );
 		
 		// Clean up
 		MetaUtils.deleteFolder( copyPath.toFile() );
@@ -279,7 +253,7 @@ public class MetaRenamerTest {
 		assertTrue( "copied directory max size",  1000000 >copySize );
 
 		// Rename/move files in copy directory.
-		MetaRenamer.main( new String [] { "-v", "-m", "-s", copyPath.toString() } );
+		MetaRenamer.execute( new String [] { "-v", "-m", "-s", copyPath.toString() } );
 		long moveSize = MetaUtils.recursiveSize( copyPath.toFile() );
 
 		// System.out.println( "   copySize=" + copySize + ", moveSize=" + moveSize );
@@ -295,6 +269,123 @@ public class MetaRenamerTest {
 		try { Thread.sleep( 1000 ); } catch (InterruptedException e) {	}
 	}
 
+	@Test
+    public void testStream() throws Exception {
+		// Two jobs in one JVM keep their own counters.
+		MetaRenamerConfig config = new MetaRenamerConfig.Builder().sourcePath( "src/test/resources/info/danbecker/metarenamer/correctDirBadFileName" ).build();
+		try ( MetaRenamer renamerA = new MetaRenamer( config );
+			MetaRenamer renamerB = new MetaRenamer( config.toBuilder().sourcePath( "src/test/resources/info/danbecker/metarenamer/rhythmpatterms" ).build(), renamerA.tikaConfig )) {
+			assertEquals( "job B destination defaults to its source", renamerB.config.sourcePath, renamerB.config.destPath );
+			assertEquals( "given destination kept", "elsewhere", config.toBuilder().destPath( "elsewhere" ).build().toBuilder().sourcePath( "src" ).build().destPath );
+
+			List<FileResult> resultsA;
+			try ( Stream<FileResult> stream = renamerA.stream() ) {
+				resultsA = stream.collect( Collectors.<FileResult>toList() );
+			}
+			assertTrue( "job A closed by its stream", renamerA.closed.get() );
+			List<FileResult> resultsB;
+			try ( Stream<FileResult> stream = renamerB.stream() ) {
+				resultsB = stream.collect( Collectors.<FileResult>toList() );
+			}
+			assertEquals( "job A results", 2, resultsA.size() );
+			assertEquals( "job A files visited", 2, renamerA.filesVisited );
+			assertEquals( "job B results", 2, resultsB.size() );
+			assertEquals( "job B files visited", 2, renamerB.filesVisited );
+			for ( FileResult result : resultsA ) {
+				assertEquals( "job A outcome", FileResult.Outcome.PROPOSED, result.outcome );
+				assertNotNull( "job A destination", result.destination );
+			}
+
+			// Closing a stream early stops the walk, and closes the job.
+			try ( MetaRenamer renamerC = new MetaRenamer( config, renamerA.tikaConfig )) {
+				try ( Stream<FileResult> stream = renamerC.stream() ) {
+					assertEquals( "first result", 1, stream.limit( 1 ).count() );
+				}
+				assertTrue( "job C closed by its stream", renamerC.closed.get() );
+			}
+		}
+	}
+
+	@Test
+    public void testOrder() throws Exception {
+		Path sourcePath = Paths.get( "src/test/resources/info/danbecker/metarenamer/"  );
+		List<Path> paths;
+		try ( Stream<Path> walk = Files.walk( sourcePath )) {
+			paths = walk.filter( Files::isRegularFile ).collect( Collectors.toList() );
+		}
+		if ( MetaUtils.sortByInode( paths )) {
+			for ( int i = 1; i < paths.size(); i++ ) {
+				long previous = (Long) Files.getAttribute( paths.get( i - 1 ), "unix:ino" );
+				assertTrue( "inode order", previous <= (Long) Files.getAttribute( paths.get( i ), "unix:ino" ));
+			}
+		}
+
+		// Batches smaller than the tree visit the same files as directory order.
+		MetaRenamer directory = MetaRenamer.execute( new String [] { "-s", sourcePath.toString() } );
+		MetaRenamer ordered = MetaRenamer.execute( new String [] { "-o", "3", "-s", sourcePath.toString() } );
+		assertEquals( "files visited", directory.filesVisited, ordered.filesVisited );
+		assertEquals( "files bytes", directory.filesBytes, ordered.filesBytes );
+		assertEquals( "outcomes", directory.report.getOutcomes(), ordered.report.getOutcomes() );
+		assertEquals( "missing", directory.filesMissingMetadata, ordered.filesMissingMetadata );
+		// Reads are timed apart from the walk. The first batch of an ordered run is a directory order baseline.
+		assertEquals( "directory order reads", directory.filesBytes, directory.readClocks[ MetaRenamer.DIRECTORY_ORDER ].bytes );
+		assertEquals( "no inode order reads", 0, directory.readClocks[ MetaRenamer.INODE_ORDER ].bytes );
+		assertEquals( "ordered reads", ordered.filesBytes, ordered.readClocks[ MetaRenamer.DIRECTORY_ORDER ].bytes + ordered.readClocks[ MetaRenamer.INODE_ORDER ].bytes );
+		assertTrue( "baseline batch", ordered.readClocks[ MetaRenamer.DIRECTORY_ORDER ].bytes > 0 );
+		if ( MetaUtils.sortByInode( paths ))
+			assertTrue( "inode order batches", ordered.readClocks[ MetaRenamer.INODE_ORDER ].bytes > 0 );
+	}
+
+	@Test
+    public synchronized void testDirectoryRename() throws Exception {
+		Path fixturePath = Paths.get( "src/test/resources/info/danbecker/metarenamer/"  );
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path albumPath = Files.createDirectories( tempPath.resolve( "src/album" ));
+		Path otherPath = Files.createDirectories( tempPath.resolve( "src/other" ));
+		Files.copy( fixturePath.resolve( "intervals/034-Interval Studies.mp3" ), albumPath.resolve( "034-Interval Studies.mp3" ));
+		Files.copy( fixturePath.resolve( "rhythmpatterms/Dan Becker - 2014 - Rhythm Patterns - 13.Clave Son.m4a" ), otherPath.resolve( "13.Clave Son.m4a" ));
+
+		// A dry run proposes the same directory rename, and moves nothing.
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-m", "-y", "-s", tempPath.resolve( "src" ).toString(), "-d", tempPath.resolve( "dest" ).toString() } );
+		assertEquals( "dirs proposed", 1, renamer.dirsRenamed );
+		assertTrue( "album stays", Files.isDirectory( albumPath ));
+
+		// Workers plan the files, in inode batches.
+		renamer = MetaRenamer.execute( new String [] { "-a", "-m", "-y", "-i", "2,1", "-o", "8", "-s", tempPath.resolve( "src" ).toString(), "-d", tempPath.resolve( "dest" ).toString() } );
+
+		// The complete album moves whole. The album missing its year and name moves file by file.
+		assertEquals( "dirs renamed", 1, renamer.dirsRenamed );
+		assertEquals( "dirs missing", 1, renamer.dirsMissingMetadata );
+		assertEquals( "files renamed", 2, renamer.filesRenamed );
+		assertFalse( "album moved", Files.exists( albumPath ));
+		assertTrue( "other stays", Files.isDirectory( otherPath ));
+		assertTrue( "album renamed", Files.isDirectory( tempPath.resolve( "dest/Barrett Tagliarino/2012 - Interval Studies and Lead Guitar Technique" )));
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	@Test
+    public synchronized void testViews() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path srcPath = Files.createDirectories( tempPath.resolve( "src" ));
+		Files.copy( Paths.get( "src/test/resources/info/danbecker/metarenamer/intervals/034-Interval Studies.mp3" ), srcPath.resolve( "034-Interval Studies.mp3" ));
+
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-m", "-s", srcPath.toString(), "-d", tempPath.resolve( "byArtist" ).toString(),
+			"-j", "xmpDM:releaseYear/xmpDM:album - title.extension=" + tempPath.resolve( "byYear" ) } );
+
+		// One parse, one move, and a hard link in the year view.
+		assertEquals( "files renamed", 1, renamer.filesRenamed );
+		assertEquals( "views linked", 1, renamer.viewsLinked.get() );
+		Path viewPath = tempPath.resolve( "byYear/2012/Interval Studies and Lead Guitar Technique - title.mp3" );
+		assertTrue( "view exists", Files.isRegularFile( viewPath ));
+		try ( Stream<Path> files = Files.walk( tempPath.resolve( "byArtist" ))) {
+			Path moved = files.filter( Files::isRegularFile ).findFirst().get();
+			assertTrue( "shared link", Files.isSameFile( moved, viewPath ));
+		}
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
 	@Test
 	public void testLoadDoNotParse() throws IOException {
 		Set<String> doNotParse = new TreeSet<String>();
@@ -321,56 +412,56 @@ public class MetaRenamerTest {
 	@Test
 	public void testReadDateTime() {
 		// Happy paths
-		MetaRenamer.dateTimeComparator = MetaRenamer.Comparator.FALSE;
-		MetaRenamer.dateTimeCompare = null;;
-		assertEquals( "dateTime",  MetaRenamer.Comparator.FALSE, MetaRenamer.dateTimeComparator );
-		assertNull( "dateTime",  MetaRenamer.dateTimeCompare );
+		MetaRenamerConfig.Builder builder = new MetaRenamerConfig.Builder();
+		assertEquals( "dateTime",  MetaRenamer.Comparator.FALSE, builder.getDateTimeComparator() );
+		assertNull( "dateTime",  builder.getDateTimeCompare() );
 		
 		DateTimeFormatter f = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss");				
 
 		LocalDateTime dateTimeExpected = f.parseLocalDateTime( "2012-01-10T23:13:26" );
-		MetaRenamer.readDateTime( "GT2012-01-10T23:13:26");
-		assertEquals( "dateTime",  MetaRenamer.Comparator.GT, MetaRenamer.dateTimeComparator );
-		assertEquals( "dateTime",  dateTimeExpected.toDate(), MetaRenamer.dateTimeCompare );
+		builder.readDateTime( "GT2012-01-10T23:13:26");
+		assertEquals( "dateTime",  MetaRenamer.Comparator.GT, builder.getDateTimeComparator() );
+		assertEquals( "dateTime",  dateTimeExpected.toDate(), builder.getDateTimeCompare() );
 
 		f = DateTimeFormat.forPattern("yyyy-MM-dd");				
 		
 		dateTimeExpected = f.parseLocalDateTime( "2015-07-04" );
-		MetaRenamer.readDateTime( "LE2015-07-04");
-		assertEquals( "dateTime",  MetaRenamer.Comparator.LE, MetaRenamer.dateTimeComparator );
-		assertEquals( "dateTime",  dateTimeExpected.toDate(), MetaRenamer.dateTimeCompare );
+		builder.readDateTime( "LE2015-07-04");
+		assertEquals( "dateTime",  MetaRenamer.Comparator.LE, builder.getDateTimeComparator() );
+		assertEquals( "dateTime",  dateTimeExpected.toDate(), builder.getDateTimeCompare() );
 	
 		// Bad comparator
-		MetaRenamer.readDateTime( "FOO2015-07-04");
-		assertEquals( "dateTime",  MetaRenamer.Comparator.LE, MetaRenamer.dateTimeComparator ); // last one set
+		builder.readDateTime( "FOO2015-07-04");
+		assertEquals( "dateTime",  MetaRenamer.Comparator.LE, builder.getDateTimeComparator() ); // last one set
 		
 		// Bad date
 		dateTimeExpected = f.parseLocalDateTime( "2015-07-04" );
 		try {
-			MetaRenamer.readDateTime( "EQ2001");
+			builder.readDateTime( "EQ2001");
 		} catch ( IllegalArgumentException e ) {
 			assertNotNull( "dateTime",  e );
-			assertEquals( "dateTime",  MetaRenamer.Comparator.EQ, MetaRenamer.dateTimeComparator );
-			assertEquals( "dateTime",  dateTimeExpected.toDate(), MetaRenamer.dateTimeCompare );			
+			assertEquals( "dateTime",  MetaRenamer.Comparator.EQ, builder.getDateTimeComparator() );
+			assertEquals( "dateTime",  dateTimeExpected.toDate(), builder.getDateTimeCompare() );			
 		}
 
 		// Slashes to dashes
 		dateTimeExpected = f.parseLocalDateTime( "2015-07-01" );
-		MetaRenamer.readDateTime( "LE2015/07/01");
-		assertEquals( "dateTime",  MetaRenamer.Comparator.LE, MetaRenamer.dateTimeComparator );
-		assertEquals( "dateTime",  dateTimeExpected.toDate(), MetaRenamer.dateTimeCompare );
+		builder.readDateTime( "LE2015/07/01");
+		assertEquals( "dateTime",  MetaRenamer.Comparator.LE, builder.getDateTimeComparator() );
+		assertEquals( "dateTime",  dateTimeExpected.toDate(), builder.getDateTimeCompare() );
 		dateTimeExpected = f.parseLocalDateTime( "2015-01-01" );
-		// MetaRenamer.readDateTime( "LE2015" + "\\" + "01" + "\\" + "01");
-		// assertEquals( "dateTime",  MetaRenamer.Comparator.LE, MetaRenamer.dateTimeComparator );
-		// assertEquals( "dateTime",  dateTimeExpected.toDate(), MetaRenamer.dateTimeCompare );
+		// builder.readDateTime( "LE2015" + "\\" + "01" + "\\" + "01");
+		// assertEquals( "dateTime",  MetaRenamer.Comparator.LE, builder.getDateTimeComparator() );
+		// assertEquals( "dateTime",  dateTimeExpected.toDate(), builder.getDateTimeCompare() );
 	}
 	
 	@Test
 	public void testTestDateTime() {
 		// Happy paths
+		MetaRenamerConfig.Builder builder = new MetaRenamerConfig.Builder();
 		DateTimeFormatter f = DateTimeFormat.forPattern("yyyy-MM-dd");						
 		LocalDateTime test = f.parseLocalDateTime( "2015-07-04" );
-		MetaRenamer.readDateTime( "FALSE2015-07-04");
+		builder.readDateTime( "FALSE2015-07-04");
 		
 		assertFalse( "dateTime",  MetaRenamer.testDateTime( null, null,  null ) );
 		assertFalse( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.Comparator.FALSE, null, null ) );
@@ -378,21 +469,21 @@ public class MetaRenamerTest {
 		assertFalse( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.Comparator.EQ, null, test.toDate() ) );
 		assertFalse( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.Comparator.EQ, test.toDate(), null ) );
 
-		MetaRenamer.readDateTime( "EQ2015-07-04");
-		assertTrue( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, test.toDate() ) );
+		builder.readDateTime( "EQ2015-07-04");
+		assertTrue( "dateTime",  MetaRenamer.testDateTime( builder.getDateTimeComparator(), builder.getDateTimeCompare(), test.toDate() ) );
 		test = f.parseLocalDateTime( "2015-07-05" );
-		assertFalse( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, test.toDate() ) );
-		MetaRenamer.readDateTime( "NE2015-07-04");
-		assertTrue( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, test.toDate() ) );
+		assertFalse( "dateTime",  MetaRenamer.testDateTime( builder.getDateTimeComparator(), builder.getDateTimeCompare(), test.toDate() ) );
+		builder.readDateTime( "NE2015-07-04");
+		assertTrue( "dateTime",  MetaRenamer.testDateTime( builder.getDateTimeComparator(), builder.getDateTimeCompare(), test.toDate() ) );
 
 		test = f.parseLocalDateTime( "2015-07-05" );
-		MetaRenamer.readDateTime( "GT2015-07-04");
-		assertTrue( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, test.toDate() ) );
-		MetaRenamer.readDateTime( "GE2015-07-04");
-		assertTrue( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, test.toDate() ) );
-		MetaRenamer.readDateTime( "LT2015-07-04");
-		assertFalse( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, test.toDate() ) );
-		MetaRenamer.readDateTime( "LE2015-07-04");
-		assertFalse( "dateTime",  MetaRenamer.testDateTime( MetaRenamer.dateTimeComparator, MetaRenamer.dateTimeCompare, test.toDate() ) );
+		builder.readDateTime( "GT2015-07-04");
+		assertTrue( "dateTime",  MetaRenamer.testDateTime( builder.getDateTimeComparator(), builder.getDateTimeCompare(), test.toDate() ) );
+		builder.readDateTime( "GE2015-07-04");
+		assertTrue( "dateTime",  MetaRenamer.testDateTime( builder.getDateTimeComparator(), builder.getDateTimeCompare(), test.toDate() ) );
+		builder.readDateTime( "LT2015-07-04");
+		assertFalse( "dateTime",  MetaRenamer.testDateTime( builder.getDateTimeComparator(), builder.getDateTimeCompare(), test.toDate() ) );
+		builder.readDateTime( "LE2015-07-04");
+		assertFalse( "dateTime",  MetaRenamer.testDateTime( builder.getDateTimeComparator(), builder.getDateTimeCompare(), test.toDate() ) );
 	}
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package info.danbecker.metarenamer;
+
+import info.danbecker.metarenamer.FileResult.Outcome;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetaReportTest {
+
+	@Test
+    public void testCsv() throws Exception {
+		StringWriter writer = new StringWriter();
+		MetaReport report = new MetaReport( writer, MetaReport.Format.CSV );
+		report.accept( new FileResult( Paths.get( "a, b.mp3" ), Paths.get( "x/a.mp3" ), "audio/mpeg", Outcome.PROPOSED, Arrays.asList( "title", "xmpDM:album" )));
+		report.accept( new FileResult( Paths.get( "c.txt" ), null, "text/plain", Outcome.IGNORED, null ));
+		report.close();
+
+		String [] lines = writer.toString().split( "\n" );
+		assertEquals( "lines", 3, lines.length );
+		assertEquals( "header", MetaReport.CSV_HEADER, lines[ 0 ] );
+		assertEquals( "quoted", "PROPOSED,audio/mpeg,\"a, b.mp3\"," + Paths.get( "x/a.mp3" ) + ",title;xmpDM:album,", lines[ 1 ] );
+		assertEquals( "empty fields", "IGNORED,text/plain,c.txt,,,", lines[ 2 ] );
+	}
+
+	@Test
+    public void testJson() throws Exception {
+		StringWriter writer = new StringWriter();
+		MetaReport report = new MetaReport( writer, MetaReport.Format.JSON );
+		report.accept( new FileResult( Paths.get( "say \"hi\".mp3" ), null, "audio/mpeg", Outcome.COLLIDED, Arrays.asList( "title" )));
+		report.accept( FileResult.failed( Paths.get( "bad.mp3" ), new Exception( "bad" )));
+		report.close();
+
+		String [] lines = writer.toString().split( "\n" );
+		assertEquals( "lines", 2, lines.length );
+		assertEquals( "escaped", "{\"outcome\":\"COLLIDED\",\"mediaType\":\"audio/mpeg\",\"source\":\"say \\\"hi\\\".mp3\",\"missingKeys\":[\"title\"]}", lines[ 0 ] );
+		assertEquals( "failed", "{\"outcome\":\"FAILED\",\"source\":\"bad.mp3\",\"exception\":\"bad\"}", lines[ 1 ] );
+	}
+
+	@Test
+    public void testSummary() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaReportPath" );
+		Path reportPath = tempPath.resolve( "report.jsonl" );
+		MetaRenamer renamer = MetaRenamer.execute( new String [] { "-r", reportPath.toString(), "-s", "src/test/resources/info/danbecker/metarenamer/" } );
+
+		// One line per visited file, with the summary counting the same files.
+		List<String> lines = Files.readAllLines( reportPath );
+		int outcomes = 0;
+		for ( Integer count : renamer.report.getOutcomes().values() )
+			outcomes += count;
+		assertEquals( "lines", outcomes, lines.size() );
+		assertTrue( "json", lines.get( 0 ).startsWith( "{\"outcome\":" ));
+		assertEquals( "proposed", Integer.valueOf( 4 ), renamer.report.getOutcomes().get( Outcome.PROPOSED ));
+		assertTrue( "missing keys", renamer.report.getMissingKeys().size() > 0 );
+		assertTrue( "media types", renamer.report.getMediaTypes().containsKey( "audio/mpeg" ));
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,146 @@
+package info.danbecker.metarenamer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetaUtilsTest {
+	public static final int BENCHMARK_DIRS = 40;
+	public static final int BENCHMARK_FILES = 25;
+	public static final int BENCHMARK_ROUNDS = 3;
+
+	@Test
+    public void testTreeUtilities() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaUtils" );
+		Path source = tempPath.resolve( "source" );
+		long size = makeTree( source, 3, 4 );
+		assertEquals( "size", size, MetaUtils.recursiveSize( source.toFile() ));
+		assertEquals( "size of nothing", 0, MetaUtils.recursiveSize( tempPath.resolve( "gone" ).toFile() ));
+
+		Path target = tempPath.resolve( "target" );
+		MetaUtils.copyFolder( source, target );
+		assertEquals( "copy size", size, MetaUtils.recursiveSize( target.toFile() ));
+		assertTrue( "deep copy", Files.isRegularFile( target.resolve( "dir1/dir1/file3.mp3" )));
+		assertTrue( "empty directory", Files.isDirectory( target.resolve( "empty" )));
+
+		MetaUtils.deleteFolder( target.toFile() );
+		assertFalse( "deleted", Files.exists( target ));
+		MetaUtils.deleteFolder( target.toFile() ); // gone already
+		MetaUtils.deleteFolder( tempPath.toFile() );
+		assertFalse( "all deleted", Files.exists( tempPath ));
+	}
+
+	/**
+	 * Times the fork/join utilities against the recursive ones they replace. Prints, and checks only that both agree.
+	 * Runs only when asked, with -Dbenchmark=true.
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+		Assume.assumeTrue( "benchmark asked for", Boolean.getBoolean( "benchmark" ));
+		Path tempPath = Files.createTempDirectory( "metaBenchmark" );
+		Path source = tempPath.resolve( "source" );
+		long size = 0;
+		for ( int dir = 0; dir < BENCHMARK_DIRS; dir++ )
+			size += makeTree( source.resolve( "album" + dir ), 1, BENCHMARK_FILES );
+		long [] recursive = new long [ 3 ], parallel = new long [ 3 ];
+		for ( int round = 0; round < BENCHMARK_ROUNDS; round++ ) {
+			Path copy = tempPath.resolve( "recursive" );
+			long start = System.nanoTime();
+			recursiveCopy( source.toFile(), copy.toFile() );
+			recursive[ 0 ] += System.nanoTime() - start;
+			start = System.nanoTime();
+			assertEquals( "recursive size", size, recursiveSize( copy.toFile() ));
+			recursive[ 1 ] += System.nanoTime() - start;
+			start = System.nanoTime();
+			recursiveDelete( copy.toFile() );
+			recursive[ 2 ] += System.nanoTime() - start;
+
+			copy = tempPath.resolve( "parallel" );
+			start = System.nanoTime();
+			MetaUtils.copyFolder( source, copy );
+			parallel[ 0 ] += System.nanoTime() - start;
+			start = System.nanoTime();
+			assertEquals( "parallel size", size, MetaUtils.recursiveSize( copy.toFile() ));
+			parallel[ 1 ] += System.nanoTime() - start;
+			start = System.nanoTime();
+			MetaUtils.deleteFolder( copy.toFile() );
+			parallel[ 2 ] += System.nanoTime() - start;
+			assertFalse( "parallel deleted", Files.exists( copy ));
+		}
+		String [] names = { "copy", "size", "delete" };
+		for ( int op = 0; op < names.length; op++ )
+			System.out.println( String.format( "   %s of %d files, recursive %.1f ms, fork/join %.1f ms.", names[ op ],
+				BENCHMARK_DIRS * ( BENCHMARK_FILES + 1 ), recursive[ op ] / 1e6 / BENCHMARK_ROUNDS, parallel[ op ] / 1e6 / BENCHMARK_ROUNDS ));
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+
+	/** Makes a tree of depth levels, with files in every directory and one empty directory. @return the bytes written */
+	protected static long makeTree( Path root, int depth, int files ) throws IOException {
+		Files.createDirectories( root.resolve( "empty" ));
+		long size = 0;
+		for ( int file = 0; file < files; file++ )
+			size += Files.write( root.resolve( "file" + file + ".mp3" ), new byte[ 1000 + 100 * file ] ).toFile().length();
+		if ( depth > 1 ) {
+			for ( int dir = 0; dir < 2; dir++ )
+				size += makeTree( root.resolve( "dir" + dir ), depth - 1, files );
+		}
+		return size;
+	}
+
+	/** The recursive delete which {@link MetaUtils#deleteFolder(File)} replaced. */
+	protected static void recursiveDelete( File folder ) {
+		File [] files = folder.listFiles();
+		if ( files != null ) {
+			for ( File f : files ) {
+				if ( f.isDirectory() )
+					recursiveDelete( f );
+				else
+					f.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	/** The single threaded walk which {@link MetaUtils#copyFolder(Path, Path)} replaced. */
+	protected static void recursiveCopy( final File source, final File target ) throws IOException {
+		final Path sourcePath = source.toPath(), targetPath = target.toPath();
+		Files.walkFileTree( sourcePath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) throws IOException {
+				Files.createDirectories( targetPath.resolve( sourcePath.relativize( dir )));
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+				Files.copy( file, targetPath.resolve( sourcePath.relativize( file )));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/** The recursive size which {@link MetaUtils#recursiveSize(File)} replaced, with a size call per file. */
+	protected static long recursiveSize( File folder ) throws IOException {
+		long size = 0;
+		File [] files = folder.listFiles();
+		if ( files != null ) {
+			for ( File f : files ) {
+				if ( f.isDirectory() )
+					size += recursiveSize( f );
+				else
+					size += Files.size( f.toPath() );
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,47 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetaWatcherTest {
+
+	@Test
+    public void testWatch() throws Exception {
+		Path watchPath = Files.createTempDirectory( "metaWatchPath" );
+		Path destPath = Files.createTempDirectory( "metaWatchDest" );
+		MetaRenamerConfig config = new MetaRenamerConfig.Builder()
+			.sourcePath( watchPath.toString() ).destPath( destPath.toString() )
+			.actionMode( true ).watch( true ).watchSettleMillis( 200 ).build();
+		MetaRenamer renamer = new MetaRenamer( config );
+		MetaWatcher watcher = new MetaWatcher( renamer );
+		Thread thread = new Thread( watcher );
+		thread.start();
+		try { Thread.sleep( 1000 ); } catch (InterruptedException e) {	}
+
+		// A file landing in a new subdirectory is renamed once it settles.
+		Path album = Files.createDirectories( watchPath.resolve( "album" ));
+		Files.copy( Paths.get( "src/test/resources/info/danbecker/metarenamer/intervals/034-Interval Studies.mp3" ), album.resolve( "034-Interval Studies.mp3" ));
+		for ( int i = 0; ( i < 100 ) && ( renamer.filesCreated < 1 ); i++ ) {
+			try { Thread.sleep( 100 ); } catch (InterruptedException e) {	}
+		}
+		assertEquals( "files created", 1, renamer.filesCreated );
+		assertTrue( "copied directory size", MetaUtils.recursiveSize( destPath.toFile() ) > 0 );
+
+		// An unchanged file is not visited again by a reconciliation.
+		int filesVisited = renamer.filesVisited;
+		watcher.requestReconcile();
+		try { Thread.sleep( 1000 ); } catch (InterruptedException e) {	}
+		assertEquals( "files visited after reconcile", filesVisited, renamer.filesVisited );
+
+		watcher.stop();
+		thread.join( 5000 );
+		MetaUtils.deleteFolder( watchPath.toFile() );
+		MetaUtils.deleteFolder( destPath.toFile() );
+	}
+}
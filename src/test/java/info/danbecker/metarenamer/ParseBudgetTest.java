@@ -0,0 +1,132 @@
+package info.danbecker.metarenamer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParseBudgetTest {
+
+	@Test
+    public void testTimeout() throws Exception {
+		ParseBudget budget = new ParseBudget( 100, 0, 2 );
+		try {
+			assertEquals( "in budget", "ok", budget.run( Paths.get( "a.mp3" ), "parse", new Callable<String>() {
+				@Override
+				public String call() { return "ok"; }
+			}));
+			long start = System.currentTimeMillis();
+			try {
+				budget.run( Paths.get( "slow.mp3" ), "parse", new Callable<String>() {
+					@Override
+					public String call() throws Exception { Thread.sleep( 10000 ); return "late"; }
+				});
+				fail( "no timeout" );
+			} catch ( ParseBudget.ExceededException e ) {
+				assertTrue( "message", e.getMessage().contains( "took over 100 ms" ));
+			}
+			assertTrue( "cancelled early", System.currentTimeMillis() - start < 2000 );
+
+			List<ParseBudget.Timing> slowest = budget.getSlowest();
+			assertEquals( "slowest count", 2, slowest.size() );
+			assertEquals( "slowest first", Paths.get( "slow.mp3" ), slowest.get( 0 ).path );
+		} finally {
+			budget.close();
+		}
+	}
+
+	@Test
+    public void testRunaways() throws Exception {
+		ParseBudget budget = new ParseBudget( 50, 0, 0, 1 );
+		final Object stuck = new Object();
+		Callable<String> runaway = new Callable<String>() {
+			@Override
+			public String call() {
+				synchronized ( stuck ) {
+					while ( true ) {
+						try {
+							stuck.wait();
+						} catch ( InterruptedException e ) {
+							// ignores cancel, as a parser in a loop may
+						}
+					}
+				}
+			}
+		};
+		try {
+			for ( int i = 0; i < budget.maxThreads; i++ ) {
+				try {
+					budget.run( Paths.get( "loop" + i + ".mp3" ), "parse", runaway );
+					fail( "no timeout" );
+				} catch ( ParseBudget.ExceededException e ) {
+				}
+			}
+			try {
+				budget.run( Paths.get( "next.mp3" ), "parse", runaway );
+				fail( "started a thread over the bound" );
+			} catch ( ParseBudget.ExceededException e ) {
+				fail( "next file blamed for runaways" );
+			} catch ( IOException e ) {
+				assertTrue( "message", e.getMessage().contains( "no parse thread" ));
+			}
+		} finally {
+			budget.close();
+		}
+	}
+
+	@Test
+    public void testMemory() throws Exception {
+		ParseBudget budget = new ParseBudget( 0, 16L * 1024 * 1024, 0 );
+		Assume.assumeTrue( "JVM counts allocated bytes", budget.allocatedBytes( Thread.currentThread().getId() ) > 0 );
+		try {
+			budget.run( Paths.get( "huge.mp3" ), "parse", new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					int total = 0;
+					while ( !Thread.currentThread().isInterrupted() )
+						total += new byte[ 1024 * 1024 ].length;
+					return total;
+				}
+			});
+			fail( "no memory limit" );
+		} catch ( ParseBudget.ExceededException e ) {
+			assertTrue( "message", e.getMessage().contains( "allocated over 16 MB" ));
+		} finally {
+			budget.close();
+		}
+	}
+
+	@Test
+    public void testQuarantine() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaQuarantinePath" );
+		Path file = Files.write( tempPath.resolve( "bad.mp3" ), new byte[ 100 ] );
+		Path listPath = tempPath.resolve( "quarantine.txt" );
+
+		Quarantine quarantine = new Quarantine( listPath );
+		assertFalse( "empty", quarantine.contains( file ));
+		quarantine.add( file, "parse took over 100 ms" );
+		quarantine.save();
+
+		// A later run skips the file until it changes.
+		quarantine = new Quarantine( listPath );
+		assertTrue( "reloaded", quarantine.contains( file ));
+		assertEquals( "reason", "parse took over 100 ms", quarantine.getEntries().values().iterator().next().reason );
+		Files.setLastModifiedTime( file, FileTime.fromMillis( Files.getLastModifiedTime( file ).toMillis() + 5000 ));
+		assertFalse( "changed", quarantine.contains( file ));
+		quarantine.save();
+		assertTrue( "saved empty", new Quarantine( listPath ).getEntries().isEmpty() );
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
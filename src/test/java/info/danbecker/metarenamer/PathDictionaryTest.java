@@ -0,0 +1,56 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PathDictionaryTest {
+	@Test
+    public void testIds() {
+		PathDictionary paths = new PathDictionary();
+		Path track = Paths.get( "/music/Miles Davis/Kind of Blue/So What.mp3" );
+		assertEquals( "not added", PathDictionary.NONE, paths.find( track ));
+		int id = paths.id( track );
+		assertEquals( "same id", id, paths.id( track ));
+		assertEquals( "found", id, paths.find( Paths.get( track.toString() )));
+		assertEquals( "path", track, paths.path( id ));
+		assertEquals( "root and names", 5, paths.size() );
+
+		// Parents are shared.
+		int sibling = paths.id( track.resolveSibling( "Freddie Freeloader.mp3" ));
+		assertNotEquals( "sibling", id, sibling );
+		assertEquals( "one more name", 6, paths.size() );
+		assertEquals( "parent", paths.find( track.getParent() ), paths.id( Paths.get( "/music/Miles Davis/Kind of Blue" )));
+
+		Path relative = Paths.get( "./Thelonious Monk/Brilliant Corners.m4a" );
+		assertEquals( "relative", relative, paths.path( paths.id( relative )));
+	}
+
+	@Test
+    public void testGrowth() {
+		PathDictionary paths = new PathDictionary();
+		int count = 10 * PathDictionary.INITIAL_CAPACITY;
+		for ( int i = 0; i < count; i++ )
+			assertEquals( "dense ids", i + 2, paths.id( Paths.get( "library", "artist" + ( i % 7 ) + "-track" + i + ".mp3" )) + 1 );
+		assertEquals( "size", count + 1, paths.size() );
+		for ( int i = 0; i < count; i += 97 )
+			assertEquals( "path", Paths.get( "library", "artist" + ( i % 7 ) + "-track" + i + ".mp3" ), paths.path( i + 1 ));
+		assertTrue( "off heap", paths.offHeapBytes() > count * 16L );
+	}
+
+	@Test
+    public void testLongColumn() {
+		PathDictionary.LongColumn column = new PathDictionary.LongColumn( -1 );
+		assertEquals( "missing", -1, column.get( 5 ));
+		assertEquals( "none", -1, column.get( PathDictionary.NONE ));
+		column.put( 5000, 42 );
+		assertEquals( "set", 42, column.get( 5000 ));
+		assertEquals( "grown missing", -1, column.get( 4999 ));
+		assertEquals( "beyond", -1, column.get( 100000 ));
+	}
+}
@@ -0,0 +1,85 @@
+package info.danbecker.metarenamer;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PatternKeysHandlerTest {
+	public static final String FIXTURES = "src/test/resources/info/danbecker/metarenamer/";
+
+	/** Counts body characters seen before the stop. */
+	public static class CountingHandler extends PatternKeysHandler {
+		int characters = 0;
+
+		public CountingHandler( Metadata metadata, String [] keys ) {
+			super( metadata, keys );
+		}
+
+		@Override
+		public void characters( char [] ch, int start, int length ) throws SAXException {
+			super.characters( ch, start, length );
+			characters += length;
+		}
+	}
+
+	protected static CountingHandler parse( String fixture, String [] keys, Metadata metadata ) throws Exception {
+		CountingHandler handler = new CountingHandler( metadata, keys );
+		try ( InputStream stream = Files.newInputStream( Paths.get( FIXTURES + fixture ))) {
+			new AutoDetectParser().parse( stream, handler, metadata, new ParseContext() );
+		} catch ( SAXException | TikaException e ) {
+			if ( !handler.isStopped() )
+				throw e;
+		}
+		return handler;
+	}
+
+	@Test
+    public void testStop() throws Exception {
+		// Document keys are set before the body, which is not extracted.
+		Metadata metadata = new Metadata();
+		CountingHandler handler = parse( "rhythmpatterms/Rhythm Pattern Investigation.pdf", new String [] { "dc:creator", "dc:title" }, metadata );
+		assertTrue( "stopped", handler.isStopped() );
+		assertEquals( "no body", 0, handler.characters );
+		assertEquals( "title", "Rhythm Pattern Investigation", metadata.get( "dc:title" ));
+
+		// Audio keys are the same as a full parse.
+		String [] keys = new String [] { "xmpDM:album", "xmpDM:artist" };
+		Metadata full = new Metadata();
+		CountingHandler unstopped = parse( "intervals/034-Interval Studies.mp3", new String [] { "unknown:key" }, full );
+		assertFalse( "not stopped", unstopped.isStopped() );
+		metadata = new Metadata();
+		assertTrue( "stopped", parse( "intervals/034-Interval Studies.mp3", keys, metadata ).isStopped() );
+		for ( String key : keys )
+			assertEquals( key, full.get( key ), metadata.get( key ));
+	}
+
+	@Test
+    public void testFilled() throws Exception {
+		Metadata metadata = new Metadata();
+		PatternKeysHandler handler = new PatternKeysHandler( metadata, new String [] { "xmpDM:albumArtist", "xmpDM:releaseYear" } );
+		assertFalse( "empty", handler.isFilled() );
+		metadata.set( "creator", "Dan Becker" );
+		metadata.set( "xmpDM:releaseYear", "" );
+		assertFalse( "empty year", handler.isFilled() );
+		metadata.set( "xmpDM:releaseDate", "2014-08-04" );
+		assertTrue( "derived", handler.isFilled() );
+		try {
+			handler.startElement( "", "p", "p", null );
+			fail( "filled handler did not stop" );
+		} catch ( PatternKeysHandler.StopException e ) {
+			assertTrue( "stopped", handler.isStopped() );
+		}
+	}
+}
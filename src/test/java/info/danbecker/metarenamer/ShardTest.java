@@ -0,0 +1,101 @@
+package info.danbecker.metarenamer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import info.danbecker.metarenamer.FileResult.Outcome;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardTest {
+	public static final String MP3 = "src/test/resources/info/danbecker/metarenamer/intervals/034-Interval Studies.mp3";
+
+	@Test
+    public void testOwns() throws Exception {
+		Path journal = Files.createTempDirectory( "metaShards" );
+		Path source = Paths.get( "library" );
+		List<String> children = Arrays.asList( "Miles Davis", "John Coltrane", "Bill Evans", "song.mp3", "Thelonious Monk" );
+		Shard [] shards = { new Shard( 0, 3, journal ), new Shard( 1, 3, journal ), new Shard( 2, 3, journal ) };
+		for ( String child : children ) {
+			int owners = 0;
+			for ( Shard shard : shards ) {
+				if ( shard.owns( source, source.resolve( child ).resolve( "album/track.mp3" )))
+					owners++;
+			}
+			assertEquals( "one owner of " + child, 1, owners );
+			assertTrue( "owner by hash", shards[ Shard.shardOf( child, 3 ) ].owns( source, source.resolve( child )));
+		}
+		assertTrue( "source path", shards[ 1 ].owns( source, source ));
+		for ( Shard shard : shards )
+			shard.close();
+		MetaUtils.deleteFolder( journal.toFile() );
+	}
+
+	@Test
+    public void testLockAndClaim() throws Exception {
+		Path journal = Files.createTempDirectory( "metaShards" );
+		try ( Shard shard = Shard.parse( "0/2", journal )) {
+			try {
+				new Shard( 0, 2, journal ).close();
+				fail( "shard runs twice" );
+			} catch ( IOException e ) {
+			}
+			Path dest = Paths.get( "dest/Artist/Album/Title.mp3" );
+			assertTrue( "first claim", shard.claim( dest, Paths.get( "a.mp3" )));
+			assertTrue( "same source again", shard.claim( dest, Paths.get( "a.mp3" )));
+			try ( Shard other = new Shard( 1, 2, journal )) {
+				assertFalse( "other source", other.claim( dest, Paths.get( "b.mp3" )));
+				other.release( dest, Paths.get( "b.mp3" ));
+				assertFalse( "not released by other source", other.claim( dest, Paths.get( "b.mp3" )));
+				shard.release( dest, Paths.get( "a.mp3" ));
+				assertTrue( "released", other.claim( dest, Paths.get( "b.mp3" )));
+			}
+		}
+		new Shard( 0, 2, journal ).close(); // lock released
+		MetaUtils.deleteFolder( journal.toFile() );
+	}
+
+	@Test
+	public synchronized void testShardedRun() throws Exception {
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path journal = tempPath.resolve( "journal" );
+		Path srcPath = Files.createDirectories( tempPath.resolve( "src" ));
+		for ( String child : Arrays.asList( "a", "b", "c", "d" ))
+			Files.copy( Paths.get( MP3 ), Files.createDirectories( srcPath.resolve( child )).resolve( child + ".mp3" ));
+
+		// Counts of an earlier run with three shards are left out.
+		Files.createDirectories( journal );
+		Files.write( journal.resolve( "shard-2-of-3.counts" ), "filesVisited=100\n".getBytes( "UTF-8" ));
+		Files.setLastModifiedTime( journal.resolve( "shard-2-of-3.counts" ), FileTime.fromMillis( 0 ));
+
+		// Four copies go to the same destination. Only the first claim wins, whichever shard makes it.
+		for ( String shard : Arrays.asList( "0/2", "1/2" )) {
+			MetaRenamer.execute( new String [] { "-q", "-a", "-s", srcPath.toString(), "-d", tempPath.resolve( "dest" ).toString(),
+				"-z", shard, "--journal", journal.toString() } );
+		}
+		MetaReport report = new MetaReport();
+		Properties totals = Shard.merge( journal, report );
+		assertEquals( "shards", "2", totals.getProperty( "shards" ));
+		assertEquals( "files visited", "4", totals.getProperty( "filesVisited" ));
+		assertEquals( "files collided", "3", totals.getProperty( "filesCollided" ));
+		assertEquals( "copied", Integer.valueOf( 1 ), report.getOutcomes().get( Outcome.COPIED ));
+		assertEquals( "collided", Integer.valueOf( 3 ), report.getOutcomes().get( Outcome.COLLIDED ));
+		try ( Stream<Path> claims = Files.list( journal.resolve( "claims" ))) {
+			assertEquals( "claims cleared", 0, claims.count() );
+		}
+
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}
@@ -0,0 +1,57 @@
+package info.danbecker.metarenamer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StageEventsTest {
+	public static final String [] EVENTS = { "Walk", "Detect", "Parse", "Plan", "Collision", "Directory", "Transfer" };
+
+	@Test
+	public synchronized void testRecordedRun() throws Exception {
+		// The project compiles only with jdk.jfr, so the recorder is always there to test.
+		assertTrue( "flight recorder", StageEvents.AVAILABLE );
+		if ( FlightRecorder.getFlightRecorder().getRecordings().isEmpty() ) // none started with -XX:StartFlightRecording
+			assertNull( "not recording", StageEvents.begin( StageEvents.Stage.PARSE ));
+
+		Path tempPath = Files.createTempDirectory( "metaTestPath" );
+		Path jfr = Files.createTempFile( "metaStages", ".jfr" );
+		try ( Recording recording = new Recording() ) {
+			for ( String event : EVENTS )
+				recording.enable( "info.danbecker.metarenamer." + event ).withThreshold( null ); // every event, however fast
+			recording.start();
+			MetaRenamer renamer = MetaRenamer.execute( new String [] { "-a", "-q", "-s", "src/test/resources/info/danbecker/metarenamer/intervals",
+				"-d", tempPath.toString() } );
+			assertEquals( "files copied", 1, renamer.filesCreated );
+			recording.stop();
+			recording.dump( jfr );
+		}
+
+		Map<String,RecordedEvent> stages = new HashMap<String,RecordedEvent>();
+		for ( RecordedEvent event : RecordingFile.readAllEvents( jfr ))
+			stages.put( event.getEventType().getName().replace( "info.danbecker.metarenamer.", "" ), event );
+		for ( String event : EVENTS )
+			assertTrue( "recorded " + event, stages.containsKey( event ));
+		RecordedEvent transfer = stages.get( "Transfer" );
+		assertEquals( "outcome", "COPIED", transfer.getString( "outcome" ));
+		assertEquals( "media type", "audio/mpeg", transfer.getString( "mediaType" ));
+		assertTrue( "path", transfer.getString( "path" ).endsWith( "034-Interval Studies.mp3" ));
+		assertTrue( "bytes", transfer.getLong( "bytes" ) > 0 );
+		assertEquals( "parsed", "PARSED", stages.get( "Parse" ).getString( "outcome" ));
+
+		Files.delete( jfr );
+		MetaUtils.deleteFolder( tempPath.toFile() );
+	}
+}